@@ -0,0 +1,80 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder turning PCM into AAC access units of {@link #FRAMES_PER_ACCESS_UNIT} frames each. It asks for input
+ * whenever it can take more. Output lags input by {@link #getDelayFrames()} frames, so the first access units are
+ * priming that decoders discard.
+ */
+
+interface AacEncoder {
+    int FRAMES_PER_ACCESS_UNIT = 1024;
+
+    /**
+     * Configures and starts the encoder.
+     * @param encoding encoding of the PCM that will be encoded
+     * @return the encoding input has to give the PCM in
+     */
+    int start(int sampleRate, int channelCount, int bitRate, int encoding) throws IOException;
+
+    /**
+     * @return number of frames the audio of the first access unit starts before the first input frame
+     */
+    int getDelayFrames();
+
+    /**
+     * Encodes everything input gives until its end, then ends the stream. Returns once every access unit has been
+     * handed to output. Both may be called from a thread of the encoder, but never at the same time.
+     */
+    void encode(Input input, Output output) throws IOException;
+
+    /**
+     * @return format of the encoded track, including the codec specific data. Valid once
+     *         {@link #encode(Input, Output)} has returned.
+     */
+    MediaFormat getOutputFormat();
+
+    void release();
+
+    interface Input{
+        /**
+         * Puts whole frames of PCM into dst, as many as fit unless the input ends first.
+         * @return number of bytes put into dst, or -1 at the end of the input
+         */
+        int read(ByteBuffer dst) throws IOException;
+    }
+
+    interface Output{
+        /**
+         * @param accessUnit one access unit between position and limit. Only valid until this method returns.
+         */
+        void onAccessUnit(ByteBuffer accessUnit) throws IOException;
+    }
+
+    interface Factory{
+        AacEncoder create() throws IOException;
+    }
+}
@@ -27,14 +27,17 @@ import android.support.annotation.Nullable;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.SeekBar;
 
 /**
  * Created by Loremar on 22/02/2018.
- * This fragment allows to change the GAIN in audio data being read.
+ * This fragment allows to change the GAIN in audio data being read, or to let automatic gain control set it with
+ * the slider as the highest gain allowed.
  */
 
-public class AdjustMicSensitivityFragment extends Fragment implements SeekBar.OnSeekBarChangeListener {
+public class AdjustMicSensitivityFragment extends Fragment implements SeekBar.OnSeekBarChangeListener, CompoundButton.OnCheckedChangeListener {
     private SharedPreferences prefs;
     private static final int MAX_PROGRESS = 40;
     private static  final int DEFAULT_PROGRESS = 20;
@@ -45,11 +48,14 @@ public class AdjustMicSensitivityFragment extends Fragment implements SeekBar.On
         AudioSpy main = (AudioSpy) getActivity();
         View view = inflater.inflate(R.layout.adjust_mic_sensitivity, container, false);
         SeekBar gainSlider = view.findViewById(R.id.gainSlider);
+        CheckBox autoGain = view.findViewById(R.id.autoGain);
 
         gainSlider.setOnSeekBarChangeListener(this);
         prefs = main.getSharedPreferences("settings", 0);
         gainSlider.setMax(MAX_PROGRESS);
         gainSlider.setProgress(prefs.getInt("gain", DEFAULT_PROGRESS));
+        autoGain.setChecked(prefs.getBoolean("auto_gain", false));
+        autoGain.setOnCheckedChangeListener(this);
 
         return view;
     }
@@ -61,6 +67,11 @@ public class AdjustMicSensitivityFragment extends Fragment implements SeekBar.On
         }
     }
 
+    @Override
+    public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+        prefs.edit().putBoolean("auto_gain", isChecked).apply();
+    }
+
     @Override
     public void onStartTrackingTouch(SeekBar seekBar) {}
 
@@ -0,0 +1,189 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * {@link AacEncoder} driving a codec in asynchronous mode. Nothing polls: an input buffer is filled from the
+ * {@link AacEncoder.Input} only when the codec offers one, and access units are handed on as the codec delivers
+ * them, all on the codec's callback thread. The calling thread just waits for the end of stream.
+ */
+
+final class AsyncAacEncoder implements AacEncoder {
+    private final Codec codec;
+    private final CountDownLatch ended = new CountDownLatch(1);
+    private int sampleRate;
+    private int frameSize;
+    private Input input;
+    private Output output;
+    private boolean inputEnded;
+    private long inputFrames;
+    private volatile MediaFormat outputFormat;
+    private volatile Exception failure;
+
+    AsyncAacEncoder(Codec codec){
+        this.codec = codec;
+    }
+
+    @Override
+    public int start(int sampleRate, int channelCount, int bitRate, int encoding) throws IOException {
+        this.sampleRate = sampleRate;
+        int inputEncoding = codec.configure(sampleRate, channelCount, bitRate, encoding, new CodecCallback());
+        frameSize = AudioProcessingTools.bytesPerSample(inputEncoding) * channelCount;
+        return inputEncoding;
+    }
+
+    @Override
+    public int getDelayFrames() {
+        return codec.getDelayFrames();
+    }
+
+    @Override
+    public void encode(Input input, Output output) throws IOException {
+        this.input = input;
+        this.output = output;
+        codec.start();
+        try {
+            ended.await();
+        }catch(InterruptedException e){
+            throw new InterruptedIOException("Interrupted while encoding");
+        }
+        Exception failure = this.failure;
+        if(failure instanceof IOException) throw (IOException) failure;
+        if(failure != null) throw new IOException("Encoder failed", failure);
+    }
+
+    /**
+     * Receives the callbacks of the codec, all on the codec's thread.
+     */
+    private final class CodecCallback implements Codec.Callback{
+        @Override
+        public void onInputBufferAvailable(int index) {
+            if(inputEnded || ended.getCount() == 0) return;
+            try {
+                ByteBuffer buffer = codec.getInputBuffer(index);
+                int read = input.read(buffer);
+                long presentationTimeUs = inputFrames * 1000000 / sampleRate;
+                if(read == -1){
+                    inputEnded = true;
+                    codec.queueInputBuffer(index, 0, presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                }else{
+                    codec.queueInputBuffer(index, read, presentationTimeUs, 0);
+                    inputFrames += read / frameSize;
+                }
+            }catch(IOException | RuntimeException e){
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+            if(ended.getCount() == 0) return;
+            try {
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                // Codec specific data is carried by the output format instead.
+                if(buffer != null && info.size > 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0){
+                    buffer.position(info.offset).limit(info.offset + info.size);
+                    output.onAccessUnit(buffer);
+                }
+                codec.releaseOutputBuffer(index);
+                // Other flags may come with the end of stream.
+                if((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) ended.countDown();
+            }catch(IOException | RuntimeException e){
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            outputFormat = format;
+        }
+
+        @Override
+        public void onError(Exception e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Exception e){
+        if(failure == null) failure = e;
+        ended.countDown();
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    @Override
+    public void release() {
+        codec.release();
+    }
+
+    /**
+     * The parts of a MediaCodec in asynchronous mode used by {@link AsyncAacEncoder}, so a stand-in can take its
+     * place.
+     */
+    interface Codec{
+        /**
+         * Configures the codec as an AAC encoder that will call callback, one call at a time, on a thread of its own.
+         * @param encoding encoding of the PCM that will be encoded
+         * @return the encoding the codec expects its input in
+         */
+        int configure(int sampleRate, int channelCount, int bitRate, int encoding, Callback callback) throws IOException;
+
+        /**
+         * @return number of frames the first access unit starts before the first input frame
+         */
+        int getDelayFrames();
+
+        void start();
+
+        ByteBuffer getInputBuffer(int index);
+
+        void queueInputBuffer(int index, int size, long presentationTimeUs, int flags);
+
+        ByteBuffer getOutputBuffer(int index);
+
+        void releaseOutputBuffer(int index);
+
+        /**
+         * Stops the codec if it's running and frees it. No callbacks are made once this returns.
+         */
+        void release();
+
+        interface Callback{
+            void onInputBufferAvailable(int index);
+
+            void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+
+            void onOutputFormatChanged(MediaFormat format);
+
+            void onError(Exception e);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed set of pre-sized, little-endian direct buffers for audio blocks handed from one thread to another, such
+ * as the encoder input of {@link LiveEncoderSink} and the chunks of {@link WriteBehindWriter}. A buffer is checked
+ * out for each block and returned by whoever consumes it, so nothing is allocated once recording is under way.
+ * Captured blocks live in the slots of {@link PcmRingBuffer} instead.
+ */
+
+final class AudioBufferPool {
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+    private final int bufferCount;
+    private final int bufferSize;
+
+    /**
+     * @param bufferCount number of buffers allocated up front
+     * @param bufferSize  capacity of each buffer, usually the read buffer size of the AudioRecord
+     */
+    AudioBufferPool(int bufferCount, int bufferSize){
+        this.bufferCount = bufferCount;
+        this.bufferSize = bufferSize;
+        freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        for(int i = 0; i < bufferCount; i++){
+            freeBuffers.add(ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    /**
+     * Checks out a cleared buffer, waiting for one to be released if all of them are in use.
+     */
+    ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = freeBuffers.take();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire()} back to the pool.
+     */
+    void release(ByteBuffer buffer){
+        if(buffer.capacity() != bufferSize || !freeBuffers.offer(buffer)){
+            throw new IllegalArgumentException("Buffer does not belong to this pool");
+        }
+    }
+
+    int getBufferCount(){
+        return bufferCount;
+    }
+
+    int getBufferSize(){
+        return bufferSize;
+    }
+
+    /**
+     * @return number of buffers currently checked out
+     */
+    int getBuffersInUse(){
+        return bufferCount - freeBuffers.size();
+    }
+}
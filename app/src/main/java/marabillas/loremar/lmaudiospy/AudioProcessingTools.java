@@ -20,26 +20,23 @@
 package marabillas.loremar.lmaudiospy;
 
 import android.media.AudioFormat;
-import android.media.AudioRecord;
 import android.media.MediaCodec;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Message;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
 
 /**
  * Created by Loremar on 15/02/2018.
@@ -48,6 +45,16 @@ import java.nio.channels.ReadableByteChannel;
 
 final class AudioProcessingTools {
     private static final String LOG = "Loremar_Logs";
+    /** Size of the header written by {@link #writeWavHeader(FileChannel, int, int, int)}. */
+    static final int WAV_HEADER_SIZE = 80;
+    private static final int WAV_CHUNK_SIZE_OFFSET = 4;
+    private static final int WAV_JUNK_OFFSET = 12;
+    private static final int WAV_DS64_SIZE = 28;
+    private static final int WAV_DATA_SIZE_OFFSET = 76;
+    private static final long RIFF_MAX_SIZE = 0xFFFFFFFFL;
+    private static final int RIFF = 0x46464952;
+    private static final int RF64 = 0x34364652;
+    private static final int DS64 = 0x34367364;
     static void writeWavHeader(FileChannel fChannel, int channelMask, int sampleRate, int encoding) throws IOException {
         short channels;
         switch (channelMask) {
@@ -76,14 +83,17 @@ final class AudioProcessingTools {
                 throw new IllegalArgumentException("Unacceptable encoding");
         }
 
-        writeWavHeader(fChannel, channels, sampleRate, bitDepth);
+        // Float samples are stored as WAVE_FORMAT_IEEE_FLOAT, everything else as plain PCM.
+        short formatTag = encoding == AudioFormat.ENCODING_PCM_FLOAT ? (short) 3 : (short) 1;
+        writeWavHeader(fChannel, channels, sampleRate, bitDepth, formatTag);
     }
 
-    private static void writeWavHeader(FileChannel fChannel, short channels, int sampleRate, short bitDepth) throws IOException {
+    private static void writeWavHeader(FileChannel fChannel, short channels, int sampleRate, short bitDepth, short formatTag) throws IOException {
         // Convert the multi-byte integers to raw bytes in little endian format as required by the spec
         byte[] littleBytes = ByteBuffer
-                .allocate(14)
+                .allocate(16)
                 .order(ByteOrder.nativeOrder())
+                .putShort(formatTag)
                 .putShort(channels)
                 .putInt(sampleRate)
                 .putInt(sampleRate * channels * (bitDepth / 8))
@@ -94,253 +104,418 @@ final class AudioProcessingTools {
         fChannel.write(ByteBuffer.wrap(new byte[]{
                 // RIFF header
                 'R', 'I', 'F', 'F', // ChunkID
-                0, 0, 0, 0, // ChunkSize (must be updated later)
+                0, 0, 0, 0, // ChunkSize (updated by writeWavSizes)
                 'W', 'A', 'V', 'E', // Format
+                // JUNK chunk reserving room for a ds64 chunk, see writeWavSizes
+                'J', 'U', 'N', 'K',
+                WAV_DS64_SIZE, 0, 0, 0,
+                0, 0, 0, 0, 0, 0, 0, 0, // RIFF size
+                0, 0, 0, 0, 0, 0, 0, 0, // data size
+                0, 0, 0, 0, 0, 0, 0, 0, // sample count
+                0, 0, 0, 0, // table length
                 // fmt subchunk
                 'f', 'm', 't', ' ', // Subchunk1ID
                 16, 0, 0, 0, // Subchunk1Size
-                1, 0, // AudioFormat
-                littleBytes[0], littleBytes[1], // NumChannels
-                littleBytes[2], littleBytes[3], littleBytes[4], littleBytes[5], // SampleRate
-                littleBytes[6], littleBytes[7], littleBytes[8], littleBytes[9], // ByteRate
-                littleBytes[10], littleBytes[11], // BlockAlign
-                littleBytes[12], littleBytes[13], // BitsPerSample
+                littleBytes[0], littleBytes[1], // AudioFormat
+                littleBytes[2], littleBytes[3], // NumChannels
+                littleBytes[4], littleBytes[5], littleBytes[6], littleBytes[7], // SampleRate
+                littleBytes[8], littleBytes[9], littleBytes[10], littleBytes[11], // ByteRate
+                littleBytes[12], littleBytes[13], // BlockAlign
+                littleBytes[14], littleBytes[15], // BitsPerSample
                 // data subchunk
                 'd', 'a', 't', 'a', // Subchunk2ID
-                0, 0, 0, 0, // Subchunk2Size (must be updated later)
+                0, 0, 0, 0, // Subchunk2Size (updated by writeWavSizes)
         }).order(ByteOrder.LITTLE_ENDIAN));
     }
 
-    static class MaxAmplitude{
-        int value;
-        MaxAmplitude(int value){
-            this.value = value;
+    /**
+     * Sets ChunkSize and Subchunk2Size of a header written by {@link #writeWavHeader(FileChannel, int, int, int)}.
+     * Once the file no longer fits the 32-bit sizes of RIFF, the header is turned into RF64 instead: the RIFF ID
+     * becomes RF64, the JUNK chunk becomes the ds64 chunk holding the 64-bit sizes, and both 32-bit sizes are set
+     * to 0xFFFFFFFF. Only header bytes are written, the sample data is never moved. Uses positional writes, so the
+     * position of the channel is left where it is.
+     * @param sizes    scratch buffer of at least 8 bytes
+     * @param dataSize number of bytes of sample data, without the pad byte of an odd sized data chunk
+     */
+    static void writeWavSizes(FileChannel fChannel, ByteBuffer sizes, long dataSize) throws IOException {
+        sizes.order(ByteOrder.LITTLE_ENDIAN);
+        long riffSize = WAV_HEADER_SIZE - 8 + dataSize + (dataSize & 1);
+        if(riffSize <= RIFF_MAX_SIZE){
+            writeIntAt(fChannel, sizes, WAV_CHUNK_SIZE_OFFSET, (int) riffSize);
+            writeIntAt(fChannel, sizes, WAV_DATA_SIZE_OFFSET, (int) dataSize);
+            return;
+        }
+        // The 64-bit sizes go in first, so the file is consistent at every step.
+        writeLongAt(fChannel, sizes, WAV_JUNK_OFFSET + 8, riffSize);
+        writeLongAt(fChannel, sizes, WAV_JUNK_OFFSET + 16, dataSize);
+        writeIntAt(fChannel, sizes, WAV_JUNK_OFFSET, DS64);
+        writeIntAt(fChannel, sizes, WAV_DATA_SIZE_OFFSET, (int) RIFF_MAX_SIZE);
+        writeIntAt(fChannel, sizes, WAV_CHUNK_SIZE_OFFSET, (int) RIFF_MAX_SIZE);
+        writeIntAt(fChannel, sizes, 0, RF64);
+    }
+
+    private static void writeIntAt(FileChannel fChannel, ByteBuffer buffer, long position, int value) throws IOException {
+        buffer.clear();
+        buffer.putInt(value).flip();
+        writeFullyAt(fChannel, buffer, position);
+    }
+
+    private static void writeLongAt(FileChannel fChannel, ByteBuffer buffer, long position, long value) throws IOException {
+        buffer.clear();
+        buffer.putLong(value).flip();
+        writeFullyAt(fChannel, buffer, position);
+    }
+
+    private static void writeFullyAt(FileChannel fChannel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()){
+            position += fChannel.write(buffer, position);
         }
     }
 
     /**
-     * Reads audio data and applies gain. This method also takes consideration of the format of the audio data being recorded
-     * @param buffer            buffer to store recorded audio
-     * @param record            AudioRecord object used to read audio data
-     * @param readBufferSize    size of buffer specified in creating AudioRecord object
-     * @param gain              level of gain to apply on recorded audio
+     * Audio format of a WAV file and the location of its sample data.
      */
-    static void readAudioApplyGain(ByteBuffer buffer, AudioRecord record, int readBufferSize, int gain, MaxAmplitude maxAmplitude){
-        int read;
-        switch(record.getAudioFormat()) {
-            case AudioFormat.ENCODING_PCM_8BIT:
-                read = record.read(buffer, readBufferSize);
-                for (int i = 0; i < read; i++) {
-                    byte b = buffer.get(i);
-                    if(b> maxAmplitude.value){
-                        maxAmplitude.value = b;
-                    }
-                    b = (byte) Math.min(Math.max(b * gain, Byte.MIN_VALUE), Byte.MAX_VALUE);
-                    buffer.put(i, b);
-                }
-                break;
-            case AudioFormat.ENCODING_PCM_16BIT:
-                ShortBuffer audioBufferShort = buffer.asShortBuffer();
-                read = record.read(buffer, readBufferSize);
-                for (int i = 0; i < (read / 2); i++) {
-                    short s = audioBufferShort.get(i);
-                    if(s> maxAmplitude.value){
-                        maxAmplitude.value = s;
-                    }
-                    s = (short) Math.min(Math.max(s * gain, Short.MIN_VALUE), Short.MAX_VALUE);
-                    audioBufferShort.put(i, s);
-                }
-                break;
-            case AudioFormat.ENCODING_PCM_FLOAT:
-                FloatBuffer audioBufferFloat = buffer.asFloatBuffer();
-                read = record.read(buffer, readBufferSize);
-                for(int i =0; i < read / 4; i++){
-                    float f = audioBufferFloat.get(i);
-                    if(f>maxAmplitude.value){
-                        maxAmplitude.value = (int) f;
-                    }
-                    f = (short) Math.min(Math.max(f * gain, Float.MIN_VALUE), Float.MAX_VALUE);
-                    audioBufferFloat.put(i, f);
-                }
+    static final class WavInfo{
+        int audioFormat;
+        int sampleRate;
+        int channelCount;
+        long dataOffset;
+        long dataSize;
+        /** Size of the sample data according to the header, which may be 0 or out of date in an interrupted recording. */
+        long declaredDataSize;
+    }
+
+    /**
+     * Reads the header of a RIFF or RF64 WAV file by walking its chunks up to the data chunk. In RF64 files, the
+     * size of the data chunk is taken from the ds64 chunk. A data chunk declaring zero size, which is what a
+     * recording stopped before its first header checkpoint leaves behind, is taken to run to the end of the file.
+     * @param fChannel channel of the WAV file. Its position is left at the start of the sample data.
+     */
+    static WavInfo readWavHeader(FileChannel fChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        fChannel.position(0);
+        readFully(fChannel, header, 12);
+        int riffId = header.getInt(0);
+        if((riffId != RIFF && riffId != RF64) || header.getInt(8) != 0x45564157){ // "WAVE"
+            throw new IOException("Not a WAV file");
+        }
+        WavInfo info = new WavInfo();
+        short formatTag = 0;
+        short bitDepth = 0;
+        long ds64DataSize = -1;
+        long position = 12;
+        while(true){
+            fChannel.position(position);
+            readFully(fChannel, header, 8);
+            int chunkId = header.getInt(0);
+            long chunkSize = header.getInt(4) & 0xFFFFFFFFL;
+            if(chunkId == 0x20746D66){ // "fmt "
+                readFully(fChannel, header, 16);
+                formatTag = header.getShort(0);
+                info.channelCount = header.getShort(2);
+                info.sampleRate = header.getInt(4);
+                bitDepth = header.getShort(14);
+            }
+            else if(chunkId == DS64 && riffId == RF64){
+                readFully(fChannel, header, 16);
+                ds64DataSize = header.getLong(8);
+            }
+            else if(chunkId == 0x61746164){ // "data"
+                if(chunkSize == RIFF_MAX_SIZE && ds64DataSize >= 0) chunkSize = ds64DataSize;
+                info.declaredDataSize = chunkSize;
+                info.dataOffset = position + 8;
+                long available = fChannel.size() - info.dataOffset;
+                info.dataSize = (chunkSize == 0 || chunkSize > available) ? available : chunkSize;
                 break;
+            }
+            position += 8 + chunkSize + (chunkSize & 1);
         }
+        if(formatTag == 1 && bitDepth == 8) info.audioFormat = AudioFormat.ENCODING_PCM_8BIT;
+        else if(formatTag == 1 && bitDepth == 16) info.audioFormat = AudioFormat.ENCODING_PCM_16BIT;
+        else if(formatTag == 3 && bitDepth == 32) info.audioFormat = AudioFormat.ENCODING_PCM_FLOAT;
+        else throw new IOException("Unsupported WAV format " + formatTag + " with " + bitDepth + " bits per sample");
+        fChannel.position(info.dataOffset);
+        return info;
     }
 
-    static abstract class AudioConverterThread extends Thread{
-        private ByteArrayInputStream bytesIn;
-        private ReadableByteChannel readChannel;
-        private MediaCodec codec;
-        private MediaMuxer muxer;
-        private int audioTrackIndex;
-        private boolean inputEndofStream;
-        private boolean outputEndofStream;
-        private final long TIMEOUT = 5000;
-        private long presentationTimeUs;
-        private MediaCodec.BufferInfo info;
-        private MediaFormat outputformat;
-        private int bufferIndex;
-        private long lastPresentationTimeUs;
-        short progressRate;
-        short lastProgress;
-        private long totalTime;
-
-        private byte[] audioData;
-        private int sampleRate;
-        private int bitRate;
-        private int channelCount;
-        private String saveDirectory;
-        private String name;
-
-        /**
-         *
-         * @param group Group this thread belongs to
-         * @param name  Basename of the audio file
-         * @param audioData Array containing audio data to be put into the encoder
-         * @param sampleRate preferred sample rate
-         * @param bitRate preferred bit rate for output
-         * @param saveDirectory Location where new file with encoded will be saved
-         */
-        AudioConverterThread(ThreadGroup group,
-                             String name,
-                             byte[] audioData,
-                             int sampleRate,
-                             int bitRate,
-                             int channelCount,
-                             String saveDirectory) {
-            super(group, name);
-            this.name = name;
-            this.audioData = audioData;
-            this.sampleRate = sampleRate;
-            this.bitRate = bitRate;
-            this.channelCount = channelCount;
-            this.saveDirectory = saveDirectory;
+    /**
+     * Fixes the header of a WAV file written by {@link #writeWavHeader(FileChannel, int, int, int)} whose recording
+     * was interrupted before the sizes were finalized, so that it covers all the sample data in the file. The data
+     * itself is neither copied nor moved. A file whose size is a whole number of extents was preallocated by
+     * {@link MappedWavFileSink}, and zero bytes in its last extent past the last header checkpoint are cut off as
+     * never written. Other files keep all their data up to the last whole frame, including any silence at the end.
+     * @return whether the file had to be repaired
+     */
+    static boolean repairWav(FileChannel fChannel) throws IOException {
+        WavInfo info = readWavHeader(fChannel);
+        if(info.dataOffset != WAV_HEADER_SIZE) throw new IOException("WAV header wasn't written by LM AudioSpy");
+        int frameSize = bytesPerSample(info.audioFormat) * info.channelCount;
+        long size = fChannel.size();
+        long available = size - info.dataOffset;
+        // A finalized file, possibly with the pad byte of an odd sized data chunk.
+        if(info.declaredDataSize > 0 && available - info.declaredDataSize == (info.declaredDataSize & 1)) return false;
+
+        long dataSize = available - available % frameSize;
+        if(size % MappedWavFileSink.EXTENT_SIZE == 0){
+            long checkpointed = Math.min(info.declaredDataSize, available);
+            long preallocated = Math.max(info.dataOffset + checkpointed, size - MappedWavFileSink.EXTENT_SIZE);
+            long written = findEndOfData(fChannel, preallocated, size) - info.dataOffset;
+            dataSize = Math.min((written + frameSize - 1) / frameSize * frameSize, dataSize);
         }
+        long end = info.dataOffset + dataSize + (dataSize & 1);
+        if(dataSize == info.declaredDataSize && size == end) return false;
+
+        if(size > end) fChannel.truncate(end);
+        // RIFF chunks are padded to an even size.
+        else if(size < end) writeFullyAt(fChannel, ByteBuffer.wrap(new byte[1]), end - 1);
+        writeWavSizes(fChannel, ByteBuffer.allocate(8), dataSize);
+        return true;
+    }
 
-        @Override
-        public final void run() {
-            try {
-                bytesIn = new ByteArrayInputStream(audioData);
-                readChannel = Channels.newChannel(bytesIn);
-                totalTime = ((long)(audioData.length)/2) * 1000000 / sampleRate;
-                File m4aFile = new File(saveDirectory, name + ".m4a");
-                MediaCodecList codecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
-
-                outputformat = new MediaFormat();
-                outputformat.setString(MediaFormat.KEY_MIME, MediaFormat.MIMETYPE_AUDIO_AAC);
-
-                outputformat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-                outputformat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, channelCount);
-                outputformat.setInteger(MediaFormat.KEY_SAMPLE_RATE, sampleRate);
-                //outputformat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-                //outputformat.setInteger(MediaFormat.KEY_AAC_SBR_MODE, 0);
-                Log.i(LOG, "channel count=" + channelCount);
-
-                codec = MediaCodec.createByCodecName(codecList.findEncoderForFormat(outputformat));
-                Log.i(LOG, codec.getName());
-                codec.configure(outputformat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-                Log.i(LOG, codec.getOutputFormat().toString());
-
-                muxer = new MediaMuxer(m4aFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                audioTrackIndex = 0;
-                inputEndofStream = false;
-                outputEndofStream = false;
-                presentationTimeUs = 0;
-                lastPresentationTimeUs = 0;
-                info = new MediaCodec.BufferInfo();
-                codec.start();
-
-                while (!inputEndofStream && !outputEndofStream) {
-                    bufferIndex = -1;
-                    while (!inputEndofStream) {
-                        bufferIndex = codec.dequeueInputBuffer(TIMEOUT);
-                        if (bufferIndex == -1) break;
-                        ByteBuffer input = codec.getInputBuffer(bufferIndex);
-                        int read = readChannel.read(input);
-                        if (read == -1) {
-                            Log.i(LOG, "encoder input reached end of stream");
-                            codec.queueInputBuffer(bufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                            inputEndofStream = true;
-                            readChannel.close();
-                        } else {
-                            codec.queueInputBuffer(bufferIndex, 0, read, presentationTimeUs, 0);
-                            /*
-                            Sample rate is the number of individual data recorded in a second.
-                            One sample was acquired as short data and thus it is equivalent to 2 bytes of data.
-                            */
-                            presentationTimeUs += (((long) read) / 2) * 1000000 / sampleRate;
-                        }
-                    }
-                    bufferIndex = -1;
-                    while (true) {
-                        bufferIndex = codec.dequeueOutputBuffer(info, TIMEOUT);
-                        if (bufferIndex >= 0) {
-                            ByteBuffer output = codec.getOutputBuffer(bufferIndex);
-                            if (output != null && info.presentationTimeUs > lastPresentationTimeUs) {
-                                muxer.writeSampleData(audioTrackIndex, output, info);
-                                progressRate = (short) (((double)info.presentationTimeUs/(double)totalTime)*100);
-                                if(progressRate>lastProgress) {
-                                    updateConversionProgress();
-                                }
-                                lastProgress = progressRate;
-                            }
-                            codec.releaseOutputBuffer(bufferIndex, false);
-                            lastPresentationTimeUs = info.presentationTimeUs;
-                        } else if (bufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+    /**
+     * @return position after the last nonzero byte between start and end, or start if there is none
+     */
+    private static long findEndOfData(FileChannel fChannel, long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while(end > start){
+            int length = (int) Math.min(buffer.capacity(), end - start);
+            long position = end - length;
+            buffer.clear().limit(length);
+            while(buffer.hasRemaining()){
+                if(fChannel.read(buffer, position + buffer.position()) == -1) throw new IOException("Unexpected end of WAV file");
+            }
+            for(int i = length - 1; i >= 0; i--){
+                if(buffer.get(i) != 0) return position + i + 1;
+            }
+            end = position;
+        }
+        return start;
+    }
+
+    private static void readFully(FileChannel fChannel, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear().limit(length);
+        while(buffer.hasRemaining()){
+            if(fChannel.read(buffer) == -1) throw new IOException("Unexpected end of WAV file");
+        }
+    }
+
+    static int bytesPerSample(int encoding){
+        switch(encoding){
+            case AudioFormat.ENCODING_PCM_8BIT:
+                return 1;
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                return 4;
+            default:
+                return 2;
+        }
+    }
+
+    /**
+     * Reads audio data and applies gain.
+     * @param buffer            buffer to store recorded audio
+     * @param view              view of buffer made by {@link GainKernel#createView(int, ByteBuffer)}
+     * @param record            source used to read audio data
+     * @param readBufferSize    size of buffer specified in creating the source
+     * @param gainKernel        kernel created for the encoding of the source, applying the level of gain
+     * @param meter             receives the levels of the block after gain
+     * @return number of bytes read, or a negative error code from the source
+     */
+    static int readAudioApplyGain(ByteBuffer buffer, Buffer view, PcmSource record, int readBufferSize, GainKernel gainKernel, LevelMeter meter){
+        int read = record.read(buffer, readBufferSize);
+        // Buffers are reused between reads so only expose what was read in this block.
+        buffer.limit(Math.max(read, 0));
+        if(read > 0) gainKernel.apply(buffer, view, meter);
+        return read;
+    }
+
+    /**
+     * Encodes raw PCM data stored in a file, such as a spool or the sample data of a WAV file, and saves it as
+     * name.m4a in saveDirectory. Segments of the audio are encoded on several cores, straight from the file so
+     * memory use doesn't grow with the length of the audio.
+     * @param rawOffset position of the audio data in rawFile
+     * @param rawLength number of bytes of audio data
+     * @param sampleRate sample rate of the audio data
+     * @param bitRate preferred bit rate for output
+     * @param encoding PCM encoding of the audio data
+     * @param encoders most encoders used at the same time
+     * @param workDirectory private directory for the encoded segments waiting to be stitched
+     * @param listener told about the progress from the encoder threads
+     */
+    static void convertToM4a(File rawFile, long rawOffset, long rawLength, int sampleRate, int bitRate, int channelCount,
+                             int encoding, String saveDirectory, String name, int encoders, File workDirectory,
+                             ParallelAacConverter.ProgressListener listener) throws IOException {
+        File m4aFile = new File(saveDirectory, name + ".m4a");
+        final MediaMuxer muxer = new MediaMuxer(m4aFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            new ParallelAacConverter(MediaCodecAacEncoder.FACTORY, encoders).convert(rawFile, rawOffset, rawLength,
+                    sampleRate, channelCount, encoding, bitRate, workDirectory, new ParallelAacConverter.Track() {
+                        private int audioTrackIndex;
+
+                        @Override
+                        public void start(MediaFormat format) {
                             /*
-                            getOutputFormat is called here since codec's outputformat is only completely initialized after the first encoding.
-                            Code Specific Data is added to the new format. Using MediaMuxer will throw an exception for having missing CSD in output format.
+                            Code Specific Data is in the format the encoder reports after encoding.
+                            Using MediaMuxer will throw an exception for having missing CSD in output format.
                              */
-                            Log.i(LOG, codec.getOutputFormat().toString());
-                            audioTrackIndex = muxer.addTrack(codec.getOutputFormat());
+                            Log.i(LOG, format.toString());
+                            audioTrackIndex = muxer.addTrack(format);
                             muxer.start();
-                        } else break;
-                    }
-                    if (info.flags == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
-                        outputEndofStream = true;
-                        Log.i(LOG, "encoder ouput reached end of stream");
-                    }
+                        }
+
+                        @Override
+                        public void writeAccessUnit(ByteBuffer accessUnit, long presentationTimeUs) {
+                            info.set(accessUnit.position(), accessUnit.remaining(), presentationTimeUs,
+                                    MediaCodec.BUFFER_FLAG_KEY_FRAME);
+                            muxer.writeSampleData(audioTrackIndex, accessUnit, info);
+                        }
+                    }, listener);
+            muxer.stop();
+            Log.i(LOG, "sucessfully converted raw PCM data to M4A and saved");
+        }finally {
+            muxer.release();
+        }
+    }
+
+    /**
+     * Configures an AAC encoder. Float audio is given to the encoder as float on Android 7.0 and later if the
+     * encoder accepts it. Everything else is given to it as 16-bit PCM.
+     * @param encoding encoding of the recorded audio
+     * @return the encoding the encoder expects its input in
+     */
+    static int configureEncoder(MediaCodec codec, MediaFormat format, int encoding){
+        return configureEncoder(codec, format, encoding, null);
+    }
+
+    /**
+     * Configures an AAC encoder for asynchronous mode.
+     * @param callback callback set before each attempt to configure, as asynchronous mode requires, or null
+     */
+    static int configureEncoder(MediaCodec codec, MediaFormat format, int encoding, MediaCodec.Callback callback){
+        if(encoding == AudioFormat.ENCODING_PCM_FLOAT && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N){
+            format.setInteger(MediaFormat.KEY_PCM_ENCODING, AudioFormat.ENCODING_PCM_FLOAT);
+            try {
+                if(callback != null) codec.setCallback(callback);
+                codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                MediaFormat inputFormat = codec.getInputFormat();
+                if(inputFormat.containsKey(MediaFormat.KEY_PCM_ENCODING)
+                        && inputFormat.getInteger(MediaFormat.KEY_PCM_ENCODING) == AudioFormat.ENCODING_PCM_FLOAT){
+                    return AudioFormat.ENCODING_PCM_FLOAT;
                 }
-                muxer.stop();
-                muxer.release();
-                codec.stop();
-                codec.release();
-                progressRate = 100;
-                updateConversionProgress();
-                onFinished();
-                Log.i(LOG, "sucessfully converted raw PCM data to M4A and saved");
-            }catch(IOException e){
-                Log.e(LOG, "IOException in conversion of audio to M4A", e);
             }catch(Exception e){
-                Log.e(LOG, "Exception in conversion of audio to M4A", e);
+                Log.i(LOG, codec.getName() + " doesn't accept float input");
             }
+            codec.reset();
+            format.setInteger(MediaFormat.KEY_PCM_ENCODING, AudioFormat.ENCODING_PCM_16BIT);
         }
+        if(callback != null) codec.setCallback(callback);
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        return AudioFormat.ENCODING_PCM_16BIT;
+    }
 
-        void updateConversionProgress(){}
+    /**
+     * Copies PCM data from src to dst, converting it to 16-bit if the encodings differ. Copies as many whole
+     * samples as fit and advances the position of both buffers.
+     * @return number of bytes put into dst
+     */
+    static int convertPcm(ByteBuffer src, int srcEncoding, ByteBuffer dst, int dstEncoding){
+        if(srcEncoding == dstEncoding){
+            int length = Math.min(src.remaining(), dst.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + length);
+            dst.put(src);
+            src.limit(limit);
+            return length;
+        }
+        if(dstEncoding != AudioFormat.ENCODING_PCM_16BIT){
+            throw new IllegalArgumentException("Unacceptable encoding");
+        }
+        src.order(ByteOrder.LITTLE_ENDIAN);
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        int samples = Math.min(src.remaining() / bytesPerSample(srcEncoding), dst.remaining() / 2);
+        if(srcEncoding == AudioFormat.ENCODING_PCM_FLOAT){
+            for(int i = 0; i < samples; i++){
+                float f = src.getFloat() * Short.MAX_VALUE;
+                dst.putShort((short) (f > Short.MAX_VALUE ? Short.MAX_VALUE : (f < Short.MIN_VALUE ? Short.MIN_VALUE : f)));
+            }
+        }
+        else{
+            for(int i = 0; i < samples; i++){
+                dst.putShort((short) (((src.get() & 0xFF) - 128) << 8));
+            }
+        }
+        return samples * 2;
+    }
 
-        void onFinished(){}
+    /**
+     * Reads the samples between position and limit of src as floats in the range -1 to 1.
+     * @return number of samples read into dst
+     */
+    static int decodePcm(ByteBuffer src, int encoding, float[] dst){
+        src.order(ByteOrder.LITTLE_ENDIAN);
+        int samples = Math.min(src.remaining() / bytesPerSample(encoding), dst.length);
+        switch(encoding){
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                for(int i = 0; i < samples; i++) dst[i] = src.getFloat();
+                break;
+            case AudioFormat.ENCODING_PCM_8BIT:
+                for(int i = 0; i < samples; i++) dst[i] = ((src.get() & 0xFF) - 128) / 128f;
+                break;
+            default:
+                for(int i = 0; i < samples; i++) dst[i] = src.getShort() / 32768f;
+                break;
+        }
+        return samples;
+    }
+
+    /**
+     * Writes count float samples to dst in the given encoding, saturating samples beyond full scale.
+     */
+    static void encodePcm(float[] src, int count, int encoding, ByteBuffer dst){
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        switch(encoding){
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                for(int i = 0; i < count; i++) dst.putFloat(src[i]);
+                break;
+            case AudioFormat.ENCODING_PCM_8BIT:
+                for(int i = 0; i < count; i++){
+                    int v = Math.round(src[i] * 128f);
+                    dst.put((byte) ((v > 127 ? 127 : (v < -128 ? -128 : v)) + 128));
+                }
+                break;
+            default:
+                for(int i = 0; i < count; i++){
+                    int v = Math.round(src[i] * 32768f);
+                    dst.putShort((short) (v > Short.MAX_VALUE ? Short.MAX_VALUE : (v < Short.MIN_VALUE ? Short.MIN_VALUE : v)));
+                }
+                break;
+        }
     }
 
     static MediaCodec codec;
     private static int sampleRate;
+    private static int codecBitRate;
+    private static int codecChannelCount;
+    private static int recordEncoding;
+    private static int codecInputEncoding;
+    private static int codecInputFrameSize;
 
-    static void prepareCodec(int bitRate, int sampleRate, int channelCount){
+    /**
+     * Takes the encoder {@link CodecManager} prepared ahead, or creates one if the format has changed.
+     * @param encoding encoding of the audio that will be recorded
+     */
+    static void prepareCodec(int bitRate, int sampleRate, int channelCount, int encoding){
         try {
             AudioProcessingTools.sampleRate = sampleRate;
+            codecBitRate = bitRate;
+            codecChannelCount = channelCount;
+            recordEncoding = encoding;
 
-            MediaCodecList codecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
-
-            MediaFormat outputformat = new MediaFormat();
-            outputformat.setString(MediaFormat.KEY_MIME, MediaFormat.MIMETYPE_AUDIO_AAC);
-
-            outputformat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-            outputformat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, channelCount);
-            outputformat.setInteger(MediaFormat.KEY_SAMPLE_RATE, sampleRate);
-            //outputformat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-            //outputformat.setInteger(MediaFormat.KEY_AAC_SBR_MODE, 0);
-
-            codec = MediaCodec.createByCodecName(codecList.findEncoderForFormat(outputformat));
+            CodecManager.Encoder encoder = CodecManager.obtainEncoder(bitRate, sampleRate, channelCount, encoding);
+            codec = encoder.codec;
             Log.i(LOG, codec.getName());
-            codec.configure(outputformat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codecInputEncoding = encoder.inputEncoding;
+            codecInputFrameSize = bytesPerSample(codecInputEncoding) * channelCount;
             Log.i(LOG, codec.getOutputFormat().toString());
         }
         catch(IOException e){
@@ -352,21 +527,43 @@ final class AudioProcessingTools {
 
     private static MediaMuxer muxer;
     private static int audioTrackIndex;
-    private static long presentationTimeUs;
     private static long lastPresentationTimeUs;
     private static Handler codecHandler;
+    private static final int MSG_INPUT_BUFFER = 1;
+    private static final int MSG_FEED = 2;
+    // The rest is only used on the codec thread.
+    private static PcmBlockQueue inputQueue;
+    /** Input buffers the codec has offered that haven't been filled yet. */
+    private static final ArrayDeque<Integer> freeInputBuffers = new ArrayDeque<>();
+    private static long inputFrames;
+    private static boolean endOfStreamQueued;
 
-    static void initAudioConversion(final String saveDirectory, final String name){
+    /**
+     * Starts the encoder prepared by {@link #prepareCodec(int, int, int, int)}, saving to name.m4a.
+     * @param pool pool the buffers given to {@link #addData(ByteBuffer)} are taken from
+     */
+    static void initAudioConversion(final String saveDirectory, final String name, AudioBufferPool pool){
         try {
             recordingStopped = false;
             File m4aFile = new File(saveDirectory, name + ".m4a");
             muxer = new MediaMuxer(m4aFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
             audioTrackIndex = 0;
-            presentationTimeUs = 0;
             lastPresentationTimeUs = 0;
+            inputQueue = new PcmBlockQueue(pool);
+            freeInputBuffers.clear();
+            inputFrames = 0;
+            endOfStreamQueued = false;
             HandlerThread coderThread = new HandlerThread("codec thread");
             coderThread.start();
-            codecHandler = new Handler(coderThread.getLooper());
+            // Messages come from a pool, so neither new data nor offered input buffers allocate anything.
+            codecHandler = new Handler(coderThread.getLooper(), new Handler.Callback() {
+                @Override
+                public boolean handleMessage(Message msg) {
+                    if(msg.what == MSG_INPUT_BUFFER) freeInputBuffers.add(msg.arg1);
+                    feedInput();
+                    return true;
+                }
+            });
             Log.i(LOG, "successfully prepared codec handler");
             codec.setCallback(new AudioConversionCallback());
             codec.start();
@@ -377,61 +574,59 @@ final class AudioProcessingTools {
             Log.e(LOG, "Exception in initializing encoding", e);
         }
     }
-    private static ByteBuffer rawAudioBuffer;
-
-    static void addData(final ByteBuffer buffer){
-        codecHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (rawAudioBuffer != null) {
-                    ByteBuffer newBuffer = ByteBuffer.allocateDirect(rawAudioBuffer.remaining() + buffer.remaining());
-                    newBuffer.put(rawAudioBuffer).put(buffer);
-                    rawAudioBuffer = newBuffer;
-                }
-                else {
-                    rawAudioBuffer = ByteBuffer.allocateDirect(buffer.remaining());
-                    rawAudioBuffer.put(buffer);
-                }
+
+    /**
+     * @return the encoding data given to {@link #addData(ByteBuffer)} has to be in
+     */
+    static int getCodecInputEncoding(){
+        return codecInputEncoding;
+    }
+
+    /**
+     * Queues a block of audio data for the encoder. The block is copied into codec input buffers on the codec
+     * thread and then released back to the pool given to {@link #initAudioConversion(String, String, AudioBufferPool)}.
+     */
+    static void addData(ByteBuffer buffer){
+        inputQueue.add(buffer);
+        codecHandler.sendEmptyMessage(MSG_FEED);
+    }
+
+    /**
+     * Fills the input buffers the codec has offered with queued data, and queues the end of stream once the
+     * recording has stopped and everything was drained. Runs on the codec thread.
+     */
+    private static void feedInput(){
+        while(!endOfStreamQueued && !freeInputBuffers.isEmpty()){
+            // Read before draining, so everything added before the recording stopped is drained first.
+            boolean stopped = recordingStopped;
+            long presentationTimeUs = inputFrames * 1000000 / sampleRate;
+            if(inputQueue.isEmpty()){
+                if(!stopped) return;
+                codec.queueInputBuffer(freeInputBuffers.poll(), 0, 0, presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                endOfStreamQueued = true;
+                return;
             }
-        });
+            int index = freeInputBuffers.poll();
+            ByteBuffer input = codec.getInputBuffer(index);
+            int read = 0;
+            if(input != null){
+                // Whole frames only, so the presentation times stay exact.
+                input.limit(input.position() + input.remaining() / codecInputFrameSize * codecInputFrameSize);
+                read = inputQueue.drainTo(input);
+            }
+            codec.queueInputBuffer(index, 0, read, presentationTimeUs, 0);
+            inputFrames += read / codecInputFrameSize;
+        }
     }
 
-    private static boolean recordingStopped;
+    private static volatile boolean recordingStopped;
     private static OnEncodingFinishedListener finishedListener;
 
     private static final class AudioConversionCallback extends MediaCodec.Callback{
 
         @Override
-        public synchronized void onInputBufferAvailable(@NonNull final MediaCodec codec, final int index) {
-            codecHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    if (rawAudioBuffer != null) {
-                        ByteBuffer input = codec.getInputBuffer(index);
-                        rawAudioBuffer.rewind();
-                        int read = 0;
-                        if (input != null) {
-                            while (input.hasRemaining() && rawAudioBuffer.hasRemaining()) {
-                                input.put(rawAudioBuffer.get());
-                                read++;
-                            }
-                        }
-                        rawAudioBuffer = rawAudioBuffer.slice();
-                        if (read > 0) {
-                            codec.queueInputBuffer(index, 0, read, presentationTimeUs, 0);
-                            /*
-                            Sample rate is the number of individual data recorded in a second.
-                            One sample was acquired as short data and thus it is equivalent to 2 bytes of data.
-                            */
-                            presentationTimeUs += (((long) read) / 2) * 1000000 / sampleRate;
-                        } else if (recordingStopped) {
-                            codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        } else codec.queueInputBuffer(index, 0, 0, 0, 0);
-                    } else {
-                        codec.queueInputBuffer(index, 0, 0, 0, 0);
-                    }
-                }
-            });
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            codecHandler.obtainMessage(MSG_INPUT_BUFFER, index, 0).sendToTarget();
         }
 
         @Override
@@ -445,11 +640,15 @@ final class AudioProcessingTools {
                     }
                     codec.releaseOutputBuffer(index, false);
                     lastPresentationTimeUs = info.presentationTimeUs;
-                    if (info.flags == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         muxer.stop();
                         muxer.release();
                         muxer = null;
                         codec.stop();
+                        codec.release();
+                        if(AudioProcessingTools.codec == codec) AudioProcessingTools.codec = null;
+                        // Ready for the next recording before it's started.
+                        CodecManager.prepareInBackground(codecBitRate, sampleRate, codecChannelCount, recordEncoding);
                         finishedListener.onEncodingFinished();
                     }
                 }
@@ -475,6 +674,7 @@ final class AudioProcessingTools {
 
     static void notifyRecordingEnded(){
         recordingStopped = true;
+        codecHandler.sendEmptyMessage(MSG_FEED);
     }
 
     interface OnEncodingFinishedListener{
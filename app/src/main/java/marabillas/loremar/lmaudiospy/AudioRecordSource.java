@@ -0,0 +1,82 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PcmSource reading from the microphone through AudioRecord.
+ */
+
+final class AudioRecordSource implements PcmSource {
+    private final AudioRecord record;
+
+    AudioRecordSource(RecordingSettings settings, int readBufferSize){
+        record = new AudioRecord(MediaRecorder.AudioSource.MIC, settings.sampleRate, settings.channelConfig, settings.encodingFormat, readBufferSize);
+        /*int audioSessionId = record.getAudioSessionId();
+        if (NoiseSuppressor.isAvailable())
+            NoiseSuppressor.create(audioSessionId).setEnabled(true);
+        else Log.e(LOG, "noise suppressor is not supported");
+        if (AcousticEchoCanceler.isAvailable())
+            AcousticEchoCanceler.create(audioSessionId).setEnabled(true);
+        else Log.e(LOG, "acoustic echo canceler is not supported");
+        if (AutomaticGainControl.isAvailable())
+            AutomaticGainControl.create(audioSessionId).setEnabled(true);
+        else Log.e(LOG, "automatic gain control is not supported");*/
+    }
+
+    @Override
+    public int getAudioFormat() {
+        return record.getAudioFormat();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return record.getSampleRate();
+    }
+
+    @Override
+    public int getChannelCount() {
+        return record.getChannelCount();
+    }
+
+    @Override
+    public void startRecording() {
+        record.startRecording();
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+        return record.read(buffer, sizeInBytes);
+    }
+
+    @Override
+    public void stop() {
+        record.stop();
+    }
+
+    @Override
+    public void release() {
+        record.release();
+    }
+}
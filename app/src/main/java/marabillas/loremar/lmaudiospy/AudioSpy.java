@@ -53,6 +53,8 @@ public class AudioSpy extends Activity{
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         Log.i(LOG_TAG, "AudioSpy has started");
+        RecordingJournal.recoverInBackground(getApplicationContext());
+        CodecManager.warmUpInBackground(RecordingSettings.fromPreferences(getSharedPreferences("settings", 0)));
         if(getFragmentManager().findFragmentById(android.R.id.content) == null){
             try{
                 getFragmentManager().beginTransaction().add(android.R.id.content, new MainMenuFragment()).commit();
@@ -211,7 +213,7 @@ public class AudioSpy extends Activity{
                 return AudioFormat.ENCODING_PCM_8BIT;
             case "PCM 16-BIT":
                 return AudioFormat.ENCODING_PCM_16BIT;
-            case "PC 32_BIT":
+            case "PCM 32-BIT":
                 return AudioFormat.ENCODING_PCM_FLOAT;
             default:
                 return AudioFormat.ENCODING_PCM_16BIT;
@@ -24,9 +24,7 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
-import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaRecorder;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -40,15 +38,8 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.WritableByteChannel;
 
 /**
  * Created by Loremar Marabillas on 24/12/2017.
@@ -84,26 +75,28 @@ public final class AudioSpyFragment extends Fragment implements View.OnTouchList
     private SharedPreferences prefs;
     private String saveDirectory;
     private String recordFilenameBase;
-    private FileOutputStream audioOut;
-    private FileChannel fileChannel;
-    private ByteArrayOutputStream bytesOut;
-    private WritableByteChannel writeChannel;
-    private boolean saveToWAV;
-    private boolean saveToM4A;
+    private PcmSpoolSink spoolSink;
+    private RecordingJournal liveEncodingJournal;
 
     //Audio recording and processing-specific fields
-    private int sampleRate;
-    private int channelConfig;
-    private int encodingFormat;
-    private int gain;
-    private int bitRate;
-    private int channelCount;
-    private AudioRecord audioRec;
-    private ByteBuffer audioBuffer;
+    private RecordingSettings settings;
+    private RecordingSession session;
     private int readBufferSize;
     boolean isRecording = false;
-    private ThreadGroup encoderThreads;
-    private int whenToConvertAudioId;
+    private ConversionScheduler scheduler;
+    private final StringBuilder conversionProgress = new StringBuilder();
+    private final ProgressChannel.Listener conversionProgressListener = new ProgressChannel.Listener() {
+        @Override
+        public void onProgressChanged() {
+            conversionProgress.setLength(0);
+            for (ConversionScheduler.Conversion conversion : scheduler.getConversions()) {
+                conversionProgress.append("Converting audio to M4A...");
+                conversion.appendProgress(conversionProgress);
+                conversionProgress.append('\n');
+            }
+            convertProgressText.setText(conversionProgress.toString());
+        }
+    };
     
     private static final String LOG = "Loremar_Logs";
 
@@ -141,17 +134,9 @@ public final class AudioSpyFragment extends Fragment implements View.OnTouchList
             });
             gestureDetector.setOnDoubleTapListener(this);
 
-            gain = prefs.getInt("gain", 20);
-            sampleRate = Integer.parseInt(prefs.getString("sample_rate", "44100"));
-            channelConfig = AudioSpy.getPrefChannelConfig(prefs);
-            encodingFormat = AudioSpy.getPrefEncodingFormat(prefs);
-            bitRate = Integer.parseInt(prefs.getString("bit_rate", "256000"));
-            switch(channelConfig){
-                case AudioFormat.CHANNEL_IN_MONO: channelCount = 1; break;
-                case AudioFormat.CHANNEL_IN_STEREO: channelCount = 2; break;
-            }
+            settings = RecordingSettings.fromPreferences(prefs);
 
-            readBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, encodingFormat);
+            readBufferSize = AudioRecord.getMinBufferSize(settings.sampleRate, settings.channelConfig, settings.encodingFormat);
             Log.i(LOG, "Buffer Size=" + readBufferSize);
             if (readBufferSize <= 0){
                 Log.e(LOG, "Device doesn't support specified parameters.");
@@ -191,19 +176,13 @@ public final class AudioSpyFragment extends Fragment implements View.OnTouchList
             };
 
             convertProgressText = view.findViewById(R.id.convertProgressText);
-            encoderThreads = new ThreadGroup("Encoders");
+            scheduler = ConversionScheduler.get(main);
 
             key = view.findViewById(R.id.key);
             key.setOnTouchListener(this);
             keyXInitial = key.getX();
             swipeText = view.findViewById(R.id.swipe_instruction);
             lock = view.findViewById(R.id.lock);
-
-            int prefOutformat = prefs.getInt("output_format", R.id.wavAndM4a);
-            AudioSpy.identifyIfSavetoWavOrM4a(prefOutformat);
-            saveToWAV = AudioSpy.isSaveToWav();
-            saveToM4A = AudioSpy.isSaveToM4a();
-            whenToConvertAudioId = prefs.getInt("when_to_convert", R.id.afterRecording);
         }
 
         setRetainInstance(true);
@@ -218,10 +197,8 @@ public final class AudioSpyFragment extends Fragment implements View.OnTouchList
                 if(view.getId() == R.id.key){
                     if(unlocked) {
                         isRecording = false;
-                        if(audioRec != null) {
-                            audioRec.stop();
-                            audioRec.release();
-                            audioRec = null;
+                        if(session != null) {
+                            session.stop();
                         }
                         blinkHandler.removeCallbacks(redCircleBlinking);
                         getFragmentManager().popBackStack();
@@ -266,119 +243,80 @@ public final class AudioSpyFragment extends Fragment implements View.OnTouchList
     @Override
     public boolean onDoubleTap(MotionEvent motionEvent) {
         if(!isRecording){
+            long requestNanos = System.nanoTime();
+            recordFilenameBase = String.valueOf(System.currentTimeMillis());
+            File saveDir = new File(Environment.getExternalStorageDirectory(), "LM AudioSpy");
+            saveDirectory = prefs.getString("save_directory", saveDir.getAbsolutePath());
+            if (!AudioSpy.createValidFile(saveDirectory)) {
+                PopUpText.show("Failed to create directory", main.getApplicationContext());
+                getFragmentManager().popBackStack();
+                return true;
+            }
+
             doubleTapText.setText(R.string.doubletap_stop);
             recordingText.setVisibility(View.VISIBLE);
             redCircle.setVisibility(View.VISIBLE);
 
-            if(saveToM4A && whenToConvertAudioId == R.id.whileRecording) {
-                AudioProcessingTools.prepareCodec(bitRate, sampleRate, channelCount);
+            if(settings.isConvertWhileRecording()) {
+                AudioProcessingTools.prepareCodec(settings.bitRate, settings.m4aSampleRate, settings.channelCount, settings.encodingFormat);
                 AudioProcessingTools.setOnEncodingFinishedListener(this);
             }
 
             Log.i(LOG, "screen is double tapped for recording");
-            audioRec = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelConfig, encodingFormat, readBufferSize);
-            /*final int audioSessionId = audioRec.getAudioSessionId();
-            if(NoiseSuppressor.isAvailable()) NoiseSuppressor.create(audioSessionId).setEnabled(true);
-            if(AcousticEchoCanceler.isAvailable()) AcousticEchoCanceler.create(audioSessionId).setEnabled(true);
-            if(AutomaticGainControl.isAvailable()) AutomaticGainControl.create(audioSessionId).setEnabled(true);*/
-            audioRec.startRecording();
-
-            Thread recordingThread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        recordFilenameBase = String.valueOf(System.currentTimeMillis());
-                        File saveDir = new File(Environment.getExternalStorageDirectory(), "LM AudioSpy");
-                        saveDirectory = prefs.getString("save_directory", saveDir.getAbsolutePath());
-                        if (!AudioSpy.createValidFile(saveDirectory)) {
-                            isRecording = false;
-                            PopUpText.show("Failed to create directory", main.getApplicationContext());
-                            getFragmentManager().popBackStack();
-                            return;
-                        }
-                        if (saveToWAV) {
-                            File audioFile = new File(saveDirectory, recordFilenameBase + ".wav");
-                            audioOut = new FileOutputStream(audioFile);
-                            fileChannel = audioOut.getChannel();
-
-                            AudioProcessingTools.writeWavHeader(fileChannel, channelConfig, sampleRate, encodingFormat);
-                        }
-
-                        if (saveToM4A) {
-                            bytesOut = new ByteArrayOutputStream();
-                            if (whenToConvertAudioId == R.id.afterRecording) {
-                                writeChannel = Channels.newChannel(bytesOut);
-                            } else if (whenToConvertAudioId == R.id.whileRecording) {
-                                AudioProcessingTools.initAudioConversion(saveDirectory, recordFilenameBase);
-                            }
-                        }
-
-                        while (isRecording) {
-                            if (audioRec == null) {
-                                audioRec = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelConfig, encodingFormat, readBufferSize);
-                                audioRec.startRecording();
-                            }
-                            audioBuffer = ByteBuffer.allocateDirect(readBufferSize);
-                            audioBuffer.order(ByteOrder.LITTLE_ENDIAN);
-                            AudioProcessingTools.MaxAmplitude maxAmplitude = new AudioProcessingTools.MaxAmplitude(0);
-                            AudioProcessingTools.readAudioApplyGain(audioBuffer, audioRec, readBufferSize, gain, maxAmplitude);
-                            if (saveToWAV) fileChannel.write(audioBuffer);
-                            if (saveToM4A) {
-                                audioBuffer.rewind();
-                                if (whenToConvertAudioId == R.id.afterRecording) {
-                                    writeChannel.write(audioBuffer);
-                                } else if (whenToConvertAudioId == R.id.whileRecording) {
-                                    AudioProcessingTools.addData(audioBuffer);
-                                }
-                            }
-                        }
-                        if (saveToWAV) {
-                            fileChannel.close();
-                            updateLog("\nAudio successfully recorded and saved as " + recordFilenameBase + ".wav");
-                        }
-                        if (saveToM4A) {
-                            if (whenToConvertAudioId == R.id.whileRecording) {
-                                AudioProcessingTools.notifyRecordingEnded();
-                            }
-                            if (whenToConvertAudioId == R.id.afterRecording) {
-                                writeChannel.close();
-                                AudioProcessingTools.AudioConverterThread audioConverterThread = new AudioProcessingTools.AudioConverterThread(encoderThreads, recordFilenameBase, bytesOut.toByteArray(), sampleRate, bitRate, channelCount, saveDirectory) {
-                                    @Override
-                                    void updateConversionProgress() {
-                                        main.runOnUiThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                final StringBuilder logString = new StringBuilder();
-                                                logString.append("");
-                                                Thread[] threads = new Thread[encoderThreads.activeCount()];
-                                                encoderThreads.enumerate(threads);
-                                                for (Thread thread : threads) {
-                                                    if (((AudioProcessingTools.AudioConverterThread) thread).lastProgress < 100) {
-                                                        logString.append("Converting audio to M4A...").append(((AudioProcessingTools.AudioConverterThread) thread).progressRate).append("%\n");
-                                                    }
-                                                }
-                                                convertProgressText.setText(logString.toString());
-                                            }
-                                        });
-                                    }
-
-                                    @Override
-                                    void onFinished() {
-                                        updateLog("\nAudio successfully converted and saved as " + recordFilenameBase + ".m4a");
-                                    }
-                                };
-                                audioConverterThread.start();
-                            }
-                        }
+            final RecordingJournal journal = RecordingJournal.begin(main, settings, saveDirectory, recordFilenameBase,
+                    settings.isSegmented(), settings.isConvertAfterRecording() ? PcmSpoolSink.getSpoolDirectory(main) : null);
+            if (settings.isConvertWhileRecording()) {
+                journal.retain();
+                liveEncodingJournal = journal;
+            }
+            session = settings.createSession(new AudioRecordSource(settings, readBufferSize), readBufferSize, saveDirectory, recordFilenameBase);
+            session.setRequestTime(requestNanos);
+            if (settings.saveToWav) {
+                if (settings.isSegmented()) {
+                    session.addSink(settings.createSegmentedWavSink(saveDirectory, recordFilenameBase));
+                } else {
+                    session.addSink(settings.createWavSink(new File(saveDirectory, recordFilenameBase + ".wav")));
+                }
+            }
+            spoolSink = null;
+            if (settings.isConvertAfterRecording() && settings.isSegmented()) {
+                // Each segment is spooled to disk and queued for conversion as soon as it ends, so the M4A files of
+                // earlier segments are saved while recording goes on.
+                session.addSink(new ResamplingSink(createSegmentedSpoolSink(saveDirectory, recordFilenameBase, journal), settings.m4aSampleRate));
+            } else if (settings.isConvertAfterRecording()) {
+                spoolSink = new PcmSpoolSink(new File(PcmSpoolSink.getSpoolDirectory(main), recordFilenameBase + PcmSpoolSink.EXTENSION));
+                session.addSink(new ResamplingSink(spoolSink, settings.m4aSampleRate));
+            } else if (settings.isConvertWhileRecording()) {
+                session.addSink(new ResamplingSink(new LiveEncoderSink(saveDirectory, recordFilenameBase), settings.m4aSampleRate));
+            }
+            session.setOnSessionFinishedListener(new RecordingSession.OnSessionFinishedListener() {
+                // Copies of the fields are kept since the next recording may start before this one is done.
+                private final String name = recordFilenameBase;
+                private final String directory = saveDirectory;
+                private final PcmSpoolSink spool = spoolSink;
 
-                    } catch (IOException e) {
-                        Log.e(LOG, "IOException in recordingThread", e);
-                        isRecording = false;
+                @Override
+                public void onSessionFinished() {
+                    if (settings.saveToWav && settings.isSegmented()) {
+                        updateLog("\nAudio successfully recorded and saved as segments listed in " + name + "_wav.m3u");
+                    } else if (settings.saveToWav) {
+                        updateLog("\nAudio successfully recorded and saved as " + name + ".wav");
+                    }
+                    if (spool != null) {
+                        startConversion(name, spool.getFile(), directory, journal);
                     }
+                    journal.release();
+                }
+
+                @Override
+                public void onSessionFailed(Exception e) {
+                    Log.e(LOG, "Recording session failed", e);
+                    isRecording = false;
+                    journal.release();
                 }
             });
             isRecording = true;
-            recordingThread.start();
+            session.start();
             redCircleBlinking.run();
         }
         else {
@@ -388,14 +326,70 @@ public final class AudioSpyFragment extends Fragment implements View.OnTouchList
             redCircle.setVisibility(View.INVISIBLE);
 
             Log.i(LOG, "Screen is double tapped to stop recording");
-            audioRec.stop();
-            audioRec.release();
-            audioRec = null;
+            session.stop();
             isRecording = false;
         }
         return true;
     }
 
+    private PcmSink createSegmentedSpoolSink(final String directory, final String name, final RecordingJournal journal){
+        SegmentedSink.SegmentFactory factory = new SegmentedSink.SegmentFactory() {
+            @Override
+            PcmSink createSegment(int index) {
+                return new PcmSpoolSink(new File(PcmSpoolSink.getSpoolDirectory(main), SegmentedSink.segmentName(name, index) + PcmSpoolSink.EXTENSION));
+            }
+
+            @Override
+            String getSegmentFileName(int index) {
+                return SegmentedSink.segmentName(name, index) + ".m4a";
+            }
+
+            @Override
+            void discardSegment(int index, PcmSink segment) throws IOException {
+                segment.close();
+                File spool = ((PcmSpoolSink) segment).getFile();
+                if (!spool.delete()) Log.e(LOG, "Failed to delete unused spool " + spool);
+            }
+
+            @Override
+            void onSegmentClosed(int index, PcmSink segment) {
+                startConversion(SegmentedSink.segmentName(name, index), ((PcmSpoolSink) segment).getFile(), directory, journal);
+            }
+        };
+        return new SegmentedSink(factory, settings.segmentSeconds, settings.segmentBytes, new File(directory, name + "_m4a.m3u"));
+    }
+
+    /**
+     * @param spool   raw audio to convert, deleted once converted
+     * @param journal journal of the recording, which is kept until the conversion has finished
+     */
+    private void startConversion(final String name, File spool, String directory, final RecordingJournal journal){
+        journal.retain();
+        ConversionScheduler.Request request = ConversionScheduler.Request.forSpool(name, spool, directory, settings);
+        scheduler.submit(request, ConversionScheduler.PRIORITY_BACKGROUND, new ConversionScheduler.Listener() {
+            @Override
+            public void onConversionDone(ConversionScheduler.Conversion conversion, boolean converted) {
+                if (converted) {
+                    updateLog("\nAudio successfully converted and saved as " + name + ".m4a");
+                }
+                // After a failed conversion the journal is kept, so recovery tries again on the next start.
+                if (converted || conversion.isCancelled()) journal.release();
+            }
+        });
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        scheduler.getProgressChannel().addListener(conversionProgressListener);
+    }
+
+    @Override
+    public void onPause() {
+        scheduler.getProgressChannel().removeListener(conversionProgressListener);
+        super.onPause();
+    }
+
     @Override
     public boolean onDoubleTapEvent(MotionEvent motionEvent) {
         return false;
@@ -413,5 +407,9 @@ public final class AudioSpyFragment extends Fragment implements View.OnTouchList
     @Override
     public void onEncodingFinished() {
         updateLog("\nAudio successfully converted and saved as " + recordFilenameBase + ".m4a");
+        if (liveEncodingJournal != null) {
+            liveEncodingJournal.release();
+            liveEncodingJournal = null;
+        }
     }
 }
\ No newline at end of file
@@ -20,9 +20,11 @@
 package marabillas.loremar.lmaudiospy;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.view.View;
 
@@ -32,18 +34,89 @@ import java.util.List;
 /**
  * Created by Loremar on 16/02/2018.
  * AudioVisualizerView
+ * Draws the level of the recording as a scrolling waveform, or the output of a {@link SpectrumAnalyzer} as a
+ * spectrum or a scrolling spectrogram. The spectrogram is kept in a bitmap used as a ring: each new column is
+ * written over the oldest one and the bitmap is drawn in two parts, so scrolling never copies pixels.
  */
 
 public class AudioVisualizerView extends View {
+    static final int MODE_WAVEFORM = 0;
+    static final int MODE_SPECTRUM = 1;
+    static final int MODE_SPECTROGRAM = 2;
+    private static final int MODE_COUNT = 3;
+
     private Paint graphPaint;
     private List<Integer> graphData;
     private static final int VALUE_TO_HEIGHT_SCALE = 100;
+
+    private int mode = MODE_WAVEFORM;
+    private SpectrumAnalyzer analyzer;
+    private float[] column;
+    private long nextColumn;
+    private Bitmap spectrogram;
+    private int[] columnPixels;
+    private int spectrogramX;
+    private final int[] palette = new int[256];
+    private final Rect source = new Rect();
+    private final Rect destination = new Rect();
+    private final Paint bitmapPaint = new Paint();
+
     public AudioVisualizerView(Context context, AttributeSet attrs) {
         super(context, attrs);
         graphPaint = new Paint();
         graphPaint.setColor(Color.GREEN);
         graphPaint.setStrokeWidth(1);
         graphData = new ArrayList<>();
+        // Black through blue and red to yellow.
+        for(int i = 0; i < palette.length; i++){
+            float level = i / 255f;
+            float x = level * 3;
+            int red = (int) (255 * Math.min(1f, Math.max(0f, x - 1)));
+            int green = (int) (255 * Math.min(1f, Math.max(0f, x - 2)));
+            int blue = (int) (255 * (x < 1 ? x : Math.max(0f, 2 - x)));
+            palette[i] = Color.rgb(red, green, blue);
+        }
+    }
+
+    /**
+     * Source of the spectrum and spectrogram modes.
+     */
+    void setSpectrumAnalyzer(SpectrumAnalyzer analyzer){
+        this.analyzer = analyzer;
+        column = new float[analyzer.getBandCount()];
+        columnPixels = new int[analyzer.getBandCount()];
+        createSpectrogram(getWidth());
+    }
+
+    void setMode(int mode){
+        this.mode = mode;
+        if(analyzer != null) nextColumn = analyzer.getColumnCount();
+        invalidate();
+    }
+
+    int getMode(){
+        return mode;
+    }
+
+    /**
+     * Switches to the next mode, skipping the spectrum modes when there's no analyzer.
+     */
+    void nextMode(){
+        setMode(analyzer == null ? MODE_WAVEFORM : (mode + 1) % MODE_COUNT);
+    }
+
+    private void createSpectrogram(int width){
+        if(spectrogram != null) spectrogram.recycle();
+        spectrogram = null;
+        if(analyzer == null || width <= 0) return;
+        spectrogram = Bitmap.createBitmap(width, analyzer.getBandCount(), Bitmap.Config.ARGB_8888);
+        spectrogramX = 0;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        createSpectrogram(w);
     }
 
     void addValuetoGraph(int value){
@@ -55,6 +128,14 @@ public class AudioVisualizerView extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        if(analyzer != null && mode == MODE_SPECTRUM){
+            drawSpectrum(canvas);
+            return;
+        }
+        if(analyzer != null && mode == MODE_SPECTROGRAM && spectrogram != null){
+            drawSpectrogram(canvas);
+            return;
+        }
         int graphHeight = getHeight()/2;
         canvas.drawLine(0, graphHeight, getWidth(), graphHeight, graphPaint);
         if(!graphData.isEmpty()) {
@@ -68,4 +149,45 @@ public class AudioVisualizerView extends View {
             }
         }
     }
+
+    private void drawSpectrum(Canvas canvas){
+        long newest = analyzer.getColumnCount() - 1;
+        if(newest < 0 || !analyzer.readColumn(newest, column)) return;
+        int bands = column.length;
+        float barWidth = (float) getWidth() / bands;
+        int height = getHeight();
+        for(int b = 0; b < bands; b++){
+            graphPaint.setColor(palette[(int) (column[b] * 255)]);
+            canvas.drawRect(b * barWidth, height * (1 - column[b]), (b + 1) * barWidth - 1, height, graphPaint);
+        }
+        graphPaint.setColor(Color.GREEN);
+    }
+
+    private void drawSpectrogram(Canvas canvas){
+        int width = spectrogram.getWidth();
+        int bands = column.length;
+        long count = analyzer.getColumnCount();
+        if(count - nextColumn > SpectrumAnalyzer.HISTORY) nextColumn = count - SpectrumAnalyzer.HISTORY + 1;
+        for(; nextColumn < count; nextColumn++){
+            if(!analyzer.readColumn(nextColumn, column)) continue;
+            // Lowest band at the bottom.
+            for(int b = 0; b < bands; b++){
+                columnPixels[bands - 1 - b] = palette[(int) (column[b] * 255)];
+            }
+            spectrogram.setPixels(columnPixels, 0, 1, spectrogramX, 0, 1, bands);
+            spectrogramX = (spectrogramX + 1) % width;
+        }
+
+        // Oldest column is at spectrogramX. Draw from there to the end on the left, then the start on the right.
+        int height = getHeight();
+        int olderWidth = width - spectrogramX;
+        source.set(spectrogramX, 0, width, bands);
+        destination.set(0, 0, olderWidth, height);
+        canvas.drawBitmap(spectrogram, source, destination, bitmapPaint);
+        if(spectrogramX > 0){
+            source.set(0, 0, spectrogramX, bands);
+            destination.set(olderWidth, 0, width, height);
+            canvas.drawBitmap(spectrogram, source, destination, bitmapPaint);
+        }
+    }
 }
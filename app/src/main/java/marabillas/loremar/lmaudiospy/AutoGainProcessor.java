@@ -0,0 +1,114 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+/**
+ * Software automatic gain control. The level of the incoming audio is tracked by a peak envelope follower and the
+ * gain is steered towards {@link #TARGET_LEVEL}: reduced quickly when the audio gets loud and raised slowly when it
+ * gets quiet, never above the maximum gain. The output is delayed by a short look-ahead so gain reductions are
+ * already in place when a loud sound arrives. Audio below {@link #NOISE_FLOOR} holds the current gain instead of
+ * raising it, so background noise isn't pumped up during silence.
+ *
+ * The work per sample is constant, and all state is allocated when the processor is created.
+ */
+
+final class AutoGainProcessor implements PcmProcessor {
+    static final float TARGET_LEVEL = 0.5f;
+    static final float NOISE_FLOOR = 0.001f;
+    private static final float LOOK_AHEAD_SECONDS = 0.005f;
+    private static final float ENVELOPE_ATTACK_SECONDS = 0.001f;
+    private static final float ENVELOPE_RELEASE_SECONDS = 0.3f;
+    private static final float GAIN_ATTACK_SECONDS = 0.005f;
+    private static final float GAIN_RELEASE_SECONDS = 2f;
+
+    private final int channelCount;
+    private final float maxGain;
+    private final float envelopeAttack;
+    private final float envelopeRelease;
+    private final float gainAttack;
+    private final float gainRelease;
+    private final float[] delayLine;
+    private int delayIndex;
+    private float envelope;
+    private float gain = 1f;
+
+    /**
+     * @param sampleRate   samples per second per channel
+     * @param channelCount number of interleaved channels
+     * @param maxGain      highest gain the control may apply
+     */
+    AutoGainProcessor(int sampleRate, int channelCount, float maxGain){
+        this.channelCount = channelCount;
+        this.maxGain = maxGain;
+        envelopeAttack = coefficient(ENVELOPE_ATTACK_SECONDS, sampleRate);
+        envelopeRelease = coefficient(ENVELOPE_RELEASE_SECONDS, sampleRate);
+        gainAttack = coefficient(GAIN_ATTACK_SECONDS, sampleRate);
+        gainRelease = coefficient(GAIN_RELEASE_SECONDS, sampleRate);
+        int lookAheadFrames = Math.max(1, Math.round(LOOK_AHEAD_SECONDS * sampleRate));
+        delayLine = new float[lookAheadFrames * channelCount];
+    }
+
+    /**
+     * One-pole smoothing coefficient reaching 63% of a step after the given time.
+     */
+    private static float coefficient(float seconds, int sampleRate){
+        return (float) (1 - Math.exp(-1.0 / (seconds * sampleRate)));
+    }
+
+    @Override
+    public void process(float[] samples, int frameCount) {
+        final float[] delayLine = this.delayLine;
+        final int channelCount = this.channelCount;
+        float envelope = this.envelope;
+        float gain = this.gain;
+        int delayIndex = this.delayIndex;
+        for(int frame = 0, i = 0; frame < frameCount; frame++, i += channelCount){
+            float peak = 0;
+            for(int c = 0; c < channelCount; c++){
+                float magnitude = samples[i + c];
+                if(magnitude < 0) magnitude = -magnitude;
+                if(magnitude > peak) peak = magnitude;
+            }
+            envelope += (peak > envelope ? envelopeAttack : envelopeRelease) * (peak - envelope);
+
+            float desired = envelope > NOISE_FLOOR ? TARGET_LEVEL / envelope : gain;
+            if(desired > maxGain) desired = maxGain;
+            gain += (desired < gain ? gainAttack : gainRelease) * (desired - gain);
+
+            for(int c = 0; c < channelCount; c++){
+                float delayed = delayLine[delayIndex + c];
+                delayLine[delayIndex + c] = samples[i + c];
+                samples[i + c] = delayed * gain;
+            }
+            delayIndex += channelCount;
+            if(delayIndex == delayLine.length) delayIndex = 0;
+        }
+        this.envelope = envelope;
+        this.gain = gain;
+        this.delayIndex = delayIndex;
+    }
+
+    /**
+     * @return gain currently applied. Read by the capture thread only.
+     */
+    float getGain(){
+        return gain;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+/**
+ * Cascade of second order IIR sections removing what only wastes headroom and bitrate in microphone audio: DC
+ * offset, low frequency rumble below a high-pass cutoff, and mains hum with its harmonics. Coefficients follow the
+ * RBJ audio EQ cookbook and each section runs in transposed direct form II, with coefficients and state in double
+ * precision so notches near 50 Hz stay stable at 44100 Hz. All arrays are allocated in the constructor.
+ */
+
+final class BiquadFilterBank implements PcmProcessor {
+    /** Corner of the DC blocker, low enough to leave all audible content alone. */
+    static final double DC_BLOCKER_HZ = 5;
+    /** Number of hum harmonics notched, including the fundamental. */
+    static final int HUM_HARMONICS = 4;
+    private static final double HIGH_PASS_Q = Math.sqrt(0.5);
+    private static final double NOTCH_Q = 30;
+    private static final int MAX_SECTIONS = 2 + HUM_HARMONICS;
+
+    private final int channelCount;
+    // b0, b1, b2, a1, a2 of each section, a0 normalized to 1.
+    private final double[] coefficients = new double[MAX_SECTIONS * 5];
+    // s1, s2 of each section for each channel.
+    private final double[] state;
+    private int sectionCount;
+
+    /**
+     * @param sampleRate   samples per second per channel
+     * @param channelCount number of interleaved channels
+     * @param dcBlocker    whether to remove DC offset
+     * @param highPassHz   high-pass cutoff, or 0 for none
+     * @param humHz        mains frequency to notch out with its harmonics, or 0 for none
+     */
+    BiquadFilterBank(int sampleRate, int channelCount, boolean dcBlocker, int highPassHz, int humHz){
+        this.channelCount = channelCount;
+        double nyquist = sampleRate / 2.0;
+        if(dcBlocker){
+            // First order y = x - x1 + r*y1, written as a biquad.
+            double r = Math.exp(-2 * Math.PI * DC_BLOCKER_HZ / sampleRate);
+            addSection(1, -1, 0, -r, 0);
+        }
+        if(highPassHz > 0 && highPassHz < nyquist){
+            double w = 2 * Math.PI * highPassHz / sampleRate;
+            double cos = Math.cos(w);
+            double alpha = Math.sin(w) / (2 * HIGH_PASS_Q);
+            double a0 = 1 + alpha;
+            addSection((1 + cos) / 2 / a0, -(1 + cos) / a0, (1 + cos) / 2 / a0, -2 * cos / a0, (1 - alpha) / a0);
+        }
+        if(humHz > 0){
+            for(int harmonic = 1; harmonic <= HUM_HARMONICS && humHz * harmonic < nyquist * 0.9; harmonic++){
+                double w = 2 * Math.PI * humHz * harmonic / sampleRate;
+                double cos = Math.cos(w);
+                double alpha = Math.sin(w) / (2 * NOTCH_Q);
+                double a0 = 1 + alpha;
+                addSection(1 / a0, -2 * cos / a0, 1 / a0, -2 * cos / a0, (1 - alpha) / a0);
+            }
+        }
+        state = new double[MAX_SECTIONS * 2 * channelCount];
+    }
+
+    private void addSection(double b0, double b1, double b2, double a1, double a2){
+        int i = sectionCount++ * 5;
+        coefficients[i] = b0;
+        coefficients[i + 1] = b1;
+        coefficients[i + 2] = b2;
+        coefficients[i + 3] = a1;
+        coefficients[i + 4] = a2;
+    }
+
+    /**
+     * @return false if the settings given to the constructor left nothing to filter
+     */
+    boolean hasSections(){
+        return sectionCount > 0;
+    }
+
+    @Override
+    public void process(float[] samples, int frameCount) {
+        final double[] coefficients = this.coefficients;
+        final double[] state = this.state;
+        final int channelCount = this.channelCount;
+        final int count = frameCount * channelCount;
+        for(int section = 0; section < sectionCount; section++){
+            int k = section * 5;
+            double b0 = coefficients[k];
+            double b1 = coefficients[k + 1];
+            double b2 = coefficients[k + 2];
+            double a1 = coefficients[k + 3];
+            double a2 = coefficients[k + 4];
+            for(int c = 0; c < channelCount; c++){
+                int z = (section * channelCount + c) * 2;
+                double s1 = state[z];
+                double s2 = state[z + 1];
+                for(int i = c; i < count; i += channelCount){
+                    double x = samples[i];
+                    double y = b0 * x + s1;
+                    s1 = b1 * x - a1 * y + s2;
+                    s2 = b2 * x - a2 * y;
+                    samples[i] = (float) y;
+                }
+                state[z] = s1;
+                state[z + 1] = s2;
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the slow parts of getting an AAC encoder out of the moment recording starts. Encoder names are looked up
+ * once per format and cached, and one encoder is kept created and configured for the next recording that encodes
+ * while recording. Both are done ahead on a background thread, when the app starts and after each such recording.
+ * At most one encoder is kept ready: one asked for while it's still being prepared is waited for instead of
+ * creating a second, and one prepared for another format is released.
+ */
+
+final class CodecManager {
+    private static final String LOG = "Loremar_Logs";
+
+    /** Encoder names by {@link #key(int, int, int)}. */
+    private static final Map<String, String> encoderNames = new HashMap<>();
+    private static final ExecutorService warmUpThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "codec warm-up");
+        }
+    });
+    private static MediaCodecList codecList;
+    private static Encoder warmEncoder;
+    private static String warmEncoderKey;
+    /** Key of the encoder being prepared on the warm-up thread, or null. */
+    private static String preparingKey;
+
+    private CodecManager(){}
+
+    private static String key(int sampleRate, int channelCount, int bitRate){
+        return sampleRate + "/" + channelCount + "/" + bitRate;
+    }
+
+    private static MediaFormat createFormat(int sampleRate, int channelCount, int bitRate){
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, MediaFormat.MIMETYPE_AUDIO_AAC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, channelCount);
+        format.setInteger(MediaFormat.KEY_SAMPLE_RATE, sampleRate);
+        return format;
+    }
+
+    /**
+     * @return name of the AAC encoder for the given format, looked up only the first time it's asked for
+     */
+    static synchronized String findAacEncoder(int sampleRate, int channelCount, int bitRate){
+        String key = key(sampleRate, channelCount, bitRate);
+        String name = encoderNames.get(key);
+        if(name == null){
+            if(codecList == null) codecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
+            name = codecList.findEncoderForFormat(createFormat(sampleRate, channelCount, bitRate));
+            if(name == null) return null;
+            encoderNames.put(key, name);
+            Log.i(LOG, "AAC encoder for " + key + " is " + name);
+        }
+        return name;
+    }
+
+    /**
+     * Looks up the encoder for the recording settings in the background and, when audio is encoded while
+     * recording, gets an encoder ready for the first recording.
+     */
+    static void warmUpInBackground(final RecordingSettings settings){
+        if(!settings.saveToM4a) return;
+        if(settings.isConvertWhileRecording()){
+            prepareInBackground(settings.bitRate, settings.m4aSampleRate, settings.channelCount, settings.encodingFormat);
+            return;
+        }
+        warmUpThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                findAacEncoder(settings.m4aSampleRate, settings.channelCount, settings.bitRate);
+            }
+        });
+    }
+
+    /**
+     * Creates and configures an encoder in the background, to be taken by the next
+     * {@link #obtainEncoder(int, int, int, int)} asking for the same format.
+     * @param encoding encoding of the audio that will be recorded
+     */
+    static void prepareInBackground(final int bitRate, final int sampleRate, final int channelCount, final int encoding){
+        warmUpThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                String key = key(sampleRate, channelCount, bitRate) + "/" + encoding;
+                synchronized(CodecManager.class){
+                    if(key.equals(warmEncoderKey)) return;
+                    releaseWarmEncoder();
+                    preparingKey = key;
+                }
+                Encoder encoder = null;
+                try {
+                    encoder = createEncoder(bitRate, sampleRate, channelCount, encoding);
+                }catch(IOException | RuntimeException e){
+                    Log.e(LOG, "Exception in preparing encoder ahead", e);
+                }finally {
+                    synchronized(CodecManager.class){
+                        preparingKey = null;
+                        if(encoder != null){
+                            warmEncoder = encoder;
+                            warmEncoderKey = key;
+                        }
+                        CodecManager.class.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the encoder prepared ahead if its format matches, or else a newly created and configured one
+     * @param encoding encoding of the audio that will be recorded
+     */
+    static Encoder obtainEncoder(int bitRate, int sampleRate, int channelCount, int encoding) throws IOException {
+        long start = System.nanoTime();
+        String key = key(sampleRate, channelCount, bitRate) + "/" + encoding;
+        Encoder encoder = null;
+        synchronized(CodecManager.class){
+            try {
+                while(key.equals(preparingKey)) CodecManager.class.wait();
+            }catch(InterruptedException e){
+                throw new InterruptedIOException("Interrupted while waiting for the encoder being prepared");
+            }
+            if(key.equals(warmEncoderKey)){
+                encoder = warmEncoder;
+                warmEncoder = null;
+                warmEncoderKey = null;
+            }else{
+                // Encoder instances are limited, so one of no use to this recording isn't held on to.
+                releaseWarmEncoder();
+            }
+        }
+        boolean prepared = encoder != null;
+        if(encoder == null) encoder = createEncoder(bitRate, sampleRate, channelCount, encoding);
+        Log.i(LOG, "Encoder ready in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms"
+                + (prepared ? ", prepared ahead" : ""));
+        return encoder;
+    }
+
+    private static Encoder createEncoder(int bitRate, int sampleRate, int channelCount, int encoding) throws IOException {
+        String name = findAacEncoder(sampleRate, channelCount, bitRate);
+        if(name == null) throw new IOException("No AAC encoder for " + key(sampleRate, channelCount, bitRate));
+        MediaCodec codec = MediaCodec.createByCodecName(name);
+        try {
+            int inputEncoding = AudioProcessingTools.configureEncoder(codec, createFormat(sampleRate, channelCount, bitRate), encoding);
+            return new Encoder(codec, inputEncoding);
+        }catch(RuntimeException e){
+            codec.release();
+            throw e;
+        }
+    }
+
+    private static void releaseWarmEncoder(){
+        if(warmEncoder == null) return;
+        warmEncoder.codec.release();
+        warmEncoder = null;
+        warmEncoderKey = null;
+    }
+
+    /**
+     * A configured encoder that hasn't been started.
+     */
+    static final class Encoder{
+        final MediaCodec codec;
+        /** Encoding the encoder expects its input in. */
+        final int inputEncoding;
+
+        private Encoder(MediaCodec codec, int inputEncoding){
+            this.codec = codec;
+            this.inputEncoding = inputEncoding;
+        }
+    }
+}
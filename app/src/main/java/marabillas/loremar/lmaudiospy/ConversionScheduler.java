@@ -0,0 +1,515 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the conversions to M4A that follow recordings on a bounded pool of workers, so back to back recordings
+ * queue up instead of each starting codecs of its own. Conversions of higher priority go first, the rest in the
+ * order they were submitted.
+ *
+ * Each conversion is kept as a small file in the app's private storage until it has ended. Conversions left by an
+ * earlier process are queued again when the scheduler is first used. That and sizing the pool to the encoder
+ * instances the device supports are done on a thread of their own, so getting the scheduler from the UI thread
+ * doesn't wait on file I/O or the codec list. Conversions submitted meanwhile start once it's done. Encoded segments waiting to be stitched are
+ * kept in the app's cache, never next to the audio being converted.
+ */
+
+final class ConversionScheduler {
+    private static final String LOG = "Loremar_Logs";
+    private static final String DIRECTORY = "conversions";
+    private static final String EXTENSION = ".conversion";
+    /** Most conversions running at the same time. Each one already encodes on several cores. */
+    static final int MAX_WORKERS = 2;
+    static final int PRIORITY_BACKGROUND = 0;
+    /** For conversions someone is waiting on, such as the one shown after recording. */
+    static final int PRIORITY_USER = 1;
+
+    private static ConversionScheduler instance;
+
+    private final File directory;
+    private final File workDirectory;
+    private final ThreadPoolExecutor executor;
+    /** Counted down once the pool is sized and conversions of an earlier process are queued again. */
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private volatile int encodersPerConversion = 1;
+    private final AtomicInteger sequence = new AtomicInteger();
+    /** Conversions that haven't ended, by name. */
+    private final Map<String, Conversion> conversions = new LinkedHashMap<>();
+    private final ProgressChannel progressChannel = new ProgressChannel();
+
+    private ConversionScheduler(File directory, File workDirectory){
+        this.directory = directory;
+        this.workDirectory = workDirectory;
+        // Sized down, if need be, by setUp().
+        executor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "conversion " + count.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * @return the scheduler of this process, which queues again the conversions left by an earlier one
+     */
+    static synchronized ConversionScheduler get(Context context){
+        if(instance == null){
+            Context app = context.getApplicationContext();
+            final ConversionScheduler scheduler = new ConversionScheduler(new File(app.getFilesDir(), DIRECTORY),
+                    new File(app.getCacheDir(), DIRECTORY));
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    scheduler.setUp();
+                }
+            }, "conversion setup").start();
+            instance = scheduler;
+        }
+        return instance;
+    }
+
+    private void setUp(){
+        try {
+            // Both the workers and the encoders of each conversion are limited by the encoder instances available.
+            int encoders = ParallelAacConverter.defaultThreadCount();
+            int instances = maxEncoderInstances();
+            int workers = Math.max(1, Math.min(MAX_WORKERS, instances / encoders));
+            encodersPerConversion = Math.max(1, Math.min(encoders, instances / workers));
+            Log.i(LOG, "Conversion workers=" + workers + ", encoders per conversion=" + encodersPerConversion);
+            executor.setCorePoolSize(workers);
+            executor.setMaximumPoolSize(workers);
+            restore();
+        }catch(RuntimeException e){
+            Log.e(LOG, "Exception in setting up conversions", e);
+        }finally {
+            ready.countDown();
+        }
+    }
+
+    /**
+     * Waits until conversions left by an earlier process have been queued again, so that
+     * {@link #getConversion(String)} also finds those. Must not be called from the UI thread.
+     */
+    void awaitReady() throws InterruptedException {
+        ready.await();
+    }
+
+    private static int maxEncoderInstances(){
+        int fallback = MAX_WORKERS * ParallelAacConverter.MAX_THREADS;
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return fallback;
+        int instances = 0;
+        for(MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()){
+            if(!info.isEncoder()) continue;
+            for(String type : info.getSupportedTypes()){
+                if(type.equalsIgnoreCase(MediaFormat.MIMETYPE_AUDIO_AAC)){
+                    instances = Math.max(instances, info.getCapabilitiesForType(type).getMaxSupportedInstances());
+                }
+            }
+        }
+        return instances > 0 ? instances : fallback;
+    }
+
+    /**
+     * Queues a conversion. A conversion of the same name that hasn't ended is returned instead of starting another
+     * one, and its listener is replaced when listener isn't null.
+     * @param priority {@link #PRIORITY_BACKGROUND} or {@link #PRIORITY_USER}
+     * @param listener told about the end of the conversion, or null
+     */
+    Conversion submit(Request request, int priority, Listener listener){
+        Conversion conversion;
+        synchronized(conversions){
+            conversion = conversions.get(request.name);
+            if(conversion != null){
+                if(listener != null) conversion.listener = listener;
+                return conversion;
+            }
+            conversion = new Conversion(request, priority, listener);
+            conversions.put(request.name, conversion);
+        }
+        conversion.persist();
+        executor.execute(conversion);
+        return conversion;
+    }
+
+    /**
+     * @return the conversion of the given name that hasn't ended yet, or null
+     */
+    Conversion getConversion(String name){
+        synchronized(conversions){
+            return conversions.get(name);
+        }
+    }
+
+    /**
+     * @return channel invalidated whenever the progress of a conversion changes and when conversions end
+     */
+    ProgressChannel getProgressChannel(){
+        return progressChannel;
+    }
+
+    /**
+     * @return the conversions that haven't ended, in the order they were submitted
+     */
+    List<Conversion> getConversions(){
+        synchronized(conversions){
+            return new ArrayList<>(conversions.values());
+        }
+    }
+
+    private void restore(){
+        // Segments left by conversions of an earlier process are of no use, they are encoded again.
+        File[] segments = workDirectory.listFiles();
+        if(segments != null){
+            for(File segment : segments){
+                if(!segment.delete()) Log.e(LOG, "Failed to delete " + segment);
+            }
+        }
+        File[] files = directory.listFiles();
+        if(files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for(File file : files){
+            if(!file.getName().endsWith(EXTENSION)) continue;
+            Properties properties = new Properties();
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                properties.load(in);
+                Request request = Request.fromProperties(properties);
+                if(request.source.exists()){
+                    Log.i(LOG, "Resuming conversion of " + request.name);
+                    submit(request, Integer.parseInt(properties.getProperty("priority")), null);
+                    continue;
+                }
+            }catch(IOException | RuntimeException e){
+                Log.e(LOG, "Exception in reading conversion " + file, e);
+            }finally {
+                if(in != null){
+                    try {
+                        in.close();
+                    }catch(IOException e){
+                        Log.e(LOG, "IOException in closing conversion " + file, e);
+                    }
+                }
+            }
+            if(!file.delete()) Log.e(LOG, "Failed to delete conversion " + file);
+        }
+    }
+
+    /**
+     * What to convert and where to save it.
+     */
+    static final class Request{
+        final String name;
+        final File source;
+        final long offset;
+        final long length;
+        final int sampleRate;
+        final int bitRate;
+        final int channelCount;
+        final int encoding;
+        final String saveDirectory;
+        final boolean deleteSource;
+
+        /**
+         * @param name         basename of the M4A file
+         * @param source       file holding the audio data as raw PCM
+         * @param offset       position of the audio data in source
+         * @param length       number of bytes of audio data
+         * @param deleteSource whether source is deleted once converted
+         */
+        Request(String name, File source, long offset, long length, int sampleRate, int bitRate, int channelCount,
+                int encoding, String saveDirectory, boolean deleteSource){
+            this.name = name;
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+            this.sampleRate = sampleRate;
+            this.bitRate = bitRate;
+            this.channelCount = channelCount;
+            this.encoding = encoding;
+            this.saveDirectory = saveDirectory;
+            this.deleteSource = deleteSource;
+        }
+
+        /**
+         * Converts a whole {@link PcmSpoolSink} file, which is deleted afterwards.
+         */
+        static Request forSpool(String name, File spool, String saveDirectory, RecordingSettings settings){
+            return new Request(name, spool, 0, spool.length(), settings.m4aSampleRate, settings.bitRate,
+                    settings.channelCount, settings.encodingFormat, saveDirectory, true);
+        }
+
+        private static Request fromProperties(Properties properties){
+            return new Request(properties.getProperty("name"),
+                    new File(properties.getProperty("source")),
+                    Long.parseLong(properties.getProperty("offset")),
+                    Long.parseLong(properties.getProperty("length")),
+                    Integer.parseInt(properties.getProperty("sample_rate")),
+                    Integer.parseInt(properties.getProperty("bit_rate")),
+                    Integer.parseInt(properties.getProperty("channel_count")),
+                    Integer.parseInt(properties.getProperty("encoding")),
+                    properties.getProperty("directory"),
+                    Boolean.parseBoolean(properties.getProperty("delete_source")));
+        }
+
+        private Properties toProperties(){
+            Properties properties = new Properties();
+            properties.setProperty("name", name);
+            properties.setProperty("source", source.getAbsolutePath());
+            properties.setProperty("offset", String.valueOf(offset));
+            properties.setProperty("length", String.valueOf(length));
+            properties.setProperty("sample_rate", String.valueOf(sampleRate));
+            properties.setProperty("bit_rate", String.valueOf(bitRate));
+            properties.setProperty("channel_count", String.valueOf(channelCount));
+            properties.setProperty("encoding", String.valueOf(encoding));
+            properties.setProperty("directory", saveDirectory);
+            properties.setProperty("delete_source", String.valueOf(deleteSource));
+            return properties;
+        }
+    }
+
+    /**
+     * A queued or running conversion. Waiting on it with get() returns once the M4A file is saved, and throws if
+     * the conversion failed or was cancelled. Cancelling a running conversion interrupts its encoders and deletes
+     * the partly written M4A file.
+     */
+    final class Conversion extends FutureTask<Void> implements Comparable<Conversion>, ParallelAacConverter.ProgressListener{
+        final Request request;
+        private final int priority;
+        private final int order;
+        private final File file;
+        /** Set by whichever of the worker and a cancel before it started gets to do the cleanup. */
+        private final AtomicBoolean claimed;
+        private volatile Listener listener;
+        private volatile boolean converted;
+        private volatile long startNanos;
+        private volatile long encodedFrames;
+        private volatile long totalFrames;
+
+        private Conversion(Request request, int priority, Listener listener){
+            this(new Work(), request, priority, listener);
+        }
+
+        private Conversion(Work work, Request request, int priority, Listener listener){
+            super(work);
+            work.conversion = this;
+            this.request = request;
+            this.priority = priority;
+            this.listener = listener;
+            order = sequence.getAndIncrement();
+            file = new File(directory, request.name + EXTENSION);
+            claimed = new AtomicBoolean();
+        }
+
+        String getName(){
+            return request.name;
+        }
+
+        /**
+         * @return percentage of the audio encoded so far
+         */
+        int getProgress(){
+            if(converted) return 100;
+            long total = totalFrames;
+            return total > 0 ? (int) Math.min(99, encodedFrames * 100 / total) : 0;
+        }
+
+        /**
+         * @return time spent converting divided by the duration of the audio converted in that time, which is
+         *         below 1 when converting faster than real time, or 0 before anything was converted
+         */
+        float getRealTimeFactor(){
+            long encoded = encodedFrames;
+            if(encoded == 0) return 0;
+            return (float) (System.nanoTime() - startNanos) * request.sampleRate / encoded / 1e9f;
+        }
+
+        /**
+         * @return estimated milliseconds until the conversion is done at its speed so far, or -1 before anything
+         *         was converted
+         */
+        long getRemainingMillis(){
+            long encoded = encodedFrames;
+            if(encoded == 0) return -1;
+            return TimeUnit.NANOSECONDS.toMillis((System.nanoTime() - startNanos) * (totalFrames - encoded) / encoded);
+        }
+
+        /**
+         * Appends the percentage converted, followed by the real-time factor and the time left once known.
+         */
+        void appendProgress(StringBuilder text){
+            text.append(getProgress()).append('%');
+            long remaining = getRemainingMillis();
+            if(remaining < 0) return;
+            int rtf = Math.round(getRealTimeFactor() * 100);
+            text.append(" (RTF ").append(rtf / 100).append('.').append(rtf % 100 < 10 ? "0" : "").append(rtf % 100)
+                    .append(", ").append(TimeUnit.MILLISECONDS.toSeconds(remaining + 999)).append(" s left)");
+        }
+
+        @Override
+        public int compareTo(Conversion other) {
+            if(priority != other.priority) return priority > other.priority ? -1 : 1;
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+
+        @Override
+        public void onProgress(long encodedFrames, long totalFrames) {
+            // Called from every encoder thread, which may report out of order.
+            synchronized(this){
+                if(encodedFrames <= this.encodedFrames) return;
+                this.totalFrames = totalFrames;
+                this.encodedFrames = encodedFrames;
+            }
+            progressChannel.invalidate();
+        }
+
+        private void convert() throws IOException {
+            if(!claimed.compareAndSet(false, true)) return;
+            boolean converted = false;
+            try {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    awaitReady();
+                }catch(InterruptedException e){
+                    throw new InterruptedIOException("Interrupted while waiting for conversions to be set up");
+                }
+                startNanos = System.nanoTime();
+                if(!workDirectory.isDirectory() && !workDirectory.mkdirs()) throw new IOException("Failed to create " + workDirectory);
+                AudioProcessingTools.convertToM4a(request.source, request.offset, request.length, request.sampleRate,
+                        request.bitRate, request.channelCount, request.encoding, request.saveDirectory, request.name,
+                        encodersPerConversion, workDirectory, this);
+                converted = true;
+            }catch(IOException | RuntimeException e){
+                if(!isCancelled()) Log.e(LOG, "Exception in conversion of " + request.name + " to M4A", e);
+                throw e;
+            }finally {
+                finish(converted);
+            }
+        }
+
+        @Override
+        protected void done() {
+            // A conversion cancelled before it started is cleaned up here, a running one by its worker.
+            if(isCancelled() && claimed.compareAndSet(false, true)) finish(false);
+        }
+
+        private void finish(boolean converted){
+            synchronized(conversions){
+                if(conversions.get(request.name) == this) conversions.remove(request.name);
+            }
+            if(converted){
+                this.converted = true;
+                Log.i(LOG, "Converted " + request.name + " at real-time factor " + getRealTimeFactor() + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+                if(request.deleteSource && !request.source.delete()) Log.e(LOG, "Failed to delete " + request.source);
+            }else if(isCancelled()){
+                Log.i(LOG, "Conversion of " + request.name + " cancelled");
+                File m4a = new File(request.saveDirectory, request.name + ".m4a");
+                if(m4a.exists() && !m4a.delete()) Log.e(LOG, "Failed to delete " + m4a);
+                if(request.deleteSource && !request.source.delete()) Log.e(LOG, "Failed to delete " + request.source);
+            }
+            // A failed conversion isn't retried, its source is left for the recovery of the recording.
+            if(file.exists() && !file.delete()) Log.e(LOG, "Failed to delete conversion " + file);
+            progressChannel.invalidate();
+            Listener listener = this.listener;
+            if(listener != null) listener.onConversionDone(this, converted);
+        }
+
+        private void persist(){
+            Properties properties = request.toProperties();
+            properties.setProperty("priority", String.valueOf(priority));
+            FileOutputStream out = null;
+            try {
+                if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Failed to create " + directory);
+                out = new FileOutputStream(file);
+                properties.store(out, null);
+                out.getFD().sync();
+            }catch(IOException e){
+                Log.e(LOG, "IOException in writing conversion " + file, e);
+            }finally {
+                if(out != null){
+                    try {
+                        out.close();
+                    }catch(IOException e){
+                        Log.e(LOG, "IOException in closing conversion " + file, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Work implements Callable<Void>{
+        private Conversion conversion;
+
+        @Override
+        public Void call() throws IOException {
+            conversion.convert();
+            return null;
+        }
+    }
+
+    interface Listener{
+        /**
+         * Called once the conversion has ended, from its worker, or from the thread that cancelled it if it
+         * never started.
+         * @param converted whether the M4A file was saved
+         */
+        void onConversionDone(Conversion conversion, boolean converted);
+    }
+}
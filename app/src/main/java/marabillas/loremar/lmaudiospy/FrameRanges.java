@@ -0,0 +1,83 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Ranges of audio left out of a recording, in frames of the timeline as captured, and the sidecar file they are
+ * saved to so the timeline can be rebuilt: a "# sample_rate" and a "# frames" line followed by one "start end"
+ * pair per line. Ranges are added in order, and one starting where the last one ended extends it.
+ */
+
+final class FrameRanges {
+    private long[] ranges = new long[64];
+    private int count;
+    private long totalFrames;
+
+    void add(long start, long end){
+        totalFrames += end - start;
+        if(count > 0 && ranges[count - 1] == start){
+            ranges[count - 1] = end;
+            return;
+        }
+        if(count + 2 > ranges.length){
+            long[] grown = new long[ranges.length * 2];
+            System.arraycopy(ranges, 0, grown, 0, count);
+            ranges = grown;
+        }
+        ranges[count++] = start;
+        ranges[count++] = end;
+    }
+
+    /**
+     * @return number of ranges
+     */
+    int size(){
+        return count / 2;
+    }
+
+    /**
+     * @return number of frames in all ranges
+     */
+    long getTotalFrames(){
+        return totalFrames;
+    }
+
+    /**
+     * @param frames length of the whole timeline in frames
+     */
+    void write(File file, int sampleRate, long frames) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            writer.println("# sample_rate " + sampleRate);
+            writer.println("# frames " + frames);
+            for(int i = 0; i < count; i += 2){
+                writer.println(ranges[i] + " " + ranges[i + 1]);
+            }
+            if(writer.checkError()) throw new IOException("Failed to write " + file);
+        }finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.AudioFormat;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Applies gain to a block of PCM data with saturating arithmetic and measures the levels of the result. A kernel
+ * is specialized for one encoding and is picked once per session with
+ * {@link #create(int, int, int, int, PcmProcessor[])}, so the per-block path has no format switch. Each block is
+ * copied in bulk into a preallocated array of the sample type, through a little-endian view of the block for
+ * wider samples, processed in plain array loops and copied back. Integer kernels measure the block first,
+ * keeping the largest square with a compare that is rarely taken once a block is under way. When the peak leaves
+ * room for the gain, gain is a plain multiply the JIT can vectorize and the levels are scaled instead of measured
+ * again. Otherwise clipped samples are counted in a pass of their own, so the saturating loop is just Math.min
+ * and Math.max. Views are made with {@link #createView(int, ByteBuffer)} once per buffer by whoever owns the
+ * buffers, such as {@link PcmRingBuffer}, so no block allocates on its way through the kernel.
+ *
+ * When the session has {@link PcmProcessor}s, the block is decoded once into float samples, run through every
+ * processor and encoded back with gain applied. Without processors integer encodings keep their direct path.
+ */
+
+abstract class GainKernel {
+    final int gain;
+    final float[] samples;
+    private final int channelCount;
+    private final int bytesPerSample;
+    private final PcmProcessor[] processors;
+
+    // Largest magnitude and sums of the integer samples of a block, used by the integer kernels for the levels.
+    int peakSample;
+    long sampleSum;
+    long sampleSquares;
+
+    // Levels of the last processed block, set by process() relative to full scale.
+    float peak;
+    double sumSquares;
+    double sum;
+    int clippedSamples;
+    int sampleCount;
+
+    private GainKernel(int channelCount, int gain, int blockSize, int bytesPerSample, PcmProcessor[] processors,
+                       boolean alwaysDecode){
+        this.channelCount = channelCount;
+        this.bytesPerSample = bytesPerSample;
+        this.gain = gain;
+        this.processors = processors;
+        samples = processors.length > 0 || alwaysDecode ? new float[blockSize / bytesPerSample] : null;
+    }
+
+    /**
+     * @param encoding     one of the AudioFormat.ENCODING_PCM_* constants
+     * @param channelCount number of interleaved channels
+     * @param gain         level of gain to apply
+     * @param blockSize    largest block the kernel will be given, in bytes
+     * @param processors   stages to run on every block before gain, in order. May be empty.
+     */
+    static GainKernel create(int encoding, int channelCount, int gain, int blockSize, PcmProcessor[] processors){
+        switch(encoding){
+            case AudioFormat.ENCODING_PCM_8BIT:
+                return new Pcm8(channelCount, gain, blockSize, processors);
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                return new PcmFloat(channelCount, gain, blockSize, processors);
+            case AudioFormat.ENCODING_PCM_16BIT:
+                return new Pcm16(channelCount, gain, blockSize, processors);
+            default:
+                throw new IllegalArgumentException("Unacceptable encoding");
+        }
+    }
+
+    /**
+     * @param encoding one of the AudioFormat.ENCODING_PCM_* constants
+     * @return little-endian view of the samples of the whole block, to be passed along with it to
+     *         {@link #apply(ByteBuffer, Buffer, LevelMeter)}. The block itself for 8-bit samples.
+     */
+    static Buffer createView(int encoding, ByteBuffer block){
+        ByteBuffer whole = block.duplicate();
+        whole.clear();
+        whole.order(ByteOrder.LITTLE_ENDIAN);
+        switch(encoding){
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                return whole.asFloatBuffer();
+            case AudioFormat.ENCODING_PCM_16BIT:
+                return whole.asShortBuffer();
+            default:
+                return block;
+        }
+    }
+
+    /**
+     * Applies gain in place to the data between position 0 and the limit of the block.
+     * @param view  view of block made by {@link #createView(int, ByteBuffer)}
+     * @param meter receives the levels of the block after gain
+     */
+    final void apply(ByteBuffer block, Buffer view, LevelMeter meter){
+        int count = block.limit() / bytesPerSample;
+        load(block, view, count);
+        if(processors.length == 0){
+            process(count);
+        }else{
+            decode(count);
+            int frames = count / channelCount;
+            for(PcmProcessor processor : processors){
+                processor.process(samples, frames);
+            }
+            encode(count);
+        }
+        store(block, view, count);
+        block.position(0);
+        if(sampleCount > 0){
+            meter.publish(peak, (float) Math.sqrt(sumSquares / sampleCount), (float) (sum / sampleCount), clippedSamples);
+        }
+    }
+
+    /**
+     * Sets the sample fields, taking the largest magnitude from the largest square.
+     */
+    final void setSamples(int peakSquare, long total, long squares){
+        peakSample = (int) Math.sqrt(peakSquare);
+        sampleSum = total;
+        sampleSquares = squares;
+    }
+
+    /**
+     * Scales the sample fields by gain, for when gain was applied without clipping anything.
+     */
+    final void scaleLevels(int gain){
+        peakSample *= gain;
+        sampleSum *= gain;
+        sampleSquares *= (long) gain * gain;
+    }
+
+    /**
+     * @return number of the first count float samples that gain would push above high or below low, which are
+     *         given before gain
+     */
+    static int countClipped(float[] samples, int count, float high, float low){
+        int clipped = 0;
+        for(int i = 0; i < count; i++){
+            float v = samples[i];
+            if(v >= high || v < low) clipped++;
+        }
+        return clipped;
+    }
+
+    /**
+     * @return number of frames in the last block given to {@link #apply(ByteBuffer, Buffer, LevelMeter)}
+     */
+    int getFrameCount(){
+        return sampleCount / channelCount;
+    }
+
+    /**
+     * @return RMS level of the last block after gain, relative to full scale
+     */
+    float getRms(){
+        return sampleCount > 0 ? (float) Math.sqrt(sumSquares / sampleCount) : 0;
+    }
+
+    /**
+     * Fraction of the samples in the last block whose sign differs from the previous sample of the same channel.
+     */
+    float getZeroCrossingRate(){
+        int pairs = sampleCount - channelCount;
+        return pairs > 0 ? (float) countZeroCrossings(channelCount, sampleCount) / pairs : 0;
+    }
+
+    /**
+     * @return number of the first count samples of the last block whose sign differs from the sample stride
+     *         samples before
+     */
+    abstract int countZeroCrossings(int stride, int count);
+
+    /**
+     * Copies the first count samples of block, read through its view, into the array of the kernel.
+     */
+    abstract void load(ByteBuffer block, Buffer view, int count);
+
+    /**
+     * Copies the first count samples of the array of the kernel back into block through its view.
+     */
+    abstract void store(ByteBuffer block, Buffer view, int count);
+
+    /**
+     * Applies gain to the first count loaded samples in place and sets the level fields.
+     */
+    abstract void process(int count);
+
+    /**
+     * Converts the first count loaded samples to floats in {@link #samples}.
+     */
+    abstract void decode(int count);
+
+    /**
+     * Applies gain to count float samples of {@link #samples}, writes them back as loaded samples and sets the
+     * level fields.
+     */
+    abstract void encode(int count);
+
+    /**
+     * Unsigned 8-bit samples, centered on 128.
+     */
+    static final class Pcm8 extends GainKernel {
+        private static final int SUM_RUN = 65536;
+
+        private final byte[] work;
+
+        Pcm8(int channelCount, int gain, int blockSize, PcmProcessor[] processors){
+            super(channelCount, gain, blockSize, 1, processors, false);
+            work = new byte[blockSize];
+        }
+
+        @Override
+        void load(ByteBuffer block, Buffer view, int count) {
+            block.position(0);
+            block.get(work, 0, count);
+        }
+
+        @Override
+        void store(ByteBuffer block, Buffer view, int count) {
+            block.position(0);
+            block.put(work, 0, count);
+        }
+
+        @Override
+        int countZeroCrossings(int stride, int count) {
+            final byte[] work = this.work;
+            int crossings = 0;
+            // Bit 7 is the sign, also for unsigned samples centered on 128.
+            for(int i = stride; i < count; i++){
+                if(((work[i] ^ work[i - stride]) & 0x80) != 0) crossings++;
+            }
+            return crossings;
+        }
+
+        @Override
+        void process(int count) {
+            final byte[] work = this.work;
+            final int gain = this.gain;
+            measure(count);
+            int clipped = 0;
+            if(peakSample * gain <= 127){
+                // Nothing can clip, so gain is a plain multiply the JIT can vectorize and the levels scale with it.
+                // Bytes wrap around, so (w - 128) * gain + 128 is w * gain + offset whether w is read signed or not.
+                if(gain != 1){
+                    final int offset = 128 - 128 * gain;
+                    for(int i = 0; i < count; i++){
+                        work[i] = (byte) (work[i] * gain + offset);
+                    }
+                    scaleLevels(gain);
+                }
+            }else{
+                clipped = countClipped(count, 127 / gain + 1, -128 / gain);
+                for(int i = 0; i < count; i++){
+                    work[i] = (byte) (Math.min(Math.max(((work[i] & 0xFF) - 128) * gain, -128), 127) + 128);
+                }
+                measure(count);
+            }
+            publishLevels(clipped, count);
+        }
+
+        /**
+         * Sets the sample fields to the largest magnitude and sums of the first count samples of work, centered on 0.
+         */
+        private void measure(int count){
+            final byte[] work = this.work;
+            int peakSquare = 0;
+            long total = 0;
+            long squares = 0;
+            // Squares of 8-bit samples are small enough to add up in ints over a run of SUM_RUN samples.
+            for(int start = 0; start < count; start += SUM_RUN){
+                int end = Math.min(count, start + SUM_RUN);
+                int runTotal = 0;
+                int runSquares = 0;
+                for(int i = start; i < end; i++){
+                    int v = (work[i] & 0xFF) - 128;
+                    int square = v * v;
+                    if(square > peakSquare) peakSquare = square;
+                    runTotal += v;
+                    runSquares += square;
+                }
+                total += runTotal;
+                squares += runSquares;
+            }
+            setSamples(peakSquare, total, squares);
+        }
+
+        /**
+         * @return number of the first count samples of work at or above high or below low once centered on 0
+         */
+        private int countClipped(int count, int high, int low){
+            final byte[] work = this.work;
+            int clipped = 0;
+            for(int i = 0; i < count; i++){
+                int v = (work[i] & 0xFF) - 128;
+                if(v >= high || v < low) clipped++;
+            }
+            return clipped;
+        }
+
+        private void publishLevels(int clipped, int count){
+            peak = peakSample / 128f;
+            sumSquares = sampleSquares / (128.0 * 128.0);
+            sum = sampleSum / 128.0;
+            clippedSamples = clipped;
+            sampleCount = count;
+        }
+
+        @Override
+        void decode(int count) {
+            final byte[] work = this.work;
+            final float[] samples = this.samples;
+            for(int i = 0; i < count; i++){
+                samples[i] = ((work[i] & 0xFF) - 128) / 128f;
+            }
+        }
+
+        @Override
+        void encode(int count) {
+            final byte[] work = this.work;
+            final float[] samples = this.samples;
+            final float scale = gain * 128f;
+            int clipped = countClipped(samples, count, 127.5f / scale, -128.5f / scale);
+            for(int i = 0; i < count; i++){
+                work[i] = (byte) (Math.min(Math.max(Math.round(samples[i] * scale), -128), 127) + 128);
+            }
+            measure(count);
+            publishLevels(clipped, count);
+        }
+    }
+
+    /**
+     * Signed 16-bit little-endian samples.
+     */
+    static final class Pcm16 extends GainKernel {
+        private final short[] work;
+
+        Pcm16(int channelCount, int gain, int blockSize, PcmProcessor[] processors){
+            super(channelCount, gain, blockSize, 2, processors, false);
+            work = new short[blockSize / 2];
+        }
+
+        @Override
+        void load(ByteBuffer block, Buffer view, int count) {
+            ShortBuffer shorts = (ShortBuffer) view;
+            shorts.clear();
+            shorts.get(work, 0, count);
+        }
+
+        @Override
+        void store(ByteBuffer block, Buffer view, int count) {
+            ShortBuffer shorts = (ShortBuffer) view;
+            shorts.clear();
+            shorts.put(work, 0, count);
+        }
+
+        @Override
+        int countZeroCrossings(int stride, int count) {
+            final short[] work = this.work;
+            int crossings = 0;
+            for(int i = stride; i < count; i++){
+                if((work[i] ^ work[i - stride]) < 0) crossings++;
+            }
+            return crossings;
+        }
+
+        @Override
+        void process(int count) {
+            final short[] work = this.work;
+            final int gain = this.gain;
+            measure(count);
+            int clipped = 0;
+            if(peakSample * gain <= Short.MAX_VALUE){
+                // Nothing can clip, so gain is a plain multiply the JIT can vectorize and the levels scale with it.
+                if(gain != 1){
+                    for(int i = 0; i < count; i++){
+                        work[i] = (short) (work[i] * gain);
+                    }
+                    scaleLevels(gain);
+                }
+            }else{
+                clipped = countClipped(count, Short.MAX_VALUE / gain + 1, Short.MIN_VALUE / gain);
+                for(int i = 0; i < count; i++){
+                    work[i] = (short) Math.min(Math.max(work[i] * gain, Short.MIN_VALUE), Short.MAX_VALUE);
+                }
+                measure(count);
+            }
+            publishLevels(clipped, count);
+        }
+
+        /**
+         * Sets the sample fields to the largest magnitude and sums of the first count samples of work.
+         */
+        private void measure(int count){
+            final short[] work = this.work;
+            int peakSquare = 0;
+            long total = 0;
+            long squares = 0;
+            for(int i = 0; i < count; i++){
+                int v = work[i];
+                int square = v * v;
+                if(square > peakSquare) peakSquare = square;
+                total += v;
+                squares += square;
+            }
+            setSamples(peakSquare, total, squares);
+        }
+
+        /**
+         * @return number of the first count samples of work at or above high or below low
+         */
+        private int countClipped(int count, int high, int low){
+            final short[] work = this.work;
+            int clipped = 0;
+            for(int i = 0; i < count; i++){
+                int v = work[i];
+                if(v >= high || v < low) clipped++;
+            }
+            return clipped;
+        }
+
+        private void publishLevels(int clipped, int count){
+            peak = peakSample / 32768f;
+            sumSquares = sampleSquares / (32768.0 * 32768.0);
+            sum = sampleSum / 32768.0;
+            clippedSamples = clipped;
+            sampleCount = count;
+        }
+
+        @Override
+        void decode(int count) {
+            final short[] work = this.work;
+            final float[] samples = this.samples;
+            for(int i = 0; i < count; i++){
+                samples[i] = work[i] / 32768f;
+            }
+        }
+
+        @Override
+        void encode(int count) {
+            final short[] work = this.work;
+            final float[] samples = this.samples;
+            final float scale = gain * 32768f;
+            int clipped = countClipped(samples, count, 32767.5f / scale, -32768.5f / scale);
+            for(int i = 0; i < count; i++){
+                work[i] = (short) Math.min(Math.max(Math.round(samples[i] * scale), Short.MIN_VALUE), Short.MAX_VALUE);
+            }
+            measure(count);
+            publishLevels(clipped, count);
+        }
+    }
+
+    /**
+     * 32-bit little-endian float samples in the range -1 to 1. Instead of clipping, samples pushed above
+     * {@link #LIMITER_THRESHOLD} by the gain are bent smoothly towards full scale. Samples that would have gone
+     * beyond full scale without the limiter are still counted as clipped. Samples are loaded straight into
+     * {@link #samples}.
+     */
+    static final class PcmFloat extends GainKernel {
+        static final float LIMITER_THRESHOLD = 0.8f;
+
+        PcmFloat(int channelCount, int gain, int blockSize, PcmProcessor[] processors){
+            super(channelCount, gain, blockSize, 4, processors, true);
+        }
+
+        @Override
+        void load(ByteBuffer block, Buffer view, int count) {
+            FloatBuffer floats = (FloatBuffer) view;
+            floats.clear();
+            floats.get(samples, 0, count);
+        }
+
+        @Override
+        void store(ByteBuffer block, Buffer view, int count) {
+            FloatBuffer floats = (FloatBuffer) view;
+            floats.clear();
+            floats.put(samples, 0, count);
+        }
+
+        @Override
+        int countZeroCrossings(int stride, int count) {
+            final float[] samples = this.samples;
+            int crossings = 0;
+            for(int i = stride; i < count; i++){
+                if((Float.floatToRawIntBits(samples[i]) ^ Float.floatToRawIntBits(samples[i - stride])) < 0) crossings++;
+            }
+            return crossings;
+        }
+
+        @Override
+        void process(int count) {
+            encode(count);
+        }
+
+        @Override
+        void decode(int count) {
+            // Already loaded as floats.
+        }
+
+        @Override
+        void encode(int count) {
+            final float[] samples = this.samples;
+            final float gain = this.gain;
+            final float knee = 1f - LIMITER_THRESHOLD;
+            float max = 0;
+            double squares = 0;
+            double total = 0;
+            int clipped = 0;
+            for(int i = 0; i < count; i++){
+                float v = samples[i] * gain;
+                float magnitude = v < 0 ? -v : v;
+                if(magnitude > LIMITER_THRESHOLD){
+                    if(magnitude > 1f) clipped++;
+                    // x / (1 + x) keeps the slope continuous at the threshold and never reaches full scale.
+                    float over = (magnitude - LIMITER_THRESHOLD) / knee;
+                    magnitude = LIMITER_THRESHOLD + knee * over / (1f + over);
+                    v = v < 0 ? -magnitude : magnitude;
+                }
+                if(magnitude > max) max = magnitude;
+                squares += v * v;
+                total += v;
+                samples[i] = v;
+            }
+            peak = max;
+            sumSquares = squares;
+            sum = total;
+            clippedSamples = clipped;
+            sampleCount = count;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+/**
+ * Levels of the most recent audio block, measured by the {@link GainKernel} in the same pass that applies gain.
+ * The capture thread publishes every block and any thread can take a consistent snapshot with
+ * {@link #read(Levels)}. Publishing never waits for readers and reading allocates nothing.
+ */
+
+final class LevelMeter {
+    /**
+     * Snapshot of the meter. All levels are relative to full scale, so 1 is the largest possible sample.
+     */
+    static final class Levels {
+        float peak;
+        float rms;
+        float dcOffset;
+        int clippedSamples;
+        long totalClippedSamples;
+        long blockCount;
+    }
+
+    // Sequence lock. Odd while a block is being published.
+    private volatile int sequence;
+    private volatile float peak;
+    private volatile float rms;
+    private volatile float dcOffset;
+    private volatile int clippedSamples;
+    private volatile long totalClippedSamples;
+    private volatile long blockCount;
+
+    /**
+     * Capture thread only.
+     * @param peak           largest absolute sample value of the block
+     * @param rms            root mean square of the block
+     * @param dcOffset       mean sample value of the block
+     * @param clippedSamples number of samples the gain pushed beyond full scale
+     */
+    void publish(float peak, float rms, float dcOffset, int clippedSamples){
+        int seq = sequence;
+        sequence = seq + 1;
+        this.peak = peak;
+        this.rms = rms;
+        this.dcOffset = dcOffset;
+        this.clippedSamples = clippedSamples;
+        totalClippedSamples = totalClippedSamples + clippedSamples;
+        blockCount = blockCount + 1;
+        sequence = seq + 2;
+    }
+
+    /**
+     * Copies the levels of the latest block into out, retrying if a block is published in the meantime.
+     */
+    void read(Levels out){
+        int seq;
+        do{
+            seq = sequence;
+            if((seq & 1) != 0) continue;
+            out.peak = peak;
+            out.rms = rms;
+            out.dcOffset = dcOffset;
+            out.clippedSamples = clippedSamples;
+            out.totalClippedSamples = totalClippedSamples;
+            out.blockCount = blockCount;
+        }while((seq & 1) != 0 || seq != sequence);
+    }
+}
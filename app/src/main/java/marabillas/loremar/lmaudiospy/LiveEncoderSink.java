@@ -0,0 +1,77 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds the recording to the encoder prepared by {@link AudioProcessingTools#prepareCodec(int, int, int, int)} so the
+ * M4A file is written while recording.
+ */
+
+final class LiveEncoderSink implements PcmSink {
+    private static final int BUFFER_POOL_SIZE = 8;
+
+    private final String saveDirectory;
+    private final String name;
+    private AudioBufferPool bufferPool;
+    private int recordEncoding;
+    private int encoderEncoding;
+
+    /**
+     * @param saveDirectory directory where the M4A file is saved
+     * @param name          basename of the M4A file
+     */
+    LiveEncoderSink(String saveDirectory, String name){
+        this.saveDirectory = saveDirectory;
+        this.name = name;
+    }
+
+    @Override
+    public void open(PcmFormat format) {
+        recordEncoding = format.encoding;
+        encoderEncoding = AudioProcessingTools.getCodecInputEncoding();
+        int samplesPerBlock = format.blockSize / AudioProcessingTools.bytesPerSample(recordEncoding);
+        bufferPool = new AudioBufferPool(BUFFER_POOL_SIZE, samplesPerBlock * AudioProcessingTools.bytesPerSample(encoderEncoding));
+        AudioProcessingTools.initAudioConversion(saveDirectory, name, bufferPool);
+    }
+
+    @Override
+    public void write(ByteBuffer block) throws IOException {
+        ByteBuffer encoderBuffer;
+        try {
+            encoderBuffer = bufferPool.acquire();
+        }catch(InterruptedException e){
+            throw new InterruptedIOException("Interrupted while waiting for an encoder buffer");
+        }
+        // Conversion to the encoder's input encoding, if needed, is done as part of the copy.
+        AudioProcessingTools.convertPcm(block, recordEncoding, encoderBuffer, encoderEncoding);
+        encoderBuffer.flip();
+        // The encoder releases the pooled copy once it has copied the data.
+        AudioProcessingTools.addData(encoderBuffer);
+    }
+
+    @Override
+    public void close() {
+        AudioProcessingTools.notifyRecordingEnded();
+    }
+}
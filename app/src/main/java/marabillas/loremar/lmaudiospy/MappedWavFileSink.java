@@ -0,0 +1,186 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the recording to a WAV file through memory mapping instead of a write call per block. The file is
+ * allocated ahead in extents of {@link #EXTENT_SIZE} bytes, so it doesn't grow on every block, and blocks are
+ * copied into a {@link MappedByteBuffer} window mapping the rest of the current extent. Each window is unmapped as
+ * soon as the next one is mapped, so a long recording doesn't pile up mappings waiting for the garbage collector
+ * and run out of address space on 32-bit devices. The header is checkpointed like {@link WavFileSink} does, and on close the file is truncated to the exact size of
+ * the recording. Dirty pages of the mapping are synced according to the same
+ * {@link WriteBehindWriter.Durability} modes as the other WAV sink.
+ */
+
+final class MappedWavFileSink implements PcmSink {
+    private static final String LOG = "Loremar_Logs";
+    static final long EXTENT_SIZE = 32 * 1024 * 1024;
+
+    private final File file;
+    private final int channelConfig;
+    private final WriteBehindWriter.Durability durability;
+    private final ByteBuffer sizes = ByteBuffer.allocate(8);
+    private RandomAccessFile randomAccessFile;
+    private FileChannel fileChannel;
+    private MappedByteBuffer window;
+    private long allocated;
+    private long dataSize;
+    private long checkpointSize;
+    private long checkpointTime;
+    private long syncTime;
+
+    /**
+     * @param durability when written data is synced to the storage device
+     */
+    MappedWavFileSink(File file, int channelConfig, WriteBehindWriter.Durability durability){
+        this.file = file;
+        this.channelConfig = channelConfig;
+        this.durability = durability;
+    }
+
+    @Override
+    public void open(PcmFormat format) throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        fileChannel = randomAccessFile.getChannel();
+        AudioProcessingTools.writeWavHeader(fileChannel, channelConfig, format.sampleRate, format.encoding);
+        allocated = 0;
+        dataSize = 0;
+        checkpointSize = 0;
+        checkpointTime = System.nanoTime();
+        syncTime = checkpointTime;
+        window = null;
+    }
+
+    @Override
+    public void write(ByteBuffer block) throws IOException {
+        while(block.hasRemaining()){
+            if(window == null || !window.hasRemaining()) mapNextWindow();
+            int length = Math.min(block.remaining(), window.remaining());
+            int limit = block.limit();
+            block.limit(block.position() + length);
+            window.put(block);
+            block.limit(limit);
+            dataSize += length;
+        }
+        if(dataSize - checkpointSize >= WavFileSink.CHECKPOINT_BYTES
+                || System.nanoTime() - checkpointTime >= TimeUnit.SECONDS.toNanos(WavFileSink.CHECKPOINT_SECONDS)){
+            checkpoint();
+        }
+        if(durability == WriteBehindWriter.Durability.PERIODIC
+                && System.nanoTime() - syncTime >= TimeUnit.SECONDS.toNanos(WriteBehindWriter.SYNC_INTERVAL_SECONDS)){
+            if(window != null) window.force();
+            fileChannel.force(false);
+            syncTime = System.nanoTime();
+        }
+    }
+
+    private void mapNextWindow() throws IOException {
+        releaseWindow();
+        long start = AudioProcessingTools.WAV_HEADER_SIZE + dataSize;
+        while(start >= allocated){
+            allocated += EXTENT_SIZE;
+            preallocate(allocated);
+        }
+        window = fileChannel.map(FileChannel.MapMode.READ_WRITE, start, allocated - start);
+    }
+
+    private void releaseWindow(){
+        if(window == null) return;
+        if(durability != WriteBehindWriter.Durability.NONE) window.force();
+        unmap(window);
+        window = null;
+    }
+
+    /**
+     * Unmaps buffer right away instead of when it's garbage collected. There's no public API for it, so this
+     * goes through NioUtils on Android and through Unsafe on a desktop JVM, the latter for the unit tests. Where
+     * neither is reachable the mapping is left to the garbage collector. buffer must not be used afterwards.
+     */
+    static void unmap(MappedByteBuffer buffer){
+        try {
+            Class<?> nioUtils = Class.forName("java.nio.NioUtils");
+            nioUtils.getMethod("freeDirectBuffer", ByteBuffer.class).invoke(null, buffer);
+            return;
+        }catch(ClassNotFoundException e){
+            // Not on Android.
+        }catch(ReflectiveOperationException | RuntimeException e){
+            Log.e(LOG, "Exception in unmapping WAV window", e);
+            return;
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        }catch(ReflectiveOperationException | RuntimeException e){
+            Log.e(LOG, "Exception in unmapping WAV window", e);
+        }
+    }
+
+    /**
+     * Reserves disk blocks up to length so writes through the mapping can't fail for lack of space midway. Falls
+     * back to growing the file, which may leave it sparse, where fallocate isn't supported.
+     */
+    private void preallocate(long length) throws IOException {
+        try {
+            Os.posix_fallocate(randomAccessFile.getFD(), 0, length);
+        }catch(ErrnoException e){
+            Log.e(LOG, "posix_fallocate failed, extending WAV file instead", e);
+            randomAccessFile.setLength(length);
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        AudioProcessingTools.writeWavSizes(fileChannel, sizes, dataSize);
+        checkpointSize = dataSize;
+        checkpointTime = System.nanoTime();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            long end = AudioProcessingTools.WAV_HEADER_SIZE + dataSize;
+            releaseWindow();
+            // RIFF chunks are padded to an even size.
+            if((dataSize & 1) != 0) fileChannel.write(ByteBuffer.wrap(new byte[1]), end++);
+            checkpoint();
+            fileChannel.truncate(end);
+            if(durability != WriteBehindWriter.Durability.NONE) fileChannel.force(false);
+        }finally {
+            randomAccessFile.close();
+        }
+    }
+}
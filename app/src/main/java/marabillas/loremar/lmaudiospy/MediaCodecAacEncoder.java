@@ -0,0 +1,153 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The platform's AAC encoder in asynchronous mode. The codec is created on a looper thread of its own, so its
+ * callbacks are made there.
+ */
+
+final class MediaCodecAacEncoder extends MediaCodec.Callback implements AsyncAacEncoder.Codec {
+    /** Delay of the AAC-LC encoder shipped with Android, for encoders that don't report theirs. */
+    private static final int DEFAULT_DELAY_FRAMES = 2048;
+    private static final String KEY_ENCODER_DELAY = "encoder-delay";
+
+    static final AacEncoder.Factory FACTORY = new AacEncoder.Factory() {
+        @Override
+        public AacEncoder create() {
+            return new AsyncAacEncoder(new MediaCodecAacEncoder());
+        }
+    };
+
+    private HandlerThread callbackThread;
+    private MediaCodec codec;
+    private Callback callback;
+
+    @Override
+    public int configure(int sampleRate, int channelCount, int bitRate, int encoding, Callback callback) throws IOException {
+        this.callback = callback;
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, MediaFormat.MIMETYPE_AUDIO_AAC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, channelCount);
+        format.setInteger(MediaFormat.KEY_SAMPLE_RATE, sampleRate);
+        final String name = CodecManager.findAacEncoder(sampleRate, channelCount, bitRate);
+        if(name == null) throw new IOException("No AAC encoder for this format");
+
+        callbackThread = new HandlerThread("aac encoder callbacks");
+        callbackThread.start();
+        FutureTask<MediaCodec> creation = new FutureTask<>(new Callable<MediaCodec>() {
+            @Override
+            public MediaCodec call() throws IOException {
+                return MediaCodec.createByCodecName(name);
+            }
+        });
+        new Handler(callbackThread.getLooper()).post(creation);
+        try {
+            codec = creation.get();
+        }catch(InterruptedException e){
+            throw new IOException("Interrupted while creating " + name, e);
+        }catch(ExecutionException e){
+            throw new IOException("Failed to create " + name, e.getCause());
+        }
+        return AudioProcessingTools.configureEncoder(codec, format, encoding, this);
+    }
+
+    @Override
+    public int getDelayFrames() {
+        MediaFormat format = codec.getOutputFormat();
+        if(format != null && format.containsKey(KEY_ENCODER_DELAY)) return format.getInteger(KEY_ENCODER_DELAY);
+        return DEFAULT_DELAY_FRAMES;
+    }
+
+    @Override
+    public void start() {
+        codec.start();
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return codec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+        codec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return codec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        codec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+        callback.onInputBufferAvailable(index);
+    }
+
+    @Override
+    public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+        callback.onOutputBufferAvailable(index, info);
+    }
+
+    @Override
+    public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+        callback.onOutputFormatChanged(format);
+    }
+
+    @Override
+    public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+        callback.onError(e);
+    }
+
+    @Override
+    public void release() {
+        if(codec != null){
+            try {
+                codec.stop();
+            }catch(IllegalStateException e){
+                // Not started, or already stopped by an error. Releasing is all that's left to do.
+            }
+            codec.release();
+            codec = null;
+        }
+        if(callbackThread != null){
+            callbackThread.quitSafely();
+            callbackThread = null;
+        }
+    }
+}
@@ -33,6 +33,8 @@ public class OtherSettingsFragment extends PreferenceFragment {
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        // Settings are read from the "settings" file everywhere else, not from the default preferences.
+        getPreferenceManager().setSharedPreferencesName("settings");
         addPreferencesFromResource(R.xml.other_settings);
     }
 }
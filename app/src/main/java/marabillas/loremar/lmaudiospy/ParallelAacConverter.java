@@ -0,0 +1,361 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts raw PCM to one AAC track by encoding consecutive segments of it at the same time, each with an encoder
+ * of its own, and stitching the access units back together in order.
+ *
+ * Segments start and end on access unit boundaries of the whole recording. Each encoder is also given
+ * {@link #ROLL_ACCESS_UNITS} access units of audio before and after its segment, so its state has settled where
+ * the segment starts and its end of stream flush doesn't reach into the segment. Output access unit g of the whole
+ * track is taken from the one encoder whose segment owns it, so the joins have no gaps or repeats. Priming access
+ * units only come from the first encoder, and timestamps are those of a single encoder: g times the duration of
+ * an access unit.
+ */
+
+final class ParallelAacConverter {
+    private static final String LOG = "Loremar_Logs";
+    static final int MAX_THREADS = 4;
+    static final int ROLL_ACCESS_UNITS = 8;
+    /** Shortest segment worth an encoder of its own, about 10 seconds at 44.1 kHz. */
+    static final int MIN_SEGMENT_ACCESS_UNITS = 430;
+    private static final int READ_ACCESS_UNITS = 16;
+
+    private final AacEncoder.Factory factory;
+    private final int threadCount;
+
+    /**
+     * @param factory     creates the encoder of each segment
+     * @param threadCount most encoders running at the same time
+     */
+    ParallelAacConverter(AacEncoder.Factory factory, int threadCount){
+        this.factory = factory;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * @return number of encoders worth running at the same time on this device
+     */
+    static int defaultThreadCount(){
+        return Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Encodes length bytes of PCM found at offset in input and writes the access units to track in order. Encoded
+     * segments waiting for their turn are kept in temporary files in workDirectory.
+     */
+    void convert(File input, long offset, long length, int sampleRate, int channelCount, int encoding, int bitRate,
+                 File workDirectory, Track track, ProgressListener listener) throws IOException {
+        final Job job = new Job(input, offset, length, sampleRate, channelCount, encoding, bitRate, workDirectory, listener);
+        Log.i(LOG, "Encoding " + job.totalFrames + " frames as " + job.segmentCount + " segments");
+
+        ExecutorService encoders = Executors.newFixedThreadPool(job.segmentCount, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "aac encoder " + count.incrementAndGet());
+            }
+        });
+        List<Future<Segment>> segments = new ArrayList<>();
+        for(int k = 0; k < job.segmentCount; k++){
+            final int index = k;
+            segments.add(encoders.submit(new Callable<Segment>() {
+                @Override
+                public Segment call() throws IOException {
+                    return job.encodeSegment(index);
+                }
+            }));
+        }
+        encoders.shutdown();
+
+        // Segments are stitched in order as soon as each is done, while the later ones are still encoding.
+        try {
+            long unit = 0;
+            for(int k = 0; k < job.segmentCount; k++){
+                Segment segment = segments.get(k).get();
+                if(k == 0) track.start(segment.format);
+                if(segment.first != unit) Log.e(LOG, "Segment " + k + " starts at access unit " + segment.first + " instead of " + unit);
+                unit = segment.first + segment.copyTo(track, sampleRate);
+            }
+        }catch(InterruptedException e){
+            throw new InterruptedIOException("Interrupted while waiting for an encoded segment");
+        }catch(ExecutionException e){
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Failed to encode a segment", cause);
+        }finally {
+            encoders.shutdownNow();
+            for(Future<Segment> future : segments){
+                try {
+                    future.get().delete();
+                }catch(Exception e){
+                    // The segment failed and its encoder already deleted what it had written.
+                }
+            }
+        }
+    }
+
+    /**
+     * One conversion, split into segments.
+     */
+    private final class Job{
+        private final File input;
+        private final long offset;
+        private final int sampleRate;
+        private final int channelCount;
+        private final int encoding;
+        private final int bitRate;
+        private final File workDirectory;
+        private final ProgressListener listener;
+        private final int frameSize;
+        private final long totalFrames;
+        private final int segmentCount;
+        /** First access unit of each segment, followed by the number of access units in all. */
+        private final long[] boundaries;
+        private final long totalFedFrames;
+        private final AtomicLong fedFrames = new AtomicLong();
+
+        Job(File input, long offset, long length, int sampleRate, int channelCount, int encoding, int bitRate,
+            File workDirectory, ProgressListener listener){
+            this.input = input;
+            this.offset = offset;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.encoding = encoding;
+            this.bitRate = bitRate;
+            this.workDirectory = workDirectory;
+            this.listener = listener;
+            frameSize = AudioProcessingTools.bytesPerSample(encoding) * channelCount;
+            totalFrames = length / frameSize;
+            long totalUnits = (totalFrames + AacEncoder.FRAMES_PER_ACCESS_UNIT - 1) / AacEncoder.FRAMES_PER_ACCESS_UNIT;
+            segmentCount = (int) Math.max(1, Math.min(threadCount, totalUnits / MIN_SEGMENT_ACCESS_UNITS));
+            boundaries = new long[segmentCount + 1];
+            for(int k = 0; k <= segmentCount; k++) boundaries[k] = totalUnits * k / segmentCount;
+            long frames = 0;
+            for(int k = 0; k < segmentCount; k++) frames += inputEnd(k) - inputStart(k);
+            totalFedFrames = frames;
+        }
+
+        private long inputStart(int k){
+            return Math.max(0, boundaries[k] - (k == 0 ? 0 : ROLL_ACCESS_UNITS)) * AacEncoder.FRAMES_PER_ACCESS_UNIT;
+        }
+
+        private long inputEnd(int k){
+            if(k == segmentCount - 1) return totalFrames;
+            return Math.min(totalFrames, (boundaries[k + 1] + ROLL_ACCESS_UNITS) * AacEncoder.FRAMES_PER_ACCESS_UNIT);
+        }
+
+        Segment encodeSegment(int k) throws IOException {
+            final long startFrame = inputStart(k);
+            long endFrame = inputEnd(k);
+            AacEncoder encoder = factory.create();
+            FileChannel channel = null;
+            final Segment segment = new Segment(File.createTempFile("aac", ".tmp", workDirectory));
+            try {
+                int inputEncoding = encoder.start(sampleRate, channelCount, bitRate, encoding);
+                // The delay only decides where the joins fall, they are seamless wherever that is.
+                long delayUnits = (encoder.getDelayFrames() + AacEncoder.FRAMES_PER_ACCESS_UNIT - 1) / AacEncoder.FRAMES_PER_ACCESS_UNIT;
+                segment.first = k == 0 ? 0 : boundaries[k] + delayUnits;
+                final long last = k == segmentCount - 1 ? Long.MAX_VALUE : boundaries[k + 1] + delayUnits;
+                AacEncoder.Output output = new AacEncoder.Output() {
+                    private long unit = startFrame / AacEncoder.FRAMES_PER_ACCESS_UNIT;
+
+                    @Override
+                    public void onAccessUnit(ByteBuffer accessUnit) throws IOException {
+                        if(unit >= segment.first && unit < last) segment.write(accessUnit);
+                        unit++;
+                    }
+                };
+
+                channel = new FileInputStream(input).getChannel();
+                encoder.encode(new SegmentInput(channel, offset + startFrame * frameSize, offset + endFrame * frameSize,
+                        inputEncoding), output);
+                segment.format = encoder.getOutputFormat();
+                segment.finishWriting();
+                return segment;
+            }catch(IOException | RuntimeException e){
+                segment.delete();
+                throw e;
+            }finally {
+                encoder.release();
+                if(channel != null) channel.close();
+            }
+        }
+
+        /**
+         * Reads the PCM of a segment straight into the buffers of the encoder, as much as each one takes.
+         */
+        private final class SegmentInput implements AacEncoder.Input{
+            private final FileChannel channel;
+            private final long end;
+            private final int inputEncoding;
+            private final ByteBuffer conversionBuffer;
+            private long position;
+
+            SegmentInput(FileChannel channel, long position, long end, int inputEncoding){
+                this.channel = channel;
+                this.position = position;
+                this.end = end;
+                this.inputEncoding = inputEncoding;
+                conversionBuffer = inputEncoding == encoding ? null
+                        : ByteBuffer.allocateDirect(READ_ACCESS_UNITS * AacEncoder.FRAMES_PER_ACCESS_UNIT * frameSize);
+            }
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if(position >= end) return -1;
+                int start = dst.position();
+                long from = position;
+                if(conversionBuffer == null){
+                    int length = (int) Math.min(dst.remaining() - dst.remaining() % frameSize, end - position);
+                    int limit = dst.limit();
+                    dst.limit(start + length);
+                    readFully(dst);
+                    dst.limit(limit);
+                }else{
+                    int frames = dst.remaining() / (AudioProcessingTools.bytesPerSample(inputEncoding) * channelCount);
+                    conversionBuffer.clear().limit((int) Math.min(Math.min(frames * frameSize, conversionBuffer.capacity()), end - position));
+                    readFully(conversionBuffer);
+                    conversionBuffer.flip();
+                    AudioProcessingTools.convertPcm(conversionBuffer, encoding, dst, inputEncoding);
+                }
+                listener.onProgress(fedFrames.addAndGet((position - from) / frameSize), totalFedFrames);
+                return dst.position() - start;
+            }
+
+            private void readFully(ByteBuffer dst) throws IOException {
+                while(dst.hasRemaining()){
+                    int read = channel.read(dst, position);
+                    if(read == -1) throw new EOFException("PCM ended early");
+                    position += read;
+                }
+            }
+        }
+    }
+
+    /**
+     * Access units of one segment, kept in a file as a length followed by the bytes of each access unit.
+     */
+    private static final class Segment{
+        private final File file;
+        private final DataOutputStream out;
+        private final byte[] bytes = new byte[8192];
+        private long first;
+        private long count;
+        private MediaFormat format;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        void write(ByteBuffer accessUnit) throws IOException {
+            int length = accessUnit.remaining();
+            out.writeInt(length);
+            if(accessUnit.hasArray()){
+                out.write(accessUnit.array(), accessUnit.arrayOffset() + accessUnit.position(), length);
+            }else{
+                byte[] copy = length <= bytes.length ? bytes : new byte[length];
+                accessUnit.get(copy, 0, length);
+                out.write(copy, 0, length);
+            }
+            count++;
+        }
+
+        void finishWriting() throws IOException {
+            out.close();
+        }
+
+        /**
+         * @return number of access units written
+         */
+        long copyTo(Track track, int sampleRate) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(0);
+                for(long i = 0; i < count; i++){
+                    int length = in.readInt();
+                    if(buffer.capacity() < length) buffer = ByteBuffer.allocate(length);
+                    buffer.clear().limit(length);
+                    in.readFully(buffer.array(), 0, length);
+                    track.writeAccessUnit(buffer, (first + i) * AacEncoder.FRAMES_PER_ACCESS_UNIT * 1000000 / sampleRate);
+                }
+            }finally {
+                in.close();
+            }
+            return count;
+        }
+
+        void delete(){
+            try {
+                out.close();
+            }catch(IOException e){
+                // Only being discarded.
+            }
+            if(file.exists() && !file.delete()) Log.e(LOG, "Failed to delete " + file);
+        }
+    }
+
+    /**
+     * Receives the stitched AAC track.
+     */
+    interface Track{
+        void start(MediaFormat format) throws IOException;
+
+        void writeAccessUnit(ByteBuffer accessUnit, long presentationTimeUs) throws IOException;
+    }
+
+    interface ProgressListener{
+        /**
+         * Called from the encoder threads.
+         * @param encodedFrames frames given to the encoders so far, including the overlap between segments
+         * @param totalFrames   frames the encoders will be given in all
+         */
+        void onProgress(long encodedFrames, long totalFrames);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * First in, first out queue of audio blocks taken from an {@link AudioBufferPool}, drained into codec input
+ * buffers. One thread adds blocks and one thread drains them. A block goes back to its pool as soon as all of it
+ * has been copied out, so the queue never allocates and holds at most as many blocks as the pool has.
+ */
+
+final class PcmBlockQueue {
+    private final AudioBufferPool pool;
+    private final ArrayBlockingQueue<ByteBuffer> blocks;
+    /** Block being drained, only used by the draining thread. */
+    private ByteBuffer head;
+
+    PcmBlockQueue(AudioBufferPool pool){
+        this.pool = pool;
+        blocks = new ArrayBlockingQueue<>(pool.getBufferCount());
+    }
+
+    /**
+     * Queues the data between position and limit of block, which must come from the pool of this queue.
+     */
+    void add(ByteBuffer block){
+        blocks.add(block);
+    }
+
+    /**
+     * @return whether there is no data left to drain
+     */
+    boolean isEmpty(){
+        return (head == null || !head.hasRemaining()) && blocks.isEmpty();
+    }
+
+    /**
+     * Copies as much queued data as fits between position and limit of dst.
+     * @return number of bytes copied
+     */
+    int drainTo(ByteBuffer dst){
+        int copied = 0;
+        while(dst.hasRemaining()){
+            if(head == null){
+                head = blocks.poll();
+                if(head == null) break;
+            }
+            int length = Math.min(head.remaining(), dst.remaining());
+            int limit = head.limit();
+            head.limit(head.position() + length);
+            dst.put(head);
+            head.limit(limit);
+            copied += length;
+            if(!head.hasRemaining()){
+                pool.release(head);
+                head = null;
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Returns all blocks still queued to the pool. Called by the draining thread.
+     */
+    void clear(){
+        if(head != null){
+            pool.release(head);
+            head = null;
+        }
+        ByteBuffer block;
+        while((block = blocks.poll()) != null) pool.release(block);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+/**
+ * Format of the audio blocks a {@link PcmSink} receives.
+ */
+
+final class PcmFormat {
+    final int sampleRate;
+    final int channelCount;
+    /** One of the AudioFormat.ENCODING_PCM_* constants. */
+    final int encoding;
+    /** Largest block the sink will be given, in bytes. */
+    final int blockSize;
+
+    PcmFormat(int sampleRate, int channelCount, int encoding, int blockSize){
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.encoding = encoding;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return the same format at another sample rate, with blocks of up to blockSize bytes
+     */
+    PcmFormat withSampleRate(int sampleRate, int blockSize){
+        return new PcmFormat(sampleRate, channelCount, encoding, blockSize);
+    }
+
+    int getFrameSize(){
+        return AudioProcessingTools.bytesPerSample(encoding) * channelCount;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+/**
+ * Processing stage run on the capture thread between reading a block and applying gain. Stages work on float
+ * samples in the range -1 to 1, decoded once per block by the {@link GainKernel} whatever the recording encoding
+ * is. Implementations must not allocate in {@link #process(float[], int)}.
+ */
+
+interface PcmProcessor {
+    /**
+     * Processes interleaved samples in place.
+     * @param samples    interleaved samples, channelCount per frame
+     * @param frameCount number of frames in samples
+     */
+    void process(float[] samples, int frameCount);
+}
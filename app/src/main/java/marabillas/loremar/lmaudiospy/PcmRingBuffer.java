@@ -0,0 +1,146 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring of PCM blocks between exactly one producer (the capture thread) and one consumer (the writer
+ * thread). Every slot holds a preallocated direct buffer which the producer fills in place and the consumer drains
+ * in place, so blocks are never copied or allocated on their way through the ring. Next to each block the slot
+ * holds the view the {@link GainKernel} reads and writes the block through.
+ *
+ * Producer side: {@link #claim()}, fill the buffer through it and {@link #claimedView()}, {@link #publish()}.
+ * Consumer side: {@link #peek()}, drain the buffer, {@link #release()}.
+ */
+
+final class PcmRingBuffer {
+    private final ByteBuffer[] blocks;
+    private final Buffer[] views;
+    private final int mask;
+
+    // Index of the next block to be read. Written by the consumer only.
+    private final AtomicLong head = new AtomicLong();
+    // Index of the next block to be written. Written by the producer only.
+    private final AtomicLong tail = new AtomicLong();
+    // Local copies of the other side's index so the volatile read is only done when the ring looks full/empty.
+    private long producerHeadCache;
+    private long consumerTailCache;
+
+    private volatile int highWaterMark;
+    private volatile long overruns;
+
+    /**
+     * @param capacity  number of blocks, rounded up to a power of two
+     * @param blockSize capacity in bytes of each block
+     * @param encoding  one of the AudioFormat.ENCODING_PCM_* constants, for the views of the blocks
+     */
+    PcmRingBuffer(int capacity, int blockSize, int encoding){
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        blocks = new ByteBuffer[size];
+        views = new Buffer[size];
+        for(int i = 0; i < size; i++){
+            blocks[i] = ByteBuffer.allocateDirect(blockSize).order(ByteOrder.LITTLE_ENDIAN);
+            views[i] = GainKernel.createView(encoding, blocks[i]);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Producer only. Returns the cleared buffer of the next free slot, or null if the consumer has fallen behind
+     * and the ring is full. A null result is counted as an overrun.
+     */
+    ByteBuffer claim(){
+        long t = tail.get();
+        if(t - producerHeadCache >= blocks.length){
+            producerHeadCache = head.get();
+            if(t - producerHeadCache >= blocks.length){
+                overruns++;
+                return null;
+            }
+        }
+        ByteBuffer block = blocks[(int) (t & mask)];
+        block.clear();
+        return block;
+    }
+
+    /**
+     * Producer only. Returns the view made by {@link GainKernel#createView(int, ByteBuffer)} of the block obtained
+     * from the last successful {@link #claim()}.
+     */
+    Buffer claimedView(){
+        return views[(int) (tail.get() & mask)];
+    }
+
+    /**
+     * Producer only. Makes the block obtained from the last {@link #claim()} visible to the consumer.
+     */
+    void publish(){
+        long t = tail.get() + 1;
+        tail.lazySet(t);
+        // The cached head may be many releases behind, so occupancy is taken from a fresh read of it.
+        int used = (int) (t - head.get());
+        if(used > highWaterMark) highWaterMark = used;
+    }
+
+    /**
+     * Consumer only. Returns the oldest published block without removing it, or null if the ring is empty.
+     */
+    ByteBuffer peek(){
+        long h = head.get();
+        if(h >= consumerTailCache){
+            consumerTailCache = tail.get();
+            if(h >= consumerTailCache) return null;
+        }
+        return blocks[(int) (h & mask)];
+    }
+
+    /**
+     * Consumer only. Hands the block returned by {@link #peek()} back to the producer.
+     */
+    void release(){
+        head.lazySet(head.get() + 1);
+    }
+
+    boolean isEmpty(){
+        return head.get() == tail.get();
+    }
+
+    int getCapacity(){
+        return blocks.length;
+    }
+
+    /**
+     * @return most blocks that were waiting in the ring at the same time
+     */
+    int getHighWaterMark(){
+        return highWaterMark;
+    }
+
+    /**
+     * @return number of blocks the producer had to drop because the ring was full
+     */
+    long getOverruns(){
+        return overruns;
+    }
+}
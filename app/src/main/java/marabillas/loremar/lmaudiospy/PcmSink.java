@@ -0,0 +1,47 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the processed audio blocks of a {@link RecordingSession}. All methods are called on the session's
+ * writer thread, in the order open, write..., close.
+ */
+
+interface PcmSink {
+    /**
+     * Called once before the first block.
+     * @param format format of the blocks that will be written
+     */
+    void open(PcmFormat format) throws IOException;
+
+    /**
+     * @param block audio data between position and limit. The buffer is reused by the session as soon as this
+     *              method returns, so it must not be kept.
+     */
+    void write(ByteBuffer block) throws IOException;
+
+    /**
+     * Called once after the last block, also when recording ended because of an error.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,50 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of raw PCM audio read by a {@link RecordingSession}. Mirrors the parts of AudioRecord the recording
+ * path uses, so the session can run against something other than the microphone.
+ */
+
+interface PcmSource {
+    /**
+     * @return one of the AudioFormat.ENCODING_PCM_* constants
+     */
+    int getAudioFormat();
+
+    int getSampleRate();
+
+    int getChannelCount();
+
+    void startRecording();
+
+    /**
+     * Reads audio data into the start of the buffer, the same way as AudioRecord.read(ByteBuffer, int).
+     * @return number of bytes read, or a negative error code
+     */
+    int read(ByteBuffer buffer, int sizeInBytes);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,80 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Collects the raw PCM data of the recording in a file so it can be converted to M4A after recording. Writes are
+ * coalesced by a {@link WriteBehindWriter}, so memory use doesn't depend on the length of the recording.
+ */
+
+final class PcmSpoolSink implements PcmSink {
+    static final String EXTENSION = ".pcm";
+
+    private final File file;
+    private FileChannel fileChannel;
+    private WriteBehindWriter writer;
+
+    /**
+     * @param file file to spool to. Whoever converts it deletes it afterwards.
+     */
+    PcmSpoolSink(File file){
+        this.file = file;
+    }
+
+    /**
+     * @return directory spool files are kept in, on external storage when available since they can be large
+     */
+    static File getSpoolDirectory(Context context){
+        File directory = context.getExternalCacheDir();
+        return directory != null ? directory : context.getCacheDir();
+    }
+
+    @Override
+    public void open(PcmFormat format) throws IOException {
+        fileChannel = new FileOutputStream(file).getChannel();
+        writer = new WriteBehindWriter(fileChannel, 0, WriteBehindWriter.Durability.NONE);
+    }
+
+    @Override
+    public void write(ByteBuffer block) throws IOException {
+        writer.write(block);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.close();
+        }finally {
+            fileChannel.close();
+        }
+    }
+
+    File getFile(){
+        return file;
+    }
+}
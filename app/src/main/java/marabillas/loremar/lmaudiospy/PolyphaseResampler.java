@@ -0,0 +1,203 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+/**
+ * Streaming sample rate converter for interleaved float audio. The ratio between the rates is reduced to
+ * up/down, and a Kaiser windowed sinc low-pass filter designed at up times the input rate is split into up
+ * phases of {@link #TAPS_PER_PHASE} taps. Each output sample only evaluates the one phase it falls on, so no
+ * work is spent on the zeros of the upsampled signal or on samples dropped by decimation. Integer ratios take
+ * loops without the phase bookkeeping.
+ *
+ * The filter, the coefficients and the input history are allocated in the constructor, and the history carries
+ * the filter across calls, so blocks of any size up to the maximum can be given in a stream.
+ */
+
+final class PolyphaseResampler {
+    static final int TAPS_PER_PHASE = 48;
+    private static final double KAISER_BETA = 7;
+    /** Cutoff relative to the lower Nyquist frequency, leaving room for the transition band. */
+    private static final double ROLLOFF = 0.92;
+
+    private final int channelCount;
+    private final int up;
+    private final int down;
+    private final int maxInputFrames;
+    // Coefficients of each phase, in the order of the input samples they multiply, oldest first.
+    private final float[] coefficients;
+    // Per channel, TAPS_PER_PHASE - 1 samples of history followed by the current input.
+    private final float[][] history;
+    private int position = TAPS_PER_PHASE - 1;
+    private int phase;
+
+    /**
+     * @param inputRate      sample rate of the input
+     * @param outputRate     sample rate of the output
+     * @param channelCount   number of interleaved channels
+     * @param maxInputFrames most frames given to a single {@link #process(float[], int, float[])} call
+     */
+    PolyphaseResampler(int inputRate, int outputRate, int channelCount, int maxInputFrames){
+        int divisor = gcd(inputRate, outputRate);
+        up = outputRate / divisor;
+        down = inputRate / divisor;
+        this.channelCount = channelCount;
+        this.maxInputFrames = maxInputFrames;
+
+        int length = up * TAPS_PER_PHASE;
+        double cutoff = 0.5 * ROLLOFF / Math.max(up, down);
+        double center = (length - 1) / 2.0;
+        double i0Beta = besselI0(KAISER_BETA);
+        coefficients = new float[length];
+        for(int n = 0; n < length; n++){
+            double t = n - center;
+            double sinc = t == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            double r = t / (center + 1);
+            double window = besselI0(KAISER_BETA * Math.sqrt(1 - r * r)) / i0Beta;
+            // Tap n of the prototype belongs to phase n % up and multiplies input sample n / up taps back.
+            int p = n % up;
+            int k = n / up;
+            coefficients[p * TAPS_PER_PHASE + (TAPS_PER_PHASE - 1 - k)] = (float) (up * sinc * window);
+        }
+        history = new float[channelCount][TAPS_PER_PHASE - 1 + maxInputFrames];
+    }
+
+    private static int gcd(int a, int b){
+        while(b != 0){
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static double besselI0(double x){
+        double sum = 1;
+        double term = 1;
+        for(int k = 1; k < 50; k++){
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if(term < sum * 1e-12) break;
+        }
+        return sum;
+    }
+
+    /**
+     * @return most output frames a call with the given number of input frames can produce
+     */
+    int getMaxOutputFrames(int inputFrames){
+        return (int) (((long) inputFrames * up + down - 1) / down) + 1;
+    }
+
+    /**
+     * Converts a block of interleaved input.
+     * @param input       interleaved input samples
+     * @param inputFrames number of input frames, at most the maximum given to the constructor
+     * @param output      receives interleaved output samples, sized for {@link #getMaxOutputFrames(int)}
+     * @return number of output frames written
+     */
+    int process(float[] input, int inputFrames, float[] output){
+        if(inputFrames > maxInputFrames) throw new IllegalArgumentException("Block is larger than the resampler was made for");
+        final int channelCount = this.channelCount;
+        final int historyLength = TAPS_PER_PHASE - 1;
+        for(int c = 0; c < channelCount; c++){
+            float[] buffer = history[c];
+            for(int f = 0, i = c; f < inputFrames; f++, i += channelCount){
+                buffer[historyLength + f] = input[i];
+            }
+        }
+
+        final int end = historyLength + inputFrames;
+        int outputFrames;
+        if(up == 1){
+            outputFrames = decimate(end, output);
+        }else if(down == 1){
+            outputFrames = interpolate(end, output);
+        }else{
+            outputFrames = convert(end, output);
+        }
+
+        position -= inputFrames;
+        for(int c = 0; c < channelCount; c++){
+            System.arraycopy(history[c], inputFrames, history[c], 0, historyLength);
+        }
+        return outputFrames;
+    }
+
+    private float filter(float[] buffer, int newest, int phaseOffset){
+        final float[] coefficients = this.coefficients;
+        int start = newest - (TAPS_PER_PHASE - 1);
+        float sum = 0;
+        for(int k = 0; k < TAPS_PER_PHASE; k++){
+            sum += coefficients[phaseOffset + k] * buffer[start + k];
+        }
+        return sum;
+    }
+
+    /**
+     * Integer decimation, every output uses the single phase.
+     */
+    private int decimate(int end, float[] output){
+        int frames = 0;
+        int i = position;
+        for(; i < end; i += down, frames++){
+            for(int c = 0; c < channelCount; c++){
+                output[frames * channelCount + c] = filter(history[c], i, 0);
+            }
+        }
+        position = i;
+        return frames;
+    }
+
+    /**
+     * Integer interpolation, every input yields one output per phase.
+     */
+    private int interpolate(int end, float[] output){
+        int frames = 0;
+        for(int i = position; i < end; i++){
+            for(int p = 0; p < up; p++, frames++){
+                for(int c = 0; c < channelCount; c++){
+                    output[frames * channelCount + c] = filter(history[c], i, p * TAPS_PER_PHASE);
+                }
+            }
+        }
+        position = end;
+        return frames;
+    }
+
+    private int convert(int end, float[] output){
+        int frames = 0;
+        int i = position;
+        int p = phase;
+        while(i < end){
+            for(int c = 0; c < channelCount; c++){
+                output[frames * channelCount + c] = filter(history[c], i, p * TAPS_PER_PHASE);
+            }
+            frames++;
+            p += down;
+            while(p >= up){
+                p -= up;
+                i++;
+            }
+        }
+        position = i;
+        phase = p;
+        return frames;
+    }
+}
@@ -21,7 +21,6 @@ package marabillas.loremar.lmaudiospy;
 
 import android.app.Fragment;
 import android.content.SharedPreferences;
-import android.media.AudioFormat;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -50,23 +49,44 @@ public class PostRecordingFragment extends Fragment implements View.OnClickListe
     private Handler mainHandler;
     private boolean saveToWav;
     private Runnable converttoM4aBlinkingText;
+    private RecordingJournal journal;
+    private ConversionScheduler.Conversion conversion;
+    /** Set on the UI thread once the conversion has ended and its outcome is shown. */
+    private boolean conversionEnded;
+    private final StringBuilder conversionProgress = new StringBuilder();
+    private final ProgressChannel.Listener conversionProgressListener = new ProgressChannel.Listener() {
+        @Override
+        public void onProgressChanged() {
+            // Once converted the text is replaced by the names of the saved files.
+            if(conversion == null || conversionEnded || conversion.getProgress() == 100) return;
+            conversionProgress.setLength(0);
+            conversionProgress.append("Converting audio to M4A...");
+            conversion.appendProgress(conversionProgress);
+            textView.setText(conversionProgress.toString());
+        }
+    };
+
+    /**
+     * @param journal journal of the recording, released once the M4A file is complete
+     */
+    synchronized void setJournal(RecordingJournal journal){
+        this.journal = journal;
+    }
+
+    private synchronized void releaseJournal(){
+        if(journal != null){
+            journal.release();
+            journal = null;
+        }
+    }
 
     @Nullable
     @Override
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, Bundle savedInstanceState) {
         SharedPreferences prefs = getActivity().getSharedPreferences("settings", 0);
-        int prefOutFormat = prefs.getInt("output_format", R.id.wavAndM4a);
-        int channelConfig = AudioSpy.getPrefChannelConfig(prefs);
-        int channelCount = 1;
-        switch(channelConfig){
-            case AudioFormat.CHANNEL_IN_MONO: channelCount = 1; break;
-            case AudioFormat.CHANNEL_IN_STEREO: channelCount = 2; break;
-        }
-        AudioSpy.identifyIfSavetoWavOrM4a(prefOutFormat);
-        final boolean saveToM4a = AudioSpy.isSaveToM4a();
-        saveToWav = AudioSpy.isSaveToWav();
-        byte[] data = null;
-        if(saveToM4a) data = getArguments().getByteArray("audio data");
+        RecordingSettings settings = RecordingSettings.fromPreferences(prefs);
+        saveToWav = settings.saveToWav;
+        File spool = getArguments().getString("spool") != null ? new File(getArguments().getString("spool")) : null;
 
         name = getArguments().getString("name");
         View view = inflater.inflate(R.layout.post_recording, container, false);
@@ -86,47 +106,37 @@ public class PostRecordingFragment extends Fragment implements View.OnClickListe
             return null;
         }
 
-        int whenToConvertAudio = prefs.getInt("when_to_convert", R.id.afterRecording);
-
         mainHandler = new Handler(Looper.getMainLooper());
 
-        if(saveToM4a && whenToConvertAudio == R.id.afterRecording) {
-            final int SAMPLE_RATE = Integer.parseInt(prefs.getString("sample_rate", "44100"));
-            final int BIT_RATE = Integer.parseInt(prefs.getString("bit_rate", "256000"));
-            new AudioProcessingTools.AudioConverterThread(new ThreadGroup("encoders"), name, data, SAMPLE_RATE, BIT_RATE, channelCount, saveDirectory) {
+        if(settings.isConvertAfterRecording() && spool != null) {
+            ConversionScheduler.Request request = ConversionScheduler.Request.forSpool(name, spool, saveDirectory, settings);
+            conversion = ConversionScheduler.get(getActivity()).submit(request, ConversionScheduler.PRIORITY_USER, new ConversionScheduler.Listener() {
                 @Override
-                void updateConversionProgress() {
-                    final StringBuilder logString = new StringBuilder();
-                    if (this.lastProgress < 100) {
-                        logString.append("Converting audio to M4A...").append(this.progressRate).append("%\n");
-                    }
-                    mainHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            textView.setText(logString.toString());
-                        }
-                    });
-                }
-
-                @Override
-                void onFinished() {
+                public void onConversionDone(final ConversionScheduler.Conversion conversion, final boolean converted) {
+                    // After a failed conversion the journal is kept, so recovery tries again on the next start.
+                    if(converted || conversion.isCancelled()) releaseJournal();
                     mainHandler.post(new Runnable() {
                         @Override
                         public void run() {
+                            conversionEnded = true;
                             String text;
-                            if(saveToWav) {
-                                text = "Audio saved as " + name + ".wav, " + name + ".m4a";
+                            if(converted){
+                                text = saveToWav ? "Audio saved as " + name + ".wav, " + name + ".m4a"
+                                        : "Audio saved as " + name + ".m4a";
                             }
                             else{
-                                text = "Audio saved as " + name + ".m4a";
+                                text = conversion.isCancelled() ? "Conversion to M4A cancelled."
+                                        : "Failed to convert audio to M4A. It will be tried again the next time the app starts.";
+                                if(saveToWav) text += "\nAudio saved as " + name + ".wav";
                             }
                             textView.setText(text);
                             button.setVisibility(View.VISIBLE);
-                            rename.setVisibility(View.VISIBLE);
+                            // Only files that were saved can be renamed.
+                            if(converted || saveToWav) rename.setVisibility(View.VISIBLE);
                         }
                     });
                 }
-            }.start();
+            });
         }
         else if(saveToWav){
             String text = "Audio saved as " + name + ".wav";
@@ -180,6 +190,7 @@ public class PostRecordingFragment extends Fragment implements View.OnClickListe
 
     @Override
     public void onEncodingFinished() {
+        releaseJournal();
         mainHandler.removeCallbacks(converttoM4aBlinkingText);
         mainHandler.post(new Runnable() {
             @Override
@@ -198,6 +209,18 @@ public class PostRecordingFragment extends Fragment implements View.OnClickListe
         });
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        ConversionScheduler.get(getActivity()).getProgressChannel().addListener(conversionProgressListener);
+    }
+
+    @Override
+    public void onPause() {
+        ConversionScheduler.get(getActivity()).getProgressChannel().removeListener(conversionProgressListener);
+        super.onPause();
+    }
+
     @Override
     public void onStop() {
         if(AudioProcessingTools.codec != null) {
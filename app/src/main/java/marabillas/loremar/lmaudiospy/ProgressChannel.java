@@ -0,0 +1,82 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Carries progress from worker threads to the UI thread. Workers only mark the channel as changed, which doesn't
+ * allocate once the first change is pending, and listeners are told at most once per display frame. Listeners read
+ * the latest values themselves, so any number of changes between two frames coalesce into one update.
+ */
+
+final class ProgressChannel implements Runnable, Choreographer.FrameCallback {
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean pending = new AtomicBoolean();
+    /** Only used on the UI thread. */
+    private final List<Listener> listeners = new ArrayList<>();
+
+    /**
+     * Schedules an update of the listeners on the next frame. Can be called from any thread.
+     */
+    void invalidate(){
+        if(pending.compareAndSet(false, true)) handler.post(this);
+    }
+
+    /**
+     * Must be called on the UI thread. The listener is updated on the next frame.
+     */
+    void addListener(Listener listener){
+        listeners.add(listener);
+        invalidate();
+    }
+
+    /**
+     * Must be called on the UI thread.
+     */
+    void removeListener(Listener listener){
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void run() {
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // Cleared first, so changes made while the listeners run are shown on the next frame.
+        pending.set(false);
+        for(int i = 0; i < listeners.size(); i++) listeners.get(i).onProgressChanged();
+    }
+
+    interface Listener{
+        /**
+         * Called on the UI thread at most once per frame after the progress has changed.
+         */
+        void onProgressChanged();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+/**
+ * FFT of real signals of a fixed power of two size. A signal of size N is transformed as a complex signal of size
+ * N/2 made of its even and odd samples, and the two halves are separated afterwards, which takes about half the
+ * work of a complex FFT of size N. Tables and work arrays are allocated once, so transforms don't allocate. An
+ * instance is not thread safe.
+ */
+
+final class RealFft {
+    private final int size;
+    private final int half;
+    private final int[] bitReverse;
+    // Twiddles of the complex FFT of size N/2.
+    private final float[] cos;
+    private final float[] sin;
+    // Twiddles e^(-2 pi i k / N) separating the even and odd halves.
+    private final float[] splitCos;
+    private final float[] splitSin;
+    private final float[] zr;
+    private final float[] zi;
+
+    /**
+     * @param size number of real samples per transform, a power of two of at least 4
+     */
+    RealFft(int size){
+        if(size < 4 || Integer.bitCount(size) != 1) throw new IllegalArgumentException("FFT size must be a power of two");
+        this.size = size;
+        half = size / 2;
+        bitReverse = new int[half];
+        int bits = Integer.numberOfTrailingZeros(half);
+        for(int i = 0; i < half; i++){
+            bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        cos = new float[half / 2];
+        sin = new float[half / 2];
+        for(int i = 0; i < half / 2; i++){
+            cos[i] = (float) Math.cos(2 * Math.PI * i / half);
+            sin[i] = (float) -Math.sin(2 * Math.PI * i / half);
+        }
+        splitCos = new float[half + 1];
+        splitSin = new float[half + 1];
+        for(int k = 0; k <= half; k++){
+            splitCos[k] = (float) Math.cos(2 * Math.PI * k / size);
+            splitSin[k] = (float) -Math.sin(2 * Math.PI * k / size);
+        }
+        zr = new float[half];
+        zi = new float[half];
+    }
+
+    int getSize(){
+        return size;
+    }
+
+    /**
+     * @return number of bins of the spectrum, from 0 to the Nyquist frequency
+     */
+    int getBinCount(){
+        return half + 1;
+    }
+
+    /**
+     * @param input size real samples
+     * @param re    receives the real parts of bins 0 to size/2
+     * @param im    receives the imaginary parts of bins 0 to size/2
+     */
+    void forward(float[] input, float[] re, float[] im){
+        final float[] zr = this.zr;
+        final float[] zi = this.zi;
+        for(int n = 0; n < half; n++){
+            int j = bitReverse[n];
+            zr[j] = input[2 * n];
+            zi[j] = input[2 * n + 1];
+        }
+        transform(false);
+        for(int k = 0; k <= half; k++){
+            int a = k == half ? 0 : k;
+            int b = k == 0 ? 0 : half - k;
+            // Even part (Z[k] + conj Z[N/2 - k]) / 2, odd part (Z[k] - conj Z[N/2 - k]) / 2i.
+            float er = (zr[a] + zr[b]) * 0.5f;
+            float ei = (zi[a] - zi[b]) * 0.5f;
+            float or = (zi[a] + zi[b]) * 0.5f;
+            float oi = (zr[b] - zr[a]) * 0.5f;
+            float wr = splitCos[k];
+            float wi = splitSin[k];
+            re[k] = er + wr * or - wi * oi;
+            im[k] = ei + wr * oi + wi * or;
+        }
+    }
+
+    /**
+     * Inverse of {@link #forward(float[], float[], float[])}, including the 1/size scaling.
+     * @param re     real parts of bins 0 to size/2
+     * @param im     imaginary parts of bins 0 to size/2
+     * @param output receives size real samples
+     */
+    void inverse(float[] re, float[] im, float[] output){
+        final float[] zr = this.zr;
+        final float[] zi = this.zi;
+        for(int k = 0; k < half; k++){
+            int b = half - k;
+            // Even part (X[k] + conj X[N/2 - k]) / 2, odd part (X[k] - conj X[N/2 - k]) e^(2 pi i k / N) / 2.
+            float er = (re[k] + re[b]) * 0.5f;
+            float ei = (im[k] - im[b]) * 0.5f;
+            float dr = (re[k] - re[b]) * 0.5f;
+            float di = (im[k] + im[b]) * 0.5f;
+            float wr = splitCos[k];
+            float wi = -splitSin[k];
+            float or = dr * wr - di * wi;
+            float oi = dr * wi + di * wr;
+            int j = bitReverse[k];
+            zr[j] = er - oi;
+            zi[j] = ei + or;
+        }
+        transform(true);
+        final float scale = 1f / half;
+        for(int n = 0; n < half; n++){
+            output[2 * n] = zr[n] * scale;
+            output[2 * n + 1] = zi[n] * scale;
+        }
+    }
+
+    /**
+     * In place radix-2 complex FFT of {@link #zr} and {@link #zi}, which must already be in bit reversed order.
+     */
+    private void transform(boolean inverse){
+        final float[] zr = this.zr;
+        final float[] zi = this.zi;
+        final float direction = inverse ? -1f : 1f;
+        for(int length = 2; length <= half; length <<= 1){
+            int halfLength = length >> 1;
+            int step = half / length;
+            for(int start = 0; start < half; start += length){
+                for(int j = 0; j < halfLength; j++){
+                    float wr = cos[j * step];
+                    float wi = sin[j * step] * direction;
+                    int p = start + j;
+                    int q = p + halfLength;
+                    float tr = zr[q] * wr - zi[q] * wi;
+                    float ti = zr[q] * wi + zi[q] * wr;
+                    zr[q] = zr[p] - tr;
+                    zi[q] = zi[p] - ti;
+                    zr[p] += tr;
+                    zi[p] += ti;
+                }
+            }
+        }
+    }
+}
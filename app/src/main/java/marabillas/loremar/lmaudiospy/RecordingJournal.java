@@ -0,0 +1,355 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small file kept in the app's private storage for as long as a recording and the conversions that follow it are
+ * running. A journal still present when the app starts means the process died in the middle of a recording. Its
+ * files are then repaired by {@link #recoverInBackground(Context)}: WAV headers are fixed in place and M4A files
+ * that can't be played are encoded again from the spool, or from the WAV file when there is no spool.
+ *
+ * Everything that has to finish before the recording is complete holds a reference to the journal, and the file
+ * is deleted when the last one is released.
+ */
+
+final class RecordingJournal {
+    private static final String LOG = "Loremar_Logs";
+    private static final String DIRECTORY = "journal";
+    private static final String EXTENSION = ".journal";
+    /** Names of the recordings whose journals belong to this process, which recovery must leave alone. */
+    private static final Set<String> active = new HashSet<>();
+    private static final AtomicBoolean recovering = new AtomicBoolean();
+    /** Result of {@link #recover(File, ConversionScheduler)}: a file of the recording had to be repaired. */
+    private static final int REPAIRED = 1;
+    /** Result of {@link #recover(File, ConversionScheduler)}: an M4A file is still missing, so the journal is kept. */
+    private static final int INCOMPLETE = 2;
+
+    private final File file;
+    private final String name;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private RecordingJournal(File file, String name){
+        this.file = file;
+        this.name = name;
+    }
+
+    /**
+     * Writes the journal of a recording that is about to start. The returned journal holds one reference, for the
+     * recording session.
+     * @param segmented whether the recording is split by {@link SegmentedSink}
+     * @param spoolDirectory directory of the {@link PcmSpoolSink} files for conversion after recording, or null
+     */
+    static RecordingJournal begin(Context context, RecordingSettings settings, String saveDirectory, String name,
+                                  boolean segmented, File spoolDirectory){
+        Properties properties = new Properties();
+        properties.setProperty("directory", saveDirectory);
+        properties.setProperty("name", name);
+        properties.setProperty("segmented", String.valueOf(segmented));
+        properties.setProperty("wav", String.valueOf(settings.saveToWav));
+        properties.setProperty("m4a", String.valueOf(settings.saveToM4a));
+        properties.setProperty("m4a_sample_rate", String.valueOf(settings.m4aSampleRate));
+        properties.setProperty("bit_rate", String.valueOf(settings.bitRate));
+        properties.setProperty("channel_count", String.valueOf(settings.channelCount));
+        properties.setProperty("encoding", String.valueOf(settings.encodingFormat));
+        if(spoolDirectory != null) properties.setProperty("spool_directory", spoolDirectory.getAbsolutePath());
+
+        File directory = new File(context.getFilesDir(), DIRECTORY);
+        File file = new File(directory, name + EXTENSION);
+        synchronized(active){
+            active.add(name);
+        }
+        FileOutputStream out = null;
+        try {
+            if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Failed to create " + directory);
+            out = new FileOutputStream(file);
+            properties.store(out, null);
+            out.getFD().sync();
+        }catch(IOException e){
+            Log.e(LOG, "IOException in writing recording journal", e);
+        }finally {
+            if(out != null){
+                try {
+                    out.close();
+                }catch(IOException e){
+                    Log.e(LOG, "IOException in closing recording journal", e);
+                }
+            }
+        }
+        return new RecordingJournal(file, name);
+    }
+
+    /**
+     * Adds a reference for work, such as a conversion, that has to finish before the recording is complete.
+     */
+    void retain(){
+        references.incrementAndGet();
+    }
+
+    /**
+     * Drops a reference. The journal is deleted once no references are left. Can be called from any thread.
+     */
+    void release(){
+        if(references.decrementAndGet() != 0) return;
+        if(file.exists() && !file.delete()) Log.e(LOG, "Failed to delete recording journal " + file);
+        synchronized(active){
+            active.remove(name);
+        }
+    }
+
+    /**
+     * Repairs the recordings left by journals of earlier processes on a background thread, so the caller isn't
+     * delayed. A toast is shown when something was recovered.
+     */
+    static void recoverInBackground(final Context context){
+        if(!recovering.compareAndSet(false, true)) return;
+        final File directory = new File(context.getFilesDir(), DIRECTORY);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                // Conversions left by the earlier process are queued again first, so they aren't repeated here.
+                ConversionScheduler scheduler = ConversionScheduler.get(context);
+                try {
+                    scheduler.awaitReady();
+                }catch(InterruptedException e){
+                    Log.e(LOG, "Recording recovery interrupted", e);
+                    recovering.set(false);
+                    return;
+                }
+                int recovered = 0;
+                File[] journals = directory.listFiles();
+                if(journals == null) journals = new File[0];
+                for(File journal : journals){
+                    if(!journal.getName().endsWith(EXTENSION)) continue;
+                    String name = journal.getName().substring(0, journal.getName().length() - EXTENSION.length());
+                    synchronized(active){
+                        if(active.contains(name)) continue;
+                    }
+                    int result = recover(journal, scheduler);
+                    if((result & REPAIRED) != 0) recovered++;
+                    if((result & INCOMPLETE) != 0){
+                        // Tried again the next time the app starts.
+                        Log.w(LOG, "Recording " + name + " not fully recovered, keeping its journal");
+                        continue;
+                    }
+                    if(!journal.delete()) Log.e(LOG, "Failed to delete recording journal " + journal);
+                }
+                recovering.set(false);
+                if(recovered > 0){
+                    final int count = recovered;
+                    new Handler(Looper.getMainLooper()).post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(context, context.getString(R.string.recordings_recovered, count),
+                                    Toast.LENGTH_LONG).show();
+                        }
+                    });
+                }
+            }
+        }, "recording recovery");
+        thread.start();
+    }
+
+    /**
+     * Spools are only deleted once their M4A file is playable, since for recordings saved only as M4A they hold
+     * the only copy of the audio.
+     * @return {@link #REPAIRED} and {@link #INCOMPLETE} flags
+     */
+    private static int recover(File journal, ConversionScheduler scheduler){
+        Properties properties = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(journal);
+            properties.load(in);
+        }catch(IOException e){
+            Log.e(LOG, "IOException in reading recording journal " + journal, e);
+            return 0;
+        }finally {
+            if(in != null){
+                try {
+                    in.close();
+                }catch(IOException e){
+                    Log.e(LOG, "IOException in closing recording journal", e);
+                }
+            }
+        }
+
+        String saveDirectory = properties.getProperty("directory");
+        String name = properties.getProperty("name");
+        if(saveDirectory == null || name == null) return 0;
+        Log.i(LOG, "Recovering interrupted recording " + name);
+        boolean segmented = Boolean.parseBoolean(properties.getProperty("segmented"));
+        String spoolDirectory = properties.getProperty("spool_directory");
+        List<String> names = new ArrayList<>();
+        if(segmented){
+            // A segment saved only as M4A after recording may have nothing but its spool yet.
+            for(int i = 0; new File(saveDirectory, SegmentedSink.segmentName(name, i) + ".wav").exists()
+                    || new File(saveDirectory, SegmentedSink.segmentName(name, i) + ".m4a").exists()
+                    || spoolDirectory != null && new File(spoolDirectory,
+                    SegmentedSink.segmentName(name, i) + PcmSpoolSink.EXTENSION).exists(); i++){
+                names.add(SegmentedSink.segmentName(name, i));
+            }
+        }else{
+            names.add(name);
+        }
+
+        int result = 0;
+        for(String segment : names){
+            File wav = new File(saveDirectory, segment + ".wav");
+            if(wav.exists() && repairWav(wav)) result |= REPAIRED;
+        }
+        boolean m4a = Boolean.parseBoolean(properties.getProperty("m4a"));
+        for(String segment : names){
+            File spool = spoolDirectory != null ? new File(spoolDirectory, segment + PcmSpoolSink.EXTENSION) : null;
+            if(scheduler.getConversion(segment) != null){
+                // Still queued from the earlier process, checked again on the next start.
+                result |= INCOMPLETE;
+                continue;
+            }
+            boolean complete = !m4a || isPlayable(new File(saveDirectory, segment + ".m4a"));
+            if(!complete){
+                boolean raw = spool != null && spool.exists();
+                File source = raw ? spool : new File(saveDirectory, segment + ".wav");
+                if(!source.exists()){
+                    // Nothing is left to encode it from, so there is nothing to wait for either.
+                    Log.e(LOG, "No audio left to rebuild " + segment + ".m4a from");
+                    complete = true;
+                }else if(rebuildM4a(source, raw, segment, saveDirectory, properties, scheduler)){
+                    complete = true;
+                    result |= REPAIRED;
+                }else{
+                    result |= INCOMPLETE;
+                }
+            }
+            if(complete && spool != null && spool.exists() && !spool.delete()) Log.e(LOG, "Failed to delete spool " + spool);
+        }
+        return result;
+    }
+
+    private static boolean repairWav(File wav){
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(wav, "rw");
+            boolean repaired = AudioProcessingTools.repairWav(file.getChannel());
+            if(repaired) Log.i(LOG, "Repaired header of " + wav.getName());
+            return repaired;
+        }catch(IOException e){
+            Log.e(LOG, "IOException in repairing " + wav, e);
+            return false;
+        }finally {
+            if(file != null){
+                try {
+                    file.close();
+                }catch(IOException e){
+                    Log.e(LOG, "IOException in closing " + wav, e);
+                }
+            }
+        }
+    }
+
+    private static boolean isPlayable(File m4a){
+        if(!m4a.exists()) return false;
+        MediaMetadataRetriever metadataRetriever = new MediaMetadataRetriever();
+        try {
+            metadataRetriever.setDataSource(m4a.getAbsolutePath());
+            return metadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION) != null;
+        }catch(Exception e){
+            return false;
+        }finally {
+            metadataRetriever.release();
+        }
+    }
+
+    /**
+     * Encodes the M4A file again, from the spool if it survived or else from the already repaired WAV file. The
+     * source is kept either way, a spool is deleted by the caller once the M4A file is saved.
+     * @param raw whether source holds headerless PCM rather than a WAV file
+     * @return whether the M4A file was saved
+     */
+    private static boolean rebuildM4a(File source, boolean raw, String name, String saveDirectory, Properties properties,
+                                      ConversionScheduler scheduler){
+        long offset = 0;
+        long length = source.length();
+        int sampleRate = Integer.parseInt(properties.getProperty("m4a_sample_rate"));
+        int channelCount = Integer.parseInt(properties.getProperty("channel_count"));
+        int encoding = Integer.parseInt(properties.getProperty("encoding"));
+        if(!raw){
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(source);
+                FileChannel channel = in.getChannel();
+                AudioProcessingTools.WavInfo info = AudioProcessingTools.readWavHeader(channel);
+                offset = info.dataOffset;
+                length = info.dataSize;
+                sampleRate = info.sampleRate;
+                channelCount = info.channelCount;
+                encoding = info.audioFormat;
+            }catch(IOException e){
+                Log.e(LOG, "IOException in reading " + source, e);
+                return false;
+            }finally {
+                if(in != null){
+                    try {
+                        in.close();
+                    }catch(IOException e){
+                        Log.e(LOG, "IOException in closing " + source, e);
+                    }
+                }
+            }
+        }
+        ConversionScheduler.Request request = new ConversionScheduler.Request(name, source, offset, length, sampleRate,
+                Integer.parseInt(properties.getProperty("bit_rate")), channelCount, encoding, saveDirectory, false);
+        try {
+            scheduler.submit(request, ConversionScheduler.PRIORITY_BACKGROUND, null).get();
+        }catch(InterruptedException e){
+            Log.e(LOG, "recording recovery interrupted while rebuilding " + name + ".m4a", e);
+            return false;
+        }catch(ExecutionException | CancellationException e){
+            // The scheduler has already logged why.
+            return false;
+        }
+        Log.i(LOG, "Rebuilt " + name + ".m4a");
+        return true;
+    }
+}
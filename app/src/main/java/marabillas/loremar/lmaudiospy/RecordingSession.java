@@ -0,0 +1,340 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Capture engine shared by lock mode and START RECORDING. It owns the PcmSource and two threads:
+ * the capture thread only reads audio and applies gain into the blocks of a {@link PcmRingBuffer}, and the writer
+ * thread drains the ring and fans each block out to the registered {@link PcmSink}s.
+ *
+ * When the writer falls behind and the ring is full, captured blocks are dropped rather than blocking the source.
+ * Dropped stretches are logged when the session ends and, like elided silence, saved as {@link FrameRanges} to a
+ * sidecar file if one is set, so the recording's gaps can be found.
+ */
+
+final class RecordingSession {
+    private static final String LOG = "Loremar_Logs";
+    static final int RING_CAPACITY = 64;
+    private static final long WRITER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final PcmSource source;
+    private final int readBufferSize;
+    private final int gain;
+    private final List<PcmSink> sinks = new ArrayList<>();
+    private final List<PcmProcessor> processors = new ArrayList<>();
+    private final LevelMeter levelMeter = new LevelMeter();
+    private VoiceActivityDetector voiceActivityDetector;
+    private File overrunSidecar;
+    /** Used by the capture thread only. */
+    private FrameRanges overruns;
+    private long capturedFrames;
+    private OnSessionFinishedListener listener;
+
+    private PcmRingBuffer ringBuffer;
+    private Thread captureThread;
+    private Thread writerThread;
+    private volatile boolean isRecording;
+    private volatile boolean captureFinished;
+    private volatile Exception failure;
+    private long requestNanos;
+    private volatile long timeToFirstSampleMillis = -1;
+
+    /**
+     * @param source         where audio is read from. The session starts, stops and releases it.
+     * @param readBufferSize size of the blocks read from the source
+     * @param gain           level of gain to apply on recorded audio
+     */
+    RecordingSession(PcmSource source, int readBufferSize, int gain){
+        this.source = source;
+        this.readBufferSize = readBufferSize;
+        this.gain = gain;
+    }
+
+    /**
+     * Registers a sink. Must be called before {@link #start()}.
+     */
+    void addSink(PcmSink sink){
+        sinks.add(sink);
+    }
+
+    /**
+     * Adds a processing stage run on every block before gain, after the stages already added. Must be called
+     * before {@link #start()}.
+     */
+    void addProcessor(PcmProcessor processor){
+        processors.add(processor);
+    }
+
+    /**
+     * Makes the noise suppression stages learn a new noise profile from the audio that follows, for when the user
+     * marks that it's quiet. Can be called from any thread.
+     */
+    void learnNoise(){
+        for(PcmProcessor processor : processors){
+            if(processor instanceof SpectralNoiseSuppressor) ((SpectralNoiseSuppressor) processor).learnNoise();
+        }
+    }
+
+    /**
+     * Lets the detector drop silent blocks before they reach the sinks. Must be called before {@link #start()}.
+     */
+    void setVoiceActivityDetector(VoiceActivityDetector voiceActivityDetector){
+        this.voiceActivityDetector = voiceActivityDetector;
+    }
+
+    /**
+     * Sets the file the ranges dropped because the ring was full are written to. It's only written when something
+     * was dropped. Must be called before {@link #start()}.
+     */
+    void setOverrunSidecar(File overrunSidecar){
+        this.overrunSidecar = overrunSidecar;
+    }
+
+    void setOnSessionFinishedListener(OnSessionFinishedListener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * Sets when the user asked to record, as given by System.nanoTime(), so that preparing the sinks counts toward
+     * the time to first sample. Without it the time is counted from {@link #start()}.
+     */
+    void setRequestTime(long requestNanos){
+        this.requestNanos = requestNanos;
+    }
+
+    /**
+     * @return milliseconds from the request to record to the first block captured, or -1 until then
+     */
+    long getTimeToFirstSampleMillis(){
+        return timeToFirstSampleMillis;
+    }
+
+    void start(){
+        isRecording = true;
+        captureFinished = false;
+        failure = null;
+        if(requestNanos == 0) requestNanos = System.nanoTime();
+        timeToFirstSampleMillis = -1;
+        overruns = new FrameRanges();
+        capturedFrames = 0;
+        ringBuffer = new PcmRingBuffer(RING_CAPACITY, readBufferSize, source.getAudioFormat());
+        captureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                capture();
+            }
+        }, "recording capture");
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainRingBuffer();
+            }
+        }, "recording writer");
+        captureThread.start();
+    }
+
+    /**
+     * Asks the session to stop. Blocks already captured are still written before the sinks are closed and the
+     * listener is notified.
+     */
+    void stop(){
+        isRecording = false;
+    }
+
+    /**
+     * Waits until the session has stopped and every sink has been closed.
+     */
+    void join() throws InterruptedException {
+        if(captureThread != null) captureThread.join();
+    }
+
+    boolean isRecording(){
+        return isRecording;
+    }
+
+    int getSampleRate(){
+        return source.getSampleRate();
+    }
+
+    int getChannelCount(){
+        return source.getChannelCount();
+    }
+
+    int getAudioFormat(){
+        return source.getAudioFormat();
+    }
+
+    int getBlockSize(){
+        return readBufferSize;
+    }
+
+    /**
+     * Levels of the latest captured block. Safe to read from any thread.
+     */
+    LevelMeter getLevelMeter(){
+        return levelMeter;
+    }
+
+    PcmRingBuffer getRingBuffer(){
+        return ringBuffer;
+    }
+
+    private void capture(){
+        int opened = 0;
+        try {
+            source.startRecording();
+            PcmFormat format = new PcmFormat(source.getSampleRate(), source.getChannelCount(), source.getAudioFormat(), readBufferSize);
+            for(PcmSink sink : sinks){
+                sink.open(format);
+                opened++;
+            }
+            writerThread.start();
+
+            GainKernel gainKernel = GainKernel.create(source.getAudioFormat(), source.getChannelCount(), gain,
+                    readBufferSize, processors.toArray(new PcmProcessor[processors.size()]));
+            ByteBuffer overrunBuffer = ByteBuffer.allocateDirect(readBufferSize);
+            Buffer overrunView = GainKernel.createView(source.getAudioFormat(), overrunBuffer);
+            int frameSize = AudioProcessingTools.bytesPerSample(source.getAudioFormat()) * source.getChannelCount();
+            while(isRecording){
+                ByteBuffer block = ringBuffer.claim();
+                if(block == null){
+                    // Writer has fallen behind. Keep reading so the source doesn't overrun but drop the block.
+                    overrunBuffer.clear();
+                    int read = AudioProcessingTools.readAudioApplyGain(overrunBuffer, overrunView, source, readBufferSize, gainKernel, levelMeter);
+                    if(read < 0) break;
+                    int frames = read / frameSize;
+                    if(frames > 0) overruns.add(capturedFrames, capturedFrames + frames);
+                    capturedFrames += frames;
+                    if(voiceActivityDetector != null) voiceActivityDetector.skip(frames);
+                    continue;
+                }
+                int read = AudioProcessingTools.readAudioApplyGain(block, ringBuffer.claimedView(), source, readBufferSize, gainKernel, levelMeter);
+                if(read < 0){
+                    Log.e(LOG, "Reading audio source returned error " + read);
+                    break;
+                }
+                if(timeToFirstSampleMillis < 0 && read > 0){
+                    timeToFirstSampleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requestNanos);
+                    Log.i(LOG, "Time to first sample " + timeToFirstSampleMillis + " ms");
+                }
+                capturedFrames += read / frameSize;
+                // A block that isn't published stays claimed and is overwritten by the next read.
+                if(voiceActivityDetector != null && !voiceActivityDetector.keep(gainKernel)) continue;
+                ringBuffer.publish();
+                LockSupport.unpark(writerThread);
+            }
+        }catch(IOException e){
+            Log.e(LOG, "IOException in opening recording sinks", e);
+            failure = e;
+        }catch(Exception e){
+            Log.e(LOG, "Exception in recording capture", e);
+            failure = e;
+        }
+        isRecording = false;
+        try {
+            source.stop();
+            source.release();
+        }catch(Exception e){
+            Log.e(LOG, "Exception in releasing audio source", e);
+        }
+
+        if(voiceActivityDetector != null) voiceActivityDetector.finish();
+
+        captureFinished = true;
+        if(writerThread.isAlive()){
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join();
+            }catch(InterruptedException e){
+                Log.e(LOG, "recording capture interrupted while waiting for writer", e);
+            }
+        }
+        for(int i = 0; i < opened; i++){
+            try {
+                sinks.get(i).close();
+            }catch(IOException e){
+                Log.e(LOG, "IOException in closing recording sink", e);
+                if(failure == null) failure = e;
+            }
+        }
+        Log.i(LOG, "Ring buffer capacity=" + ringBuffer.getCapacity()
+                + " high-water mark=" + ringBuffer.getHighWaterMark()
+                + " overruns=" + ringBuffer.getOverruns());
+        if(overruns.size() > 0){
+            int sampleRate = source.getSampleRate();
+            Log.w(LOG, "Writer fell behind, dropped " + overruns.getTotalFrames() + " frames ("
+                    + overruns.getTotalFrames() * 1000 / sampleRate + " ms) in " + overruns.size() + " gaps");
+            if(overrunSidecar != null){
+                try {
+                    overruns.write(overrunSidecar, sampleRate, capturedFrames);
+                }catch(IOException e){
+                    Log.e(LOG, "IOException in writing dropped ranges", e);
+                }
+            }
+        }
+
+        if(listener != null){
+            if(failure == null) listener.onSessionFinished();
+            else listener.onSessionFailed(failure);
+        }
+    }
+
+    private void drainRingBuffer(){
+        try {
+            while(true){
+                ByteBuffer block = ringBuffer.peek();
+                if(block == null){
+                    if(captureFinished && ringBuffer.isEmpty()) break;
+                    LockSupport.parkNanos(WRITER_PARK_NANOS);
+                    continue;
+                }
+                for(int i = 0; i < sinks.size(); i++){
+                    block.position(0);
+                    sinks.get(i).write(block);
+                }
+                ringBuffer.release();
+            }
+        }catch(Exception e){
+            Log.e(LOG, "Exception in recording writer", e);
+            failure = e;
+            isRecording = false;
+        }
+    }
+
+    interface OnSessionFinishedListener{
+        /**
+         * Called on the capture thread after all sinks have been closed.
+         */
+        void onSessionFinished();
+
+        void onSessionFailed(Exception e);
+    }
+}
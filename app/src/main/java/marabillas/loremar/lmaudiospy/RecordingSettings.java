@@ -0,0 +1,226 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.content.SharedPreferences;
+import android.media.AudioFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording parameters read once from the "settings" preferences.
+ */
+
+final class RecordingSettings {
+    private static final String LOG = "Loremar_Logs";
+    static final String SILENCE_KEEP = "keep";
+    static final String SILENCE_DROP = "drop";
+    static final String SILENCE_COMPRESS = "compress";
+
+    final int sampleRate;
+    final int channelConfig;
+    final int channelCount;
+    final int encodingFormat;
+    final int gain;
+    final boolean autoGain;
+    final int bitRate;
+    final boolean saveToWav;
+    final boolean saveToM4a;
+    final int whenToConvertAudioId;
+    final String silenceElision;
+    final boolean dcBlocker;
+    final int highPassHz;
+    final int humHz;
+    final boolean noiseSuppression;
+    /** Sample rate of the WAV file. */
+    final int wavSampleRate;
+    /** Sample rate of the M4A file. */
+    final int m4aSampleRate;
+    final boolean mappedWav;
+    final WriteBehindWriter.Durability durability;
+    /** Duration of a segment in lock mode, 0 for no limit. */
+    final long segmentSeconds;
+    /** Size of the audio data of a segment in lock mode, 0 for no limit. */
+    final long segmentBytes;
+
+    /**
+     * @param gain     fixed gain, or the highest gain automatic gain control may apply when autoGain is set
+     * @param autoGain whether gain is steered by {@link AutoGainProcessor} instead of fixed
+     * @param silenceElision one of SILENCE_KEEP, SILENCE_DROP or SILENCE_COMPRESS
+     * @param highPassHz high-pass cutoff of {@link BiquadFilterBank}, or 0 for none
+     * @param humHz      mains frequency notched out by {@link BiquadFilterBank}, or 0 for none
+     * @param wavSampleRate sample rate of the WAV file, or 0 for the recording's sample rate
+     * @param m4aSampleRate sample rate of the M4A file, or 0 for the recording's sample rate
+     * @param mappedWav  whether the WAV file is written with {@link MappedWavFileSink}
+     * @param durability when WAV data is synced to the storage device
+     * @param segmentMinutes length of the segments a lock mode recording is split into, 0 for no limit
+     * @param segmentMegabytes size of the segments a lock mode recording is split into, 0 for no limit
+     */
+    RecordingSettings(int sampleRate, int channelConfig, int encodingFormat, int gain, boolean autoGain, int bitRate,
+                      boolean saveToWav, boolean saveToM4a, int whenToConvertAudioId, String silenceElision,
+                      boolean dcBlocker, int highPassHz, int humHz, boolean noiseSuppression,
+                      int wavSampleRate, int m4aSampleRate, boolean mappedWav,
+                      WriteBehindWriter.Durability durability, int segmentMinutes, int segmentMegabytes){
+        this.sampleRate = sampleRate;
+        this.channelConfig = channelConfig;
+        this.encodingFormat = encodingFormat;
+        this.gain = gain;
+        this.autoGain = autoGain;
+        this.bitRate = bitRate;
+        this.saveToWav = saveToWav;
+        this.saveToM4a = saveToM4a;
+        this.whenToConvertAudioId = whenToConvertAudioId;
+        this.silenceElision = silenceElision;
+        this.dcBlocker = dcBlocker;
+        this.highPassHz = highPassHz;
+        this.humHz = humHz;
+        this.noiseSuppression = noiseSuppression;
+        this.wavSampleRate = wavSampleRate > 0 ? wavSampleRate : sampleRate;
+        this.m4aSampleRate = m4aSampleRate > 0 ? m4aSampleRate : sampleRate;
+        this.mappedWav = mappedWav;
+        this.durability = durability;
+        this.segmentSeconds = TimeUnit.MINUTES.toSeconds(segmentMinutes);
+        this.segmentBytes = segmentMegabytes * 1024L * 1024L;
+        switch(channelConfig){
+            case AudioFormat.CHANNEL_IN_STEREO: channelCount = 2; break;
+            default: channelCount = 1; break;
+        }
+    }
+
+    static RecordingSettings fromPreferences(SharedPreferences prefs){
+        AudioSpy.identifyIfSavetoWavOrM4a(prefs.getInt("output_format", R.id.wavAndM4a));
+        return new RecordingSettings(
+                Integer.parseInt(prefs.getString("sample_rate", "44100")),
+                AudioSpy.getPrefChannelConfig(prefs),
+                AudioSpy.getPrefEncodingFormat(prefs),
+                prefs.getInt("gain", 20),
+                prefs.getBoolean("auto_gain", false),
+                Integer.parseInt(prefs.getString("bit_rate", "256000")),
+                AudioSpy.isSaveToWav(),
+                AudioSpy.isSaveToM4a(),
+                prefs.getInt("when_to_convert", R.id.afterRecording),
+                prefs.getString("silence_elision", SILENCE_KEEP),
+                prefs.getBoolean("dc_blocker", false),
+                Integer.parseInt(prefs.getString("high_pass", "0")),
+                Integer.parseInt(prefs.getString("hum_notch", "0")),
+                prefs.getBoolean("noise_suppression", false),
+                Integer.parseInt(prefs.getString("wav_sample_rate", "0")),
+                Integer.parseInt(prefs.getString("m4a_sample_rate", "0")),
+                prefs.getBoolean("mapped_wav", false),
+                parseDurability(prefs.getString("wav_durability", WriteBehindWriter.Durability.NONE.name())),
+                Integer.parseInt(prefs.getString("segment_minutes", "0")),
+                Integer.parseInt(prefs.getString("segment_megabytes", "0")));
+    }
+
+    /**
+     * @return the durability mode named by value, or {@link WriteBehindWriter.Durability#NONE} if there's no such mode
+     */
+    private static WriteBehindWriter.Durability parseDurability(String value){
+        try {
+            return WriteBehindWriter.Durability.valueOf(value);
+        }catch(IllegalArgumentException | NullPointerException e){
+            Log.e(LOG, "Unknown WAV durability " + value, e);
+            return WriteBehindWriter.Durability.NONE;
+        }
+    }
+
+    /**
+     * Creates a session reading from the given source, with the processing stages these settings ask for.
+     * @param saveDirectory directory the recording is saved to, for sidecar files
+     * @param name          file name of the recording without extension
+     */
+    RecordingSession createSession(PcmSource source, int readBufferSize, String saveDirectory, String name){
+        RecordingSession session = new RecordingSession(source, readBufferSize, autoGain ? 1 : gain);
+        session.setOverrunSidecar(new File(saveDirectory, name + ".dropped.txt"));
+        // Filters and noise suppression go first so automatic gain doesn't react to DC, hum or noise.
+        BiquadFilterBank filters = new BiquadFilterBank(source.getSampleRate(), source.getChannelCount(),
+                dcBlocker, highPassHz, humHz);
+        if(filters.hasSections()) session.addProcessor(filters);
+        if(noiseSuppression){
+            session.addProcessor(new SpectralNoiseSuppressor(source.getSampleRate(), source.getChannelCount()));
+        }
+        if(autoGain){
+            session.addProcessor(new AutoGainProcessor(source.getSampleRate(), source.getChannelCount(), Math.max(1, gain)));
+        }
+        if(SILENCE_DROP.equals(silenceElision) || SILENCE_COMPRESS.equals(silenceElision)){
+            float hangover = SILENCE_DROP.equals(silenceElision) ? VoiceActivityDetector.DROP_HANGOVER_SECONDS
+                    : VoiceActivityDetector.COMPRESS_HANGOVER_SECONDS;
+            session.setVoiceActivityDetector(new VoiceActivityDetector(source.getSampleRate(), hangover,
+                    new File(saveDirectory, name + ".elided.txt")));
+        }
+        return session;
+    }
+
+    /**
+     * Creates the sink writing the WAV file at {@link #wavSampleRate}.
+     */
+    PcmSink createWavSink(File file){
+        PcmSink sink = mappedWav ? new MappedWavFileSink(file, channelConfig, durability)
+                : new WavFileSink(file, channelConfig, durability);
+        return new ResamplingSink(sink, wavSampleRate);
+    }
+
+    /**
+     * @return whether lock mode recordings are split into segments
+     */
+    boolean isSegmented(){
+        return segmentSeconds > 0 || segmentBytes > 0;
+    }
+
+    /**
+     * Creates the sink writing the WAV file at {@link #wavSampleRate} as consecutive segments named by
+     * {@link SegmentedSink#segmentName(String, int)}, listed in name_wav.m3u.
+     */
+    PcmSink createSegmentedWavSink(final String saveDirectory, final String name){
+        SegmentedSink.SegmentFactory factory = new SegmentedSink.SegmentFactory() {
+            @Override
+            PcmSink createSegment(int index) {
+                File file = new File(saveDirectory, getSegmentFileName(index));
+                return mappedWav ? new MappedWavFileSink(file, channelConfig, durability)
+                        : new WavFileSink(file, channelConfig, durability);
+            }
+
+            @Override
+            String getSegmentFileName(int index) {
+                return SegmentedSink.segmentName(name, index) + ".wav";
+            }
+
+            @Override
+            void discardSegment(int index, PcmSink segment) throws IOException {
+                segment.close();
+                File file = new File(saveDirectory, getSegmentFileName(index));
+                if(!file.delete()) Log.e(LOG, "Failed to delete unused segment " + file);
+            }
+        };
+        return new ResamplingSink(new SegmentedSink(factory, segmentSeconds, segmentBytes,
+                new File(saveDirectory, name + "_wav.m3u")), wavSampleRate);
+    }
+
+    boolean isConvertWhileRecording(){
+        return saveToM4a && whenToConvertAudioId == R.id.whileRecording;
+    }
+
+    boolean isConvertAfterRecording(){
+        return saveToM4a && whenToConvertAudioId == R.id.afterRecording;
+    }
+}
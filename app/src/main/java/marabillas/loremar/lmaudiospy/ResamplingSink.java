@@ -0,0 +1,87 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Converts the recording to another sample rate before handing it to the sink it wraps, so every output of a
+ * session can have its own rate while audio is captured once at the rate cheapest for the device. The wrapped
+ * sink is opened with the converted format. When the rates are the same, blocks are passed through untouched.
+ */
+
+final class ResamplingSink implements PcmSink {
+    private final PcmSink sink;
+    private final int outputRate;
+    private PolyphaseResampler resampler;
+    private int encoding;
+    private int channelCount;
+    private float[] input;
+    private float[] output;
+    private ByteBuffer outputBlock;
+
+    /**
+     * @param sink       sink receiving the converted audio
+     * @param outputRate sample rate the sink should receive, or 0 to keep the recording's rate
+     */
+    ResamplingSink(PcmSink sink, int outputRate){
+        this.sink = sink;
+        this.outputRate = outputRate;
+    }
+
+    @Override
+    public void open(PcmFormat format) throws IOException {
+        if(outputRate == 0 || outputRate == format.sampleRate){
+            resampler = null;
+            sink.open(format);
+            return;
+        }
+        encoding = format.encoding;
+        channelCount = format.channelCount;
+        int inputFrames = format.blockSize / format.getFrameSize();
+        resampler = new PolyphaseResampler(format.sampleRate, outputRate, channelCount, inputFrames);
+        int outputFrames = resampler.getMaxOutputFrames(inputFrames);
+        input = new float[inputFrames * channelCount];
+        output = new float[outputFrames * channelCount];
+        outputBlock = ByteBuffer.allocateDirect(outputFrames * format.getFrameSize()).order(ByteOrder.LITTLE_ENDIAN);
+        sink.open(format.withSampleRate(outputRate, outputBlock.capacity()));
+    }
+
+    @Override
+    public void write(ByteBuffer block) throws IOException {
+        if(resampler == null){
+            sink.write(block);
+            return;
+        }
+        int samples = AudioProcessingTools.decodePcm(block, encoding, input);
+        int frames = resampler.process(input, samples / channelCount, output);
+        outputBlock.clear();
+        AudioProcessingTools.encodePcm(output, frames * channelCount, encoding, outputBlock);
+        outputBlock.flip();
+        sink.write(outputBlock);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sink.close();
+    }
+}
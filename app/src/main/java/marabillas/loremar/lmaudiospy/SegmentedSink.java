@@ -0,0 +1,242 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits one continuous recording into consecutive segments, each written by a sink of its own. A segment ends
+ * after a set duration or size, on an exact frame boundary, and the next one continues with the following frame
+ * so no audio is lost or repeated between segments.
+ *
+ * Opening and closing segments is done on a separate preparer thread. The sink of the next segment is created
+ * and opened, header included, as soon as the current one starts, so switching segments on the writer thread is
+ * only a swap. Finished segments are appended to an M3U playlist that ties them together.
+ */
+
+final class SegmentedSink implements PcmSink {
+    private static final String LOG = "Loremar_Logs";
+
+    private final SegmentFactory factory;
+    private final long maxSeconds;
+    private final long maxBytes;
+    private final File playlist;
+    private PcmFormat format;
+    private long segmentFrames;
+    private ExecutorService preparer;
+    private PcmSink current;
+    private int currentIndex;
+    private long currentFrames;
+    private Future<PcmSink> next;
+    private volatile IOException failure;
+
+    /**
+     * @param factory    creates the sink of each segment
+     * @param maxSeconds duration of a segment, or 0 for no limit on duration
+     * @param maxBytes   size of the audio data of a segment, or 0 for no limit on size
+     * @param playlist   M3U file listing the finished segments
+     */
+    SegmentedSink(SegmentFactory factory, long maxSeconds, long maxBytes, File playlist){
+        this.factory = factory;
+        this.maxSeconds = maxSeconds;
+        this.maxBytes = maxBytes;
+        this.playlist = playlist;
+    }
+
+    /**
+     * @return basename of segment index of the recording with the given basename
+     */
+    static String segmentName(String name, int index){
+        return String.format(Locale.US, "%s_%03d", name, index + 1);
+    }
+
+    @Override
+    public void open(PcmFormat format) throws IOException {
+        this.format = format;
+        segmentFrames = Long.MAX_VALUE;
+        if(maxSeconds > 0) segmentFrames = maxSeconds * format.sampleRate;
+        if(maxBytes > 0) segmentFrames = Math.min(segmentFrames, Math.max(1, maxBytes / format.getFrameSize()));
+        failure = null;
+        preparer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "segment preparer");
+            }
+        });
+
+        PrintWriter writer = new PrintWriter(new FileWriter(playlist));
+        writer.println("#EXTM3U");
+        writer.close();
+        if(writer.checkError()) throw new IOException("Failed to write " + playlist);
+
+        currentIndex = 0;
+        currentFrames = 0;
+        try {
+            current = factory.createSegment(0);
+            current.open(format);
+        }catch(IOException e){
+            preparer.shutdown();
+            preparer = null;
+            throw e;
+        }
+        next = prepare(1);
+    }
+
+    private Future<PcmSink> prepare(final int index){
+        return preparer.submit(new Callable<PcmSink>() {
+            @Override
+            public PcmSink call() throws IOException {
+                PcmSink sink = factory.createSegment(index);
+                sink.open(format);
+                return sink;
+            }
+        });
+    }
+
+    @Override
+    public void write(ByteBuffer block) throws IOException {
+        if(failure != null) throw failure;
+        int frameSize = format.getFrameSize();
+        while(block.remaining() >= frameSize){
+            if(currentFrames == segmentFrames) nextSegment();
+            long frames = Math.min(block.remaining() / frameSize, segmentFrames - currentFrames);
+            int limit = block.limit();
+            block.limit(block.position() + (int) frames * frameSize);
+            current.write(block);
+            block.position(block.limit()).limit(limit);
+            currentFrames += frames;
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        PcmSink prepared;
+        try {
+            prepared = next.get();
+        }catch(InterruptedException e){
+            throw new IOException("Interrupted while waiting for the next segment", e);
+        }catch(ExecutionException e){
+            throw new IOException("Failed to prepare the next segment", e.getCause());
+        }
+        finishSegment(current, currentIndex, currentFrames);
+        current = prepared;
+        currentIndex++;
+        currentFrames = 0;
+        next = prepare(currentIndex + 1);
+    }
+
+    /**
+     * Closes a segment on the preparer thread and lists it in the playlist.
+     */
+    private void finishSegment(final PcmSink segment, final int index, final long frames){
+        preparer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    segment.close();
+                    appendToPlaylist(index, frames);
+                    factory.onSegmentClosed(index, segment);
+                }catch(IOException e){
+                    Log.e(LOG, "IOException in closing segment " + index, e);
+                    failure = e;
+                }
+            }
+        });
+    }
+
+    private void appendToPlaylist(int index, long frames) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(playlist, true));
+        writer.println(String.format(Locale.US, "#EXTINF:%.3f,", (double) frames / format.sampleRate));
+        writer.println(factory.getSegmentFileName(index));
+        writer.close();
+        if(writer.checkError()) throw new IOException("Failed to write " + playlist);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(preparer == null) return;
+        finishSegment(current, currentIndex, currentFrames);
+        final Future<PcmSink> unused = next;
+        final int unusedIndex = currentIndex + 1;
+        preparer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    factory.discardSegment(unusedIndex, unused.get());
+                }catch(Exception e){
+                    Log.e(LOG, "Exception in discarding unused segment", e);
+                }
+            }
+        });
+        preparer.shutdown();
+        try {
+            while(!preparer.awaitTermination(1, TimeUnit.SECONDS)){
+                Log.i(LOG, "Waiting for the last segment to be closed");
+            }
+        }catch(InterruptedException e){
+            throw new IOException("Interrupted while closing the last segment", e);
+        }finally {
+            preparer = null;
+        }
+        if(failure != null) throw failure;
+    }
+
+    /**
+     * Creates the sinks of the segments. Except for {@link #getSegmentFileName(int)}, methods are called on the
+     * preparer thread.
+     */
+    static abstract class SegmentFactory{
+        /**
+         * @return a sink writing segment index, not opened yet
+         */
+        abstract PcmSink createSegment(int index) throws IOException;
+
+        /**
+         * @return name of the file segment index ends up in, relative to the playlist
+         */
+        abstract String getSegmentFileName(int index);
+
+        /**
+         * Called once segment index has been closed.
+         */
+        void onSegmentClosed(int index, PcmSink segment){}
+
+        /**
+         * Called with the segment that was prepared ahead but not needed when recording ended. It has been
+         * opened but nothing was written to it.
+         */
+        void discardSegment(int index, PcmSink segment) throws IOException {
+            segment.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.util.Log;
+
+/**
+ * Streaming noise suppression by spectral subtraction, for devices where the platform NoiseSuppressor isn't
+ * available. Each channel is cut into frames overlapping by half, windowed with a square root Hann window,
+ * transformed with {@link RealFft}, and every bin is scaled by how much of its power is above the learned noise
+ * power. The frames are transformed back, windowed again and overlap-added, which rebuilds the signal exactly
+ * wherever nothing is subtracted. Output is delayed by one frame.
+ *
+ * The noise profile is the average power spectrum of the first {@link #LEARN_SECONDS} of the recording, or of
+ * the same length of audio after {@link #learnNoise()} is called while the room is quiet. All buffers are
+ * allocated in the constructor.
+ */
+
+final class SpectralNoiseSuppressor implements PcmProcessor {
+    private static final String LOG = "Loremar_Logs";
+    static final float LEARN_SECONDS = 1f;
+    private static final float FRAME_SECONDS = 0.02f;
+    private static final float OVERSUBTRACTION = 2f;
+    /** Lowest gain of a bin, keeping some noise to avoid musical noise artifacts. */
+    private static final float GAIN_FLOOR = 0.1f;
+    private static final float GAIN_SMOOTHING = 0.5f;
+    private static final long REPORT_FRAMES_SECONDS = 10;
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final int frameSize;
+    private final int hop;
+    private final RealFft fft;
+    private final float[] window;
+    private final float[] frame;
+    private final float[] re;
+    private final float[] im;
+    private final float[][] input;
+    private final float[][] overlap;
+    private final float[][] ready;
+    private final float[][] noise;
+    private final float[][] gains;
+    private int hopPosition;
+
+    private final int learnFrames;
+    private int learnedFrames;
+    private volatile boolean relearn;
+
+    private long processNanos;
+    private long processedFrames;
+    private long nextReport;
+
+    /**
+     * @param sampleRate   samples per second per channel
+     * @param channelCount number of interleaved channels
+     */
+    SpectralNoiseSuppressor(int sampleRate, int channelCount){
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        frameSize = Integer.highestOneBit(Math.max(4, Math.round(FRAME_SECONDS * sampleRate) - 1)) << 1;
+        hop = frameSize / 2;
+        fft = new RealFft(frameSize);
+        window = new float[frameSize];
+        for(int n = 0; n < frameSize; n++){
+            window[n] = (float) Math.sqrt(0.5 - 0.5 * Math.cos(2 * Math.PI * n / frameSize));
+        }
+        int bins = fft.getBinCount();
+        frame = new float[frameSize];
+        re = new float[bins];
+        im = new float[bins];
+        input = new float[channelCount][frameSize];
+        overlap = new float[channelCount][frameSize];
+        ready = new float[channelCount][hop];
+        noise = new float[channelCount][bins];
+        gains = new float[channelCount][bins];
+        learnFrames = Math.max(1, Math.round(LEARN_SECONDS * sampleRate / hop));
+        nextReport = REPORT_FRAMES_SECONDS * sampleRate;
+    }
+
+    /**
+     * Starts learning a new noise profile from the audio that follows. Can be called from any thread.
+     */
+    void learnNoise(){
+        relearn = true;
+    }
+
+    /**
+     * @return time spent processing divided by the duration of the audio processed
+     */
+    float getRealTimeFactor(){
+        return processedFrames > 0 ? (float) processNanos * sampleRate / processedFrames / 1e9f : 0;
+    }
+
+    @Override
+    public void process(float[] samples, int frameCount) {
+        long start = System.nanoTime();
+        final int channelCount = this.channelCount;
+        final int offset = frameSize - hop;
+        for(int f = 0, i = 0; f < frameCount; f++, i += channelCount){
+            for(int c = 0; c < channelCount; c++){
+                input[c][offset + hopPosition] = samples[i + c];
+                samples[i + c] = ready[c][hopPosition];
+            }
+            if(++hopPosition == hop){
+                hopPosition = 0;
+                if(relearn){
+                    relearn = false;
+                    learnedFrames = 0;
+                }
+                boolean learning = learnedFrames < learnFrames;
+                for(int c = 0; c < channelCount; c++){
+                    processFrame(c, learning);
+                }
+                if(learning) learnedFrames++;
+            }
+        }
+        processNanos += System.nanoTime() - start;
+        processedFrames += frameCount;
+        if(processedFrames >= nextReport){
+            nextReport += REPORT_FRAMES_SECONDS * sampleRate;
+            Log.i(LOG, "Noise suppressor real-time factor " + getRealTimeFactor());
+        }
+    }
+
+    private void processFrame(int channel, boolean learning){
+        final float[] frame = this.frame;
+        final float[] window = this.window;
+        final float[] re = this.re;
+        final float[] im = this.im;
+        final float[] input = this.input[channel];
+        final float[] overlap = this.overlap[channel];
+        final float[] noise = this.noise[channel];
+        final float[] gains = this.gains[channel];
+        final int bins = re.length;
+
+        for(int n = 0; n < frameSize; n++){
+            frame[n] = input[n] * window[n];
+        }
+        System.arraycopy(input, hop, input, 0, frameSize - hop);
+        fft.forward(frame, re, im);
+
+        if(learning){
+            // Running mean of the noise power of each bin.
+            float weight = 1f / (learnedFrames + 1);
+            for(int k = 0; k < bins; k++){
+                float power = re[k] * re[k] + im[k] * im[k];
+                noise[k] += (power - noise[k]) * weight;
+                gains[k] = 1f;
+            }
+        }else{
+            for(int k = 0; k < bins; k++){
+                float power = re[k] * re[k] + im[k] * im[k];
+                float remaining = power > 0 ? 1f - OVERSUBTRACTION * noise[k] / power : 0;
+                float gain = remaining > GAIN_FLOOR * GAIN_FLOOR ? (float) Math.sqrt(remaining) : GAIN_FLOOR;
+                gain = gains[k] + (gain - gains[k]) * GAIN_SMOOTHING;
+                gains[k] = gain;
+                re[k] *= gain;
+                im[k] *= gain;
+            }
+        }
+
+        fft.inverse(re, im, frame);
+        for(int n = 0; n < frameSize; n++){
+            overlap[n] += frame[n] * window[n];
+        }
+        System.arraycopy(overlap, 0, ready[channel], 0, hop);
+        System.arraycopy(overlap, hop, overlap, 0, frameSize - hop);
+        for(int n = frameSize - hop; n < frameSize; n++){
+            overlap[n] = 0;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes the spectrum of the recording for {@link AudioVisualizerView}. It is registered as a sink, so the
+ * analysis runs on the session's writer thread and never delays the capture loop or the UI thread. The audio is
+ * mixed down to mono, and every 1/{@link #COLUMNS_PER_SECOND} second the latest {@link #FFT_SIZE} samples are
+ * Hann windowed, transformed with {@link RealFft} and summed into log spaced frequency bands, in decibels scaled
+ * to 0 to 1.
+ *
+ * Results go to a ring of {@link #HISTORY} columns that the UI thread reads with
+ * {@link #readColumn(long, float[])}. There is a single writer and nothing is allocated after
+ * {@link #open(PcmFormat)}.
+ */
+
+final class SpectrumAnalyzer implements PcmSink {
+    static final int FFT_SIZE = 1024;
+    static final int COLUMNS_PER_SECOND = 50;
+    static final int HISTORY = 64;
+    private static final float LOWEST_FREQUENCY = 50;
+    private static final float FLOOR_DB = -90;
+
+    private final int bandCount;
+    private final float[][] columns;
+    private final AtomicLong written = new AtomicLong();
+
+    private final RealFft fft = new RealFft(FFT_SIZE);
+    private final float[] window = new float[FFT_SIZE];
+    private final float[] history = new float[FFT_SIZE];
+    private final float[] frame = new float[FFT_SIZE];
+    private final float[] re = new float[FFT_SIZE / 2 + 1];
+    private final float[] im = new float[FFT_SIZE / 2 + 1];
+    // FFT bins [bandStart[b], bandStart[b + 1]) are summed into band b.
+    private final int[] bandStart;
+    private float[] decoded;
+    private int encoding;
+    private int channelCount;
+    private int historyPosition;
+    private int hop;
+    private int untilNextColumn;
+    private float normalization;
+
+    /**
+     * @param bandCount number of frequency bands in each column
+     */
+    SpectrumAnalyzer(int bandCount){
+        this.bandCount = bandCount;
+        columns = new float[HISTORY][bandCount];
+        bandStart = new int[bandCount + 1];
+        for(int n = 0; n < FFT_SIZE; n++){
+            window[n] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * n / FFT_SIZE));
+        }
+        // A full scale sine has an amplitude of FFT_SIZE / 4 after the Hann window.
+        normalization = 1f / ((FFT_SIZE / 4f) * (FFT_SIZE / 4f));
+    }
+
+    int getBandCount(){
+        return bandCount;
+    }
+
+    /**
+     * @return number of columns computed so far. The newest has index one less than this.
+     */
+    long getColumnCount(){
+        return written.get();
+    }
+
+    /**
+     * Copies a column into out. Called from the UI thread.
+     * @return false if the column is no longer, or not yet, in the ring
+     */
+    boolean readColumn(long index, float[] out){
+        if(index >= written.get() || index < written.get() - HISTORY) return false;
+        System.arraycopy(columns[(int) (index % HISTORY)], 0, out, 0, bandCount);
+        // The writer may have reused the slot while it was being copied.
+        return index >= written.get() - HISTORY + 1;
+    }
+
+    @Override
+    public void open(PcmFormat format) {
+        encoding = format.encoding;
+        channelCount = format.channelCount;
+        decoded = new float[format.blockSize / AudioProcessingTools.bytesPerSample(encoding)];
+        hop = Math.max(1, format.sampleRate / COLUMNS_PER_SECOND);
+        untilNextColumn = hop;
+
+        int bins = FFT_SIZE / 2;
+        float binWidth = (float) format.sampleRate / FFT_SIZE;
+        double ratio = Math.log(format.sampleRate / 2f / LOWEST_FREQUENCY) / bandCount;
+        for(int b = 0; b <= bandCount; b++){
+            int bin = (int) (LOWEST_FREQUENCY * Math.exp(ratio * b) / binWidth);
+            bandStart[b] = Math.min(bins, Math.max(1, bin));
+        }
+        for(int b = 1; b <= bandCount; b++){
+            // Low bands narrower than one bin still get one.
+            if(bandStart[b] <= bandStart[b - 1]) bandStart[b] = Math.min(bins + 1, bandStart[b - 1] + 1);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer block) {
+        int samples = AudioProcessingTools.decodePcm(block, encoding, decoded);
+        final float[] history = this.history;
+        final float scale = 1f / channelCount;
+        for(int i = 0; i + channelCount <= samples; i += channelCount){
+            float mono = 0;
+            for(int c = 0; c < channelCount; c++) mono += decoded[i + c];
+            history[historyPosition] = mono * scale;
+            historyPosition = (historyPosition + 1) & (FFT_SIZE - 1);
+            if(--untilNextColumn == 0){
+                untilNextColumn = hop;
+                analyze();
+            }
+        }
+    }
+
+    private void analyze(){
+        final float[] frame = this.frame;
+        for(int n = 0; n < FFT_SIZE; n++){
+            frame[n] = history[(historyPosition + n) & (FFT_SIZE - 1)] * window[n];
+        }
+        fft.forward(frame, re, im);
+
+        long index = written.get();
+        float[] column = columns[(int) (index % HISTORY)];
+        for(int b = 0; b < bandCount; b++){
+            float power = 0;
+            int end = Math.min(bandStart[b + 1], re.length);
+            for(int k = bandStart[b]; k < end; k++){
+                power += re[k] * re[k] + im[k] * im[k];
+            }
+            float db = power > 0 ? (float) (10 * Math.log10(power * normalization)) : FLOOR_DB;
+            float level = 1f - db / FLOOR_DB;
+            column[b] = level < 0 ? 0 : (level > 1 ? 1 : level);
+        }
+        written.lazySet(index + 1);
+    }
+
+    @Override
+    public void close() {}
+}
@@ -24,9 +24,7 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
-import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaRecorder;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -37,16 +35,9 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
+import android.widget.Toast;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -55,40 +46,30 @@ import java.util.concurrent.TimeUnit;
  * It allows you to do other things in your device while recording audio at the same time.
  */
 
-public class StartRecordingFragment extends Fragment implements View.OnClickListener{
-    private AudioRecord record;
-    private int sampleRate;
-    private int channelConfig;
-    private int channelCount;
-    private int encodingFormat;
-    private int gain;
+public class StartRecordingFragment extends Fragment implements View.OnClickListener, RecordingSession.OnSessionFinishedListener{
+    private RecordingSettings settings;
     private int readBufferSize;
-    private ByteBuffer audioBuffer;
-    private boolean isRecording = false;
-    private int whenToConvertAudioId;
+    private RecordingSession session;
 
     //IO-specific fields
     private SharedPreferences prefs;
     private String saveDirectory;
     private String recordFilenameBase;
-    private FileOutputStream audioOut;
-    private FileChannel fileChannel;
-    private ByteArrayOutputStream bytesOut;
-    private WritableByteChannel writeChannel;
-    private boolean saveToWAV;
-    private boolean saveToM4A;
+    private PcmSpoolSink spoolSink;
+    private RecordingJournal journal;
 
     //UI-specific feilds
     private Handler mainHandler;
     private TextView header;
     private TouchableImageView stopButton;
     private long startingTime;
+    private long requestNanos;
     private long elapsedTime;
     private Runnable timerDisplay;
     private TextView timerView;
     private AudioVisualizerView graphView;
-    private AudioProcessingTools.MaxAmplitude maxAmplitude;
     private Runnable graphUpdate;
+    private static final int SPECTRUM_BANDS = 80;
 
     private PostRecordingFragment postRecordingFragment;
 
@@ -98,6 +79,7 @@ public class StartRecordingFragment extends Fragment implements View.OnClickList
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         if(view == null) {
+            requestNanos = System.nanoTime();
             view = inflater.inflate(R.layout.start_recording, container, false);
 
             prefs = getActivity().getSharedPreferences("settings", 0);
@@ -108,17 +90,9 @@ public class StartRecordingFragment extends Fragment implements View.OnClickList
             stopButton = view.findViewById(R.id.white_circle_stop);
             stopButton.setOnClickListener(this);
 
-            gain = prefs.getInt("gain", 20);
-            sampleRate = Integer.parseInt(prefs.getString("sample_rate", "44100"));
-            channelConfig = AudioSpy.getPrefChannelConfig(prefs);
-            encodingFormat = AudioSpy.getPrefEncodingFormat(prefs);
-            int bitRate = Integer.parseInt(prefs.getString("bit_rate", "256000"));
-            switch (channelConfig){
-                case AudioFormat.CHANNEL_IN_MONO: channelCount = 1; break;
-                case AudioFormat.CHANNEL_IN_STEREO: channelCount = 2; break;
-            }
+            settings = RecordingSettings.fromPreferences(prefs);
 
-            readBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, encodingFormat);
+            readBufferSize = AudioRecord.getMinBufferSize(settings.sampleRate, settings.channelConfig, settings.encodingFormat);
             Log.i(LOG, "Buffer Size=" + readBufferSize);
             if (readBufferSize <= 0) {
                 Log.e(LOG, "Device doesn't support specified parameters.");
@@ -138,17 +112,10 @@ public class StartRecordingFragment extends Fragment implements View.OnClickList
                 });
             }
 
-            int prefOutFormat = prefs.getInt("output_format", R.id.wavAndM4a);
-            AudioSpy.identifyIfSavetoWavOrM4a(prefOutFormat);
-            saveToWAV = AudioSpy.isSaveToWav();
-            saveToM4A = AudioSpy.isSaveToM4a();
             postRecordingFragment = new PostRecordingFragment();
-            if(saveToM4A) {
-                whenToConvertAudioId = prefs.getInt("when_to_convert", R.id.afterRecording);
-                if (whenToConvertAudioId == R.id.whileRecording) {
-                    AudioProcessingTools.prepareCodec(bitRate, sampleRate, channelCount);
-                    AudioProcessingTools.setOnEncodingFinishedListener(postRecordingFragment);
-                }
+            if (settings.isConvertWhileRecording()) {
+                AudioProcessingTools.prepareCodec(settings.bitRate, settings.m4aSampleRate, settings.channelCount, settings.encodingFormat);
+                AudioProcessingTools.setOnEncodingFinishedListener(postRecordingFragment);
             }
         }
         mainHandler = new Handler(Looper.getMainLooper());
@@ -158,147 +125,134 @@ public class StartRecordingFragment extends Fragment implements View.OnClickList
 
     @Override
     public void onViewCreated(View view, Bundle savedInstanceState) {
-        if(record == null) {
-            record = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelConfig, encodingFormat, readBufferSize);
-            /*int audioSessionId = record.getAudioSessionId();
-            if (NoiseSuppressor.isAvailable())
-                NoiseSuppressor.create(audioSessionId).setEnabled(true);
-            else Log.e(LOG, "noise suppressor is not supported");
-            if (AcousticEchoCanceler.isAvailable())
-                AcousticEchoCanceler.create(audioSessionId).setEnabled(true);
-            else Log.e(LOG, "acoustic echo canceler is not supported");
-            if (AutomaticGainControl.isAvailable())
-                AutomaticGainControl.create(audioSessionId).setEnabled(true);
-            else Log.e(LOG, "automatic gain control is not supported");*/
-            record.startRecording();
+        if(session == null) {
             recordFilenameBase = String.valueOf(System.currentTimeMillis());
             String headerText;
-            if(saveToWAV) headerText = recordFilenameBase + ".wav";
+            if(settings.saveToWav) headerText = recordFilenameBase + ".wav";
             else headerText = recordFilenameBase + ".m4a";
             header.setText(headerText);
 
-            Thread recordingThread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        File saveDir = new File(Environment.getExternalStorageDirectory(), "LM AudioSpy");
-                        saveDirectory = prefs.getString("save_directory", saveDir.getAbsolutePath());
-                        if (!AudioSpy.createValidFile(saveDirectory)) {
-                            isRecording = false;
-                            PopUpText.show("Failed to create directory", getActivity().getApplicationContext());
-                            getFragmentManager().popBackStack();
-                            return;
-                        }
-                        if (saveToWAV) {
-                            File audioFile = new File(saveDirectory, recordFilenameBase + ".wav");
-                            audioOut = new FileOutputStream(audioFile);
-                            fileChannel = audioOut.getChannel();
-                            AudioProcessingTools.writeWavHeader(fileChannel, channelConfig, sampleRate, encodingFormat);
-                        }
-                        if (saveToM4A) {
-                            bytesOut = new ByteArrayOutputStream();
-                            if (whenToConvertAudioId == R.id.afterRecording) {
-                                writeChannel = Channels.newChannel(bytesOut);
-                            } else if (whenToConvertAudioId == R.id.whileRecording) {
-                                AudioProcessingTools.initAudioConversion(saveDirectory, recordFilenameBase);
-                            }
-                        }
-
-                        startingTime = SystemClock.elapsedRealtime();
-                        timerDisplay = new Runnable() {
-                            @Override
-                            public void run() {
-                                elapsedTime = SystemClock.elapsedRealtime() - startingTime;
-                                long elapsedTimeHours = TimeUnit.MILLISECONDS.toHours(elapsedTime);
-                                long elapsedTimeMins = TimeUnit.MILLISECONDS.toMinutes(elapsedTime) - TimeUnit.HOURS.toMinutes(elapsedTimeHours);
-                                long elapsedTimeSecs = TimeUnit.MILLISECONDS.toSeconds(elapsedTime) - TimeUnit.MINUTES.toSeconds(elapsedTimeMins);
-                                String elapsedTimeHoursText, elapsedTimeMinsText, elapsedTimeSecsText;
-                                if (elapsedTimeHours < 10)
-                                    elapsedTimeHoursText = "0" + elapsedTimeHours;
-                                else elapsedTimeHoursText = String.valueOf(elapsedTimeHours);
-                                if (elapsedTimeMins < 10)
-                                    elapsedTimeMinsText = "0" + elapsedTimeMins;
-                                else elapsedTimeMinsText = String.valueOf(elapsedTimeMins);
-                                if (elapsedTimeSecs < 10)
-                                    elapsedTimeSecsText = "0" + elapsedTimeSecs;
-                                else elapsedTimeSecsText = String.valueOf(elapsedTimeSecs);
-                                String timerText = elapsedTimeHoursText + ":" + elapsedTimeMinsText + ":" + elapsedTimeSecsText;
-                                timerView.setText(timerText);
-
-                                mainHandler.postDelayed(this, 1000);
-                            }
-                        };
-                        mainHandler.post(timerDisplay);
-                        maxAmplitude = new AudioProcessingTools.MaxAmplitude(0);
-                        graphUpdate = new Runnable() {
-                            @Override
-                            public void run() {
-                                graphView.addValuetoGraph(maxAmplitude.value);
-                                maxAmplitude.value = 0;
-                                graphView.postInvalidate();
-                                mainHandler.postDelayed(this, 30);
-                            }
-                        };
-                        graphUpdate.run();
+            File saveDir = new File(Environment.getExternalStorageDirectory(), "LM AudioSpy");
+            saveDirectory = prefs.getString("save_directory", saveDir.getAbsolutePath());
+            if (!AudioSpy.createValidFile(saveDirectory)) {
+                PopUpText.show("Failed to create directory", getActivity().getApplicationContext());
+                getFragmentManager().popBackStack();
+                return;
+            }
 
-                        while (isRecording) {
-                            if (record == null) {
-                                record = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelConfig, encodingFormat, readBufferSize);
-                                record.startRecording();
-                            }
-                            audioBuffer = ByteBuffer.allocateDirect(readBufferSize);
-                            audioBuffer.order(ByteOrder.LITTLE_ENDIAN);
-                            AudioProcessingTools.readAudioApplyGain(audioBuffer, record, readBufferSize, gain, maxAmplitude);
-                            if (saveToWAV) fileChannel.write(audioBuffer);
-                            if (saveToM4A) {
-                                audioBuffer.rewind();
-                                if (whenToConvertAudioId == R.id.afterRecording) {
-                                    writeChannel.write(audioBuffer);
-                                } else if (whenToConvertAudioId == R.id.whileRecording) {
-                                    AudioProcessingTools.addData(audioBuffer);
-                                }
-                            }
-                        }
-                        record.stop();
-                        record.release();
-                        if (saveToWAV) {
-                            fileChannel.close();
-                            Log.i(LOG, "Raw Audio is successfully saved as wav file.");
-                        }
-                        if (saveToM4A) {
-                            if (whenToConvertAudioId == R.id.afterRecording) {
-                                writeChannel.close();
-                            } else if (whenToConvertAudioId == R.id.whileRecording) {
-                                AudioProcessingTools.notifyRecordingEnded();
-                            }
-                        }
+            File spoolDirectory = PcmSpoolSink.getSpoolDirectory(getActivity());
+            journal = RecordingJournal.begin(getActivity(), settings, saveDirectory, recordFilenameBase, false,
+                    settings.isConvertAfterRecording() ? spoolDirectory : null);
+            if (settings.saveToM4a) {
+                // Released by postRecordingFragment once the M4A file is complete.
+                journal.retain();
+                postRecordingFragment.setJournal(journal);
+            }
+            session = settings.createSession(new AudioRecordSource(settings, readBufferSize), readBufferSize, saveDirectory, recordFilenameBase);
+            session.setRequestTime(requestNanos);
+            if (settings.saveToWav) {
+                session.addSink(settings.createWavSink(new File(saveDirectory, recordFilenameBase + ".wav")));
+            }
+            if (settings.isConvertAfterRecording()) {
+                spoolSink = new PcmSpoolSink(new File(spoolDirectory, recordFilenameBase + PcmSpoolSink.EXTENSION));
+                session.addSink(new ResamplingSink(spoolSink, settings.m4aSampleRate));
+            } else if (settings.isConvertWhileRecording()) {
+                session.addSink(new ResamplingSink(new LiveEncoderSink(saveDirectory, recordFilenameBase), settings.m4aSampleRate));
+            }
+            // Analyzed on the writer thread, off both the capture loop and the UI thread.
+            SpectrumAnalyzer spectrumAnalyzer = new SpectrumAnalyzer(SPECTRUM_BANDS);
+            session.addSink(spectrumAnalyzer);
+            graphView.setSpectrumAnalyzer(spectrumAnalyzer);
+            graphView.setMode(prefs.getInt("visualizer_mode", AudioVisualizerView.MODE_WAVEFORM));
+            graphView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    graphView.nextMode();
+                    prefs.edit().putInt("visualizer_mode", graphView.getMode()).apply();
+                }
+            });
+            session.setOnSessionFinishedListener(this);
+            session.start();
 
-                        mainHandler.removeCallbacks(timerDisplay);
-                        mainHandler.removeCallbacks(graphUpdate);
+            startingTime = SystemClock.elapsedRealtime();
+            timerDisplay = new Runnable() {
+                @Override
+                public void run() {
+                    elapsedTime = SystemClock.elapsedRealtime() - startingTime;
+                    long elapsedTimeHours = TimeUnit.MILLISECONDS.toHours(elapsedTime);
+                    long elapsedTimeMins = TimeUnit.MILLISECONDS.toMinutes(elapsedTime) - TimeUnit.HOURS.toMinutes(elapsedTimeHours);
+                    long elapsedTimeSecs = TimeUnit.MILLISECONDS.toSeconds(elapsedTime) - TimeUnit.MINUTES.toSeconds(elapsedTimeMins);
+                    String elapsedTimeHoursText, elapsedTimeMinsText, elapsedTimeSecsText;
+                    if (elapsedTimeHours < 10)
+                        elapsedTimeHoursText = "0" + elapsedTimeHours;
+                    else elapsedTimeHoursText = String.valueOf(elapsedTimeHours);
+                    if (elapsedTimeMins < 10)
+                        elapsedTimeMinsText = "0" + elapsedTimeMins;
+                    else elapsedTimeMinsText = String.valueOf(elapsedTimeMins);
+                    if (elapsedTimeSecs < 10)
+                        elapsedTimeSecsText = "0" + elapsedTimeSecs;
+                    else elapsedTimeSecsText = String.valueOf(elapsedTimeSecs);
+                    String timerText = elapsedTimeHoursText + ":" + elapsedTimeMinsText + ":" + elapsedTimeSecsText;
+                    timerView.setText(timerText);
 
-                        Bundle data = new Bundle();
-                        if (saveToM4A) data.putByteArray("audio data", bytesOut.toByteArray());
-                        data.putString("name", recordFilenameBase);
-                        postRecordingFragment.setArguments(data);
-                        FragmentManager fragmentManager = getFragmentManager();
-                        fragmentManager.popBackStack();
-                        fragmentManager.beginTransaction().replace(android.R.id.content, postRecordingFragment).addToBackStack(null).commit();
-                    } catch (IOException e) {
-                        Log.e(LOG, "IOException in recordingThread", e);
-                        isRecording = false;
-                    }
+                    mainHandler.postDelayed(this, 1000);
+                }
+            };
+            mainHandler.post(timerDisplay);
+            final LevelMeter levelMeter = session.getLevelMeter();
+            final LevelMeter.Levels levels = new LevelMeter.Levels();
+            graphUpdate = new Runnable() {
+                @Override
+                public void run() {
+                    levelMeter.read(levels);
+                    graphView.addValuetoGraph((int) (levels.peak * Short.MAX_VALUE));
+                    graphView.postInvalidate();
+                    mainHandler.postDelayed(this, 30);
+                }
+            };
+            graphUpdate.run();
+            graphView.setOnLongClickListener(new View.OnLongClickListener() {
+                @Override
+                public boolean onLongClick(View v) {
+                    if(!settings.noiseSuppression) return false;
+                    session.learnNoise();
+                    Toast.makeText(getActivity(), R.string.learning_noise, Toast.LENGTH_SHORT).show();
+                    return true;
                 }
             });
-            isRecording = true;
-            recordingThread.start();
         }
         super.onViewCreated(view, savedInstanceState);
     }
 
+    @Override
+    public void onSessionFinished() {
+        Log.i(LOG, "Recording session has ended.");
+        mainHandler.removeCallbacks(timerDisplay);
+        mainHandler.removeCallbacks(graphUpdate);
+
+        Bundle data = new Bundle();
+        // Only the location of the spool is handed over, never the audio itself.
+        if (spoolSink != null) data.putString("spool", spoolSink.getFile().getAbsolutePath());
+        data.putString("name", recordFilenameBase);
+        postRecordingFragment.setArguments(data);
+        journal.release();
+        FragmentManager fragmentManager = getFragmentManager();
+        fragmentManager.popBackStack();
+        fragmentManager.beginTransaction().replace(android.R.id.content, postRecordingFragment).addToBackStack(null).commit();
+    }
+
+    @Override
+    public void onSessionFailed(Exception e) {
+        Log.e(LOG, "Recording session failed", e);
+        mainHandler.removeCallbacks(timerDisplay);
+        mainHandler.removeCallbacks(graphUpdate);
+        journal.release();
+    }
+
     @Override
     public void onClick(View v) {
         if(v == stopButton){
-            isRecording = false;
+            session.stop();
         }
     }
 }
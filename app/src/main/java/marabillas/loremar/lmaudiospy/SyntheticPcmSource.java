@@ -0,0 +1,152 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.AudioFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PcmSource generating a sine tone, white noise or silence, used to run the recording pipeline without a
+ * microphone. Reads are either paced to real time like AudioRecord or returned as fast as possible.
+ */
+
+final class SyntheticPcmSource implements PcmSource {
+    enum Waveform { SINE, NOISE, SILENCE }
+
+    private final Waveform waveform;
+    private final int sampleRate;
+    private final int channelCount;
+    private final int audioFormat;
+    private final double amplitude;
+    private final double phaseIncrement;
+    private final boolean realTime;
+
+    private double phase;
+    private long noiseState = 0x2545F4914F6CDD1DL;
+    private long framesRead;
+    private long startNanos;
+
+    /**
+     * @param waveform     what to generate
+     * @param frequency    frequency of the sine tone in Hz. Ignored for the other waveforms.
+     * @param amplitude    peak level between 0 and 1
+     * @param sampleRate   samples per second per channel
+     * @param channelCount 1 or 2. The same signal is written to every channel.
+     * @param audioFormat  one of the AudioFormat.ENCODING_PCM_* constants
+     * @param realTime     true to block in read() until the returned audio would have been captured by a real device
+     */
+    SyntheticPcmSource(Waveform waveform, double frequency, double amplitude, int sampleRate, int channelCount,
+                       int audioFormat, boolean realTime){
+        this.waveform = waveform;
+        this.amplitude = amplitude;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.audioFormat = audioFormat;
+        this.realTime = realTime;
+        phaseIncrement = 2 * Math.PI * frequency / sampleRate;
+    }
+
+    @Override
+    public int getAudioFormat() {
+        return audioFormat;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    @Override
+    public void startRecording() {
+        framesRead = 0;
+        startNanos = System.nanoTime();
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+        int bytesPerSample = AudioProcessingTools.bytesPerSample(audioFormat);
+        int frames = Math.min(sizeInBytes, buffer.capacity()) / (bytesPerSample * channelCount);
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int offset = 0;
+        for(int i = 0; i < frames; i++){
+            double sample = nextSample();
+            for(int c = 0; c < channelCount; c++){
+                switch(audioFormat){
+                    case AudioFormat.ENCODING_PCM_8BIT:
+                        buffer.put(offset, (byte) (Math.round(sample * Byte.MAX_VALUE) + 128));
+                        break;
+                    case AudioFormat.ENCODING_PCM_FLOAT:
+                        buffer.putFloat(offset, (float) sample);
+                        break;
+                    default:
+                        buffer.putShort(offset, (short) Math.round(sample * Short.MAX_VALUE));
+                        break;
+                }
+                offset += bytesPerSample;
+            }
+        }
+        buffer.order(order);
+        framesRead += frames;
+        if(realTime) waitUntilCaptured();
+        return offset;
+    }
+
+    private double nextSample(){
+        switch(waveform){
+            case SINE:
+                double sample = amplitude * Math.sin(phase);
+                phase += phaseIncrement;
+                if(phase > 2 * Math.PI) phase -= 2 * Math.PI;
+                return sample;
+            case NOISE:
+                // xorshift64*
+                noiseState ^= noiseState >>> 12;
+                noiseState ^= noiseState << 25;
+                noiseState ^= noiseState >>> 27;
+                long random = noiseState * 0x2545F4914F6CDD1DL;
+                return amplitude * ((random >>> 11) * 0x1.0p-53 * 2 - 1);
+            default:
+                return 0;
+        }
+    }
+
+    private void waitUntilCaptured(){
+        long due = startNanos + framesRead * 1000000000L / sampleRate;
+        long wait;
+        while((wait = due - System.nanoTime()) > 0){
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    @Override
+    public void stop() {}
+
+    @Override
+    public void release() {}
+}
@@ -0,0 +1,144 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decides per block whether captured audio is worth keeping, so long stretches of silence never reach the sinks.
+ * A block is active when its energy is well above a running estimate of the background noise, or moderately above
+ * it with the high zero-crossing rate of unvoiced speech such as "s" and "f". After the last active block, silence
+ * is kept for the hangover so word endings and short pauses aren't cut, and everything after it is elided until
+ * the next active block.
+ *
+ * Elided stretches are recorded in frames of the original timeline and written to a sidecar file when the session
+ * ends, as {@link FrameRanges}, so the timeline of the recording can be rebuilt. Blocks the session drops without
+ * showing them to the detector are counted in with {@link #skip(int)}, so that timeline stays the captured one.
+ */
+
+final class VoiceActivityDetector {
+    private static final String LOG = "Loremar_Logs";
+    /** Hangover when silence is dropped. */
+    static final float DROP_HANGOVER_SECONDS = 0.3f;
+    /** Hangover when silence is compressed to short pauses instead. */
+    static final float COMPRESS_HANGOVER_SECONDS = 1f;
+    private static final float MIN_ACTIVE_RMS = 0.001f;
+    private static final float ENERGY_RATIO = 4f;
+    private static final float UNVOICED_ENERGY_RATIO = 2f;
+    private static final float UNVOICED_ZERO_CROSSING_RATE = 0.25f;
+    private static final float NOISE_FLOOR_RISE = 0.02f;
+
+    private final int sampleRate;
+    private final long hangoverFrames;
+    private final File sidecar;
+
+    private float noiseFloor = -1;
+    private long silentFrames;
+    private long position;
+    private long keptFrames;
+    private long elisionStart = -1;
+    private final FrameRanges elisions = new FrameRanges();
+
+    /**
+     * @param sampleRate       samples per second per channel
+     * @param hangoverSeconds  silence kept after active audio before the rest is elided
+     * @param sidecar          file to write the elided ranges to, or null
+     */
+    VoiceActivityDetector(int sampleRate, float hangoverSeconds, File sidecar){
+        this.sampleRate = sampleRate;
+        this.hangoverFrames = (long) (hangoverSeconds * sampleRate);
+        this.sidecar = sidecar;
+    }
+
+    /**
+     * Called on the capture thread with the kernel that just processed a block.
+     * @return whether the block should be passed on to the sinks
+     */
+    boolean keep(GainKernel kernel){
+        int frames = kernel.getFrameCount();
+        float rms = kernel.getRms();
+        if(noiseFloor < 0 || rms < noiseFloor) noiseFloor = rms;
+        boolean active = rms > MIN_ACTIVE_RMS
+                && (rms > noiseFloor * ENERGY_RATIO
+                || (rms > noiseFloor * UNVOICED_ENERGY_RATIO && kernel.getZeroCrossingRate() > UNVOICED_ZERO_CROSSING_RATE));
+        if(!active){
+            // Follow a rising background slowly so that speech itself doesn't become the floor.
+            noiseFloor += (rms - noiseFloor) * NOISE_FLOOR_RISE;
+        }
+
+        boolean keep;
+        if(active){
+            silentFrames = 0;
+            keep = true;
+        }else{
+            silentFrames += frames;
+            keep = silentFrames <= hangoverFrames;
+        }
+
+        if(keep){
+            if(elisionStart >= 0){
+                elisions.add(elisionStart, position);
+                elisionStart = -1;
+            }
+            keptFrames += frames;
+        }else if(elisionStart < 0){
+            elisionStart = position;
+        }
+        position += frames;
+        return keep;
+    }
+
+    /**
+     * Called on the capture thread for a block that was captured but dropped before reaching the detector.
+     */
+    void skip(int frames){
+        position += frames;
+    }
+
+    /**
+     * Called once after the last block. Logs how much was elided and writes the sidecar file.
+     */
+    void finish(){
+        if(elisionStart >= 0){
+            elisions.add(elisionStart, position);
+            elisionStart = -1;
+        }
+        Log.i(LOG, "Silence elision kept " + keptFrames + " of " + position + " frames, reduction ratio "
+                + (keptFrames > 0 ? (float) position / keptFrames : 0));
+        if(sidecar == null) return;
+
+        try {
+            elisions.write(sidecar, sampleRate, position);
+        }catch(IOException e){
+            Log.e(LOG, "IOException in writing elided ranges", e);
+        }
+    }
+
+    long getInputFrames(){
+        return position;
+    }
+
+    long getKeptFrames(){
+        return keptFrames;
+    }
+}
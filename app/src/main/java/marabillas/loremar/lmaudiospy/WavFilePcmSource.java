@@ -0,0 +1,132 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PcmSource replaying the sample data of a WAV file, used to run the recording pipeline on recorded material
+ * without a microphone. Reads are either paced to real time like AudioRecord or returned as fast as possible.
+ * Once the data is exhausted, read() returns {@link #END_OF_STREAM} unless the source loops.
+ */
+
+final class WavFilePcmSource implements PcmSource {
+    static final int END_OF_STREAM = -100;
+    private static final String LOG = "Loremar_Logs";
+
+    private final File file;
+    private final boolean realTime;
+    private final boolean loop;
+    private final FileChannel fileChannel;
+    private final AudioProcessingTools.WavInfo info;
+    private final int frameSize;
+    private long dataRead;
+    private long framesRead;
+    private long startNanos;
+
+    /**
+     * @param file     WAV file to replay
+     * @param realTime true to block in read() until the returned audio would have been captured by a real device
+     * @param loop     true to start over from the first sample when the data is exhausted
+     */
+    WavFilePcmSource(File file, boolean realTime, boolean loop) throws IOException {
+        this.file = file;
+        this.realTime = realTime;
+        this.loop = loop;
+        fileChannel = new FileInputStream(file).getChannel();
+        info = AudioProcessingTools.readWavHeader(fileChannel);
+        frameSize = AudioProcessingTools.bytesPerSample(info.audioFormat) * info.channelCount;
+    }
+
+    @Override
+    public int getAudioFormat() {
+        return info.audioFormat;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return info.sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return info.channelCount;
+    }
+
+    @Override
+    public void startRecording() {
+        dataRead = 0;
+        framesRead = 0;
+        startNanos = System.nanoTime();
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+        try {
+            if(dataRead >= info.dataSize){
+                if(!loop || info.dataSize < frameSize) return END_OF_STREAM;
+                dataRead = 0;
+            }
+            int size = Math.min(sizeInBytes, buffer.capacity());
+            size = (int) Math.min(size, info.dataSize - dataRead);
+            size -= size % frameSize;
+            buffer.clear().limit(size);
+            while(buffer.hasRemaining()){
+                if(fileChannel.read(buffer, info.dataOffset + dataRead + buffer.position()) == -1) break;
+            }
+            int read = buffer.position();
+            buffer.clear();
+            dataRead += read;
+            framesRead += read / frameSize;
+            if(realTime) waitUntilCaptured();
+            return read;
+        }catch(IOException e){
+            Log.e(LOG, "IOException in reading " + file.getName(), e);
+            return END_OF_STREAM;
+        }
+    }
+
+    private void waitUntilCaptured(){
+        long due = startNanos + framesRead * 1000000000L / info.sampleRate;
+        long wait;
+        while((wait = due - System.nanoTime()) > 0){
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    @Override
+    public void stop() {}
+
+    @Override
+    public void release() {
+        try {
+            fileChannel.close();
+        }catch(IOException e){
+            // Nothing was written to the file so there is nothing to lose.
+        }
+    }
+}
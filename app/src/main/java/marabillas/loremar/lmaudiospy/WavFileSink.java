@@ -0,0 +1,104 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the recording to a WAV file. Blocks are coalesced into large writes by a {@link WriteBehindWriter}. The
+ * sizes in the header are patched in place every {@link #CHECKPOINT_SECONDS} seconds or {@link #CHECKPOINT_BYTES}
+ * bytes that reached the file, whichever comes first, and again on close, so the file is valid and seekable even
+ * if the app is killed while recording. Recordings growing past 4 GB are turned from RIFF into RF64 by
+ * {@link AudioProcessingTools#writeWavSizes(FileChannel, ByteBuffer, long)}.
+ */
+
+final class WavFileSink implements PcmSink {
+    static final long CHECKPOINT_SECONDS = 5;
+    static final long CHECKPOINT_BYTES = 1024 * 1024;
+
+    private final File file;
+    private final int channelConfig;
+    private final WriteBehindWriter.Durability durability;
+    private final ByteBuffer sizes = ByteBuffer.allocate(8);
+    private FileChannel fileChannel;
+    private WriteBehindWriter writer;
+    private long dataSize;
+    private long checkpointSize;
+    private long checkpointTime;
+
+    /**
+     * @param durability when written data is synced to the storage device
+     */
+    WavFileSink(File file, int channelConfig, WriteBehindWriter.Durability durability){
+        this.file = file;
+        this.channelConfig = channelConfig;
+        this.durability = durability;
+    }
+
+    @Override
+    public void open(PcmFormat format) throws IOException {
+        fileChannel = new FileOutputStream(file).getChannel();
+        AudioProcessingTools.writeWavHeader(fileChannel, channelConfig, format.sampleRate, format.encoding);
+        writer = new WriteBehindWriter(fileChannel, AudioProcessingTools.WAV_HEADER_SIZE, durability);
+        dataSize = 0;
+        checkpointSize = 0;
+        checkpointTime = System.nanoTime();
+    }
+
+    @Override
+    public void write(ByteBuffer block) throws IOException {
+        dataSize += block.remaining();
+        writer.write(block);
+        // Only what the I/O thread has already written may be declared in the header.
+        long written = writer.getBytesWritten();
+        if(written - checkpointSize >= CHECKPOINT_BYTES
+                || (written > checkpointSize && System.nanoTime() - checkpointTime >= TimeUnit.SECONDS.toNanos(CHECKPOINT_SECONDS))){
+            checkpoint(written);
+        }
+    }
+
+    private void checkpoint(long size) throws IOException {
+        AudioProcessingTools.writeWavSizes(fileChannel, sizes, size);
+        checkpointSize = size;
+        checkpointTime = System.nanoTime();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.close();
+            // RIFF chunks are padded to an even size.
+            if((dataSize & 1) != 0) fileChannel.write(ByteBuffer.wrap(new byte[1]), AudioProcessingTools.WAV_HEADER_SIZE + dataSize);
+            checkpoint(dataSize);
+            if(durability != WriteBehindWriter.Durability.NONE) fileChannel.force(false);
+        }finally {
+            fileChannel.close();
+        }
+    }
+
+    File getFile(){
+        return file;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces small writes into chunks of {@link #CHUNK_SIZE} bytes written to a file by a dedicated I/O thread.
+ * A chunk that hasn't filled up within {@link #FLUSH_INTERVAL_MILLIS} is handed over as it is, so slow streams
+ * still reach the file, and the header checkpoints and syncs that follow it, on time. Chunks are cut short where
+ * needed so that full chunks start at a multiple of the chunk size in the file.
+ * Chunks come from an {@link AudioBufferPool}, so the caller only blocks when {@link #CHUNK_COUNT} chunks are
+ * waiting for a slow disk.
+ *
+ * Data is in the file once {@link #getBytesWritten()} covers it. How soon it also reaches the storage device is
+ * set by the {@link Durability}.
+ */
+
+final class WriteBehindWriter {
+    private static final String LOG = "Loremar_Logs";
+    static final int CHUNK_SIZE = 512 * 1024;
+    static final int CHUNK_COUNT = 4;
+    static final long SYNC_INTERVAL_SECONDS = 10;
+    /** Longest time written data waits in a chunk that isn't full. */
+    static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    enum Durability {
+        /** Leaves flushing to the OS. */
+        NONE,
+        /** Syncs the file every {@link #SYNC_INTERVAL_SECONDS} seconds while writing, and when closed. */
+        PERIODIC,
+        /** Syncs the file only when closed. */
+        ON_CLOSE
+    }
+
+    private final FileChannel channel;
+    private final Durability durability;
+    private final AudioBufferPool pool = new AudioBufferPool(CHUNK_COUNT, CHUNK_SIZE);
+    private final ArrayBlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(CHUNK_COUNT + 1);
+    private final Thread ioThread;
+    private final long flushInterval = TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS);
+    /** Offset in the file where the next chunk handed over starts. */
+    private long chunkPosition;
+    private ByteBuffer current;
+    private long currentTime;
+    private volatile long bytesWritten;
+    private volatile IOException failure;
+
+    /**
+     * @param channel    file to write to. Writes are positional, so other positional writes such as header
+     *                   updates can be made on the same channel at any time.
+     * @param position   offset in the file of the first byte written
+     * @param durability when data is synced to the storage device
+     */
+    WriteBehindWriter(FileChannel channel, final long position, Durability durability){
+        this.channel = channel;
+        this.durability = durability;
+        chunkPosition = position;
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeChunks(position);
+            }
+        }, "write-behind");
+        ioThread.start();
+    }
+
+    /**
+     * Copies the data between position and limit of src. Called from one thread only.
+     */
+    void write(ByteBuffer src) throws IOException {
+        if(failure != null) throw failure;
+        while(src.hasRemaining()){
+            if(current == null){
+                current = acquire();
+                current.limit(CHUNK_SIZE - (int) (chunkPosition % CHUNK_SIZE));
+                currentTime = System.nanoTime();
+            }
+            int length = Math.min(src.remaining(), current.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + length);
+            current.put(src);
+            src.limit(limit);
+            if(!current.hasRemaining()) handOver();
+        }
+        if(current != null && System.nanoTime() - currentTime >= flushInterval) handOver();
+    }
+
+    private ByteBuffer acquire() throws InterruptedIOException {
+        try {
+            return pool.acquire();
+        }catch(InterruptedException e){
+            throw new InterruptedIOException("Interrupted while waiting for a write-behind chunk");
+        }
+    }
+
+    private void handOver(){
+        chunkPosition += current.position();
+        current.flip();
+        filled.add(current);
+        current = null;
+    }
+
+    /**
+     * Writes what is still buffered and waits for the I/O thread to finish. Syncs the file unless the durability
+     * is {@link Durability#NONE}. The channel is left open.
+     */
+    void close() throws IOException {
+        if(current != null && current.position() > 0) handOver();
+        filled.add(END);
+        try {
+            ioThread.join();
+        }catch(InterruptedException e){
+            throw new InterruptedIOException("Interrupted while waiting for write-behind to finish");
+        }
+        if(failure != null) throw failure;
+        if(durability != Durability.NONE) channel.force(false);
+    }
+
+    /**
+     * @return number of bytes written to the file so far. Safe to call from any thread.
+     */
+    long getBytesWritten(){
+        return bytesWritten;
+    }
+
+    private void writeChunks(long position){
+        long lastSync = System.nanoTime();
+        final long syncInterval = TimeUnit.SECONDS.toNanos(SYNC_INTERVAL_SECONDS);
+        while(true){
+            ByteBuffer chunk;
+            try {
+                chunk = filled.take();
+            }catch(InterruptedException e){
+                Log.e(LOG, "write-behind thread interrupted", e);
+                failure = new InterruptedIOException("write-behind thread interrupted");
+                return;
+            }
+            if(chunk == END) return;
+            try {
+                if(failure == null){
+                    while(chunk.hasRemaining()){
+                        position += channel.write(chunk, position);
+                    }
+                    bytesWritten += chunk.limit();
+                    if(durability == Durability.PERIODIC && System.nanoTime() - lastSync >= syncInterval){
+                        channel.force(false);
+                        lastSync = System.nanoTime();
+                    }
+                }
+            }catch(IOException e){
+                // Keep taking chunks so the writing side doesn't block, it gets the error on its next write.
+                Log.e(LOG, "IOException in write-behind", e);
+                failure = e;
+            }finally {
+                pool.release(chunk);
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives {@link AsyncAacEncoder} with fake codecs making their callbacks on a thread of their own, as MediaCodec
+ * does in asynchronous mode.
+ */
+
+public class AsyncAacEncoderTest {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNEL_COUNT = 2;
+    private static final int FRAME_SIZE = 4;
+
+    @Test(timeout = 10000)
+    public void skipsCodecConfigAndKeepsDataOfEndOfStreamBuffer() throws IOException {
+        ScriptedCodec codec = new ScriptedCodec();
+        AsyncAacEncoder encoder = new AsyncAacEncoder(codec);
+        assertEquals(AudioFormat.ENCODING_PCM_16BIT, encoder.start(SAMPLE_RATE, CHANNEL_COUNT, 128000, AudioFormat.ENCODING_PCM_16BIT));
+        PcmInput input = new PcmInput(10000);
+        List<byte[]> accessUnits = new ArrayList<>();
+        encoder.encode(input, recordTo(accessUnits));
+        encoder.release();
+
+        // Codec specific data is skipped, the last access unit comes on the buffer ending the stream.
+        assertEquals("access units", 2, accessUnits.size());
+        assertArrayEquals(new byte[]{1}, accessUnits.get(0));
+        assertArrayEquals(new byte[]{2}, accessUnits.get(1));
+        assertEquals("bytes queued", 10000 * FRAME_SIZE, codec.queuedBytes);
+        assertEquals("ends of stream queued", 1, codec.endsOfStream);
+        assertTrue("presentation times increase", codec.presentationTimesIncrease);
+        assertEquals("presentation time of the end of stream", 10000 * 1000000L / SAMPLE_RATE, codec.lastPresentationTimeUs);
+    }
+
+    @Test(timeout = 10000)
+    public void endsOnEmptyBufferWithOtherFlags() throws IOException {
+        // The synthetic codec ends the stream on an empty buffer that is also flagged as a key frame.
+        AsyncAacEncoder encoder = new AsyncAacEncoder(new SyntheticAacCodec(1024));
+        encoder.start(SAMPLE_RATE, CHANNEL_COUNT, 128000, AudioFormat.ENCODING_PCM_16BIT);
+        final int[] count = new int[1];
+        encoder.encode(new PcmInput(100 * AacEncoder.FRAMES_PER_ACCESS_UNIT), new AacEncoder.Output() {
+            @Override
+            public void onAccessUnit(ByteBuffer accessUnit) {
+                count[0]++;
+            }
+        });
+        encoder.release();
+        assertEquals("access units, one of them priming", 101, count[0]);
+    }
+
+    @Test(timeout = 10000)
+    public void codecErrorFailsEncode() throws IOException {
+        ScriptedCodec codec = new ScriptedCodec();
+        codec.failAfterInput = true;
+        AsyncAacEncoder encoder = new AsyncAacEncoder(codec);
+        encoder.start(SAMPLE_RATE, CHANNEL_COUNT, 128000, AudioFormat.ENCODING_PCM_16BIT);
+        try {
+            encoder.encode(new PcmInput(10000), recordTo(new ArrayList<byte[]>()));
+            fail("encode returned after a codec error");
+        }catch(IOException e){
+            assertEquals("codec failed", e.getCause().getMessage());
+        }finally {
+            encoder.release();
+        }
+    }
+
+    /**
+     * Copies the access units, which are checked on the test thread once encoding has ended.
+     */
+    private static AacEncoder.Output recordTo(final List<byte[]> accessUnits){
+        return new AacEncoder.Output() {
+            @Override
+            public void onAccessUnit(ByteBuffer accessUnit) {
+                byte[] bytes = new byte[accessUnit.remaining()];
+                accessUnit.get(bytes);
+                accessUnits.add(bytes);
+            }
+        };
+    }
+
+    /**
+     * Silence of a given number of 16-bit stereo frames.
+     */
+    private static final class PcmInput implements AacEncoder.Input{
+        private long frames;
+
+        PcmInput(long frames){
+            this.frames = frames;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if(frames == 0) return -1;
+            int length = (int) Math.min(dst.remaining() / FRAME_SIZE, frames) * FRAME_SIZE;
+            for(int i = 0; i < length; i++) dst.put((byte) 0);
+            frames -= length / FRAME_SIZE;
+            return length;
+        }
+    }
+
+    /**
+     * Takes input until the end of stream, then gives codec specific data, one access unit, and a second access
+     * unit on the buffer that ends the stream, flagged as a key frame too.
+     */
+    private static final class ScriptedCodec implements AsyncAacEncoder.Codec{
+        private final ExecutorService callbackThread = Executors.newSingleThreadExecutor();
+        private final ByteBuffer inputBuffer = ByteBuffer.allocate(4096);
+        private final ByteBuffer[] outputBuffers = {
+                ByteBuffer.wrap(new byte[]{0x12, 0x10}), ByteBuffer.wrap(new byte[]{1}), ByteBuffer.wrap(new byte[]{2})};
+        private final int[] outputFlags = {MediaCodec.BUFFER_FLAG_CODEC_CONFIG, 0,
+                MediaCodec.BUFFER_FLAG_END_OF_STREAM | MediaCodec.BUFFER_FLAG_KEY_FRAME};
+        private Callback callback;
+        volatile boolean failAfterInput;
+        volatile long queuedBytes;
+        volatile int endsOfStream;
+        volatile long lastPresentationTimeUs = -1;
+        volatile boolean presentationTimesIncrease = true;
+
+        @Override
+        public int configure(int sampleRate, int channelCount, int bitRate, int encoding, Callback callback) {
+            this.callback = callback;
+            return AudioFormat.ENCODING_PCM_16BIT;
+        }
+
+        @Override
+        public int getDelayFrames() {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+            offerInput();
+        }
+
+        private void offerInput(){
+            callbackThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onInputBufferAvailable(0);
+                }
+            });
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            inputBuffer.clear();
+            return inputBuffer;
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+            queuedBytes += size;
+            if(presentationTimeUs <= lastPresentationTimeUs && size > 0) presentationTimesIncrease = false;
+            lastPresentationTimeUs = presentationTimeUs;
+            if(failAfterInput){
+                callbackThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onError(new IllegalStateException("codec failed"));
+                    }
+                });
+                return;
+            }
+            if((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0){
+                offerInput();
+                return;
+            }
+            endsOfStream++;
+            for(int i = 0; i < outputBuffers.length; i++){
+                final int output = i;
+                final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                info.offset = 0;
+                info.size = outputBuffers[i].remaining();
+                info.flags = outputFlags[i];
+                callbackThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onOutputBufferAvailable(output, info);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return outputBuffers[index];
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {}
+
+        @Override
+        public void release() {
+            callbackThread.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.AudioFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the WAV header handling of {@link AudioProcessingTools}: the sizes written while recording, and the
+ * repair of files left behind by interrupted recordings.
+ */
+
+public class AudioProcessingToolsTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME_SIZE = 4;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("wav", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for(File file : directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void repairCoversDataBeyondStaleHeader() throws IOException {
+        byte[] pcm = sine(SAMPLE_RATE);
+        try(RandomAccessFile file = new RandomAccessFile(new File(directory, "stale.wav"), "rw")){
+            FileChannel channel = file.getChannel();
+            AudioProcessingTools.writeWavHeader(channel, AudioFormat.CHANNEL_IN_STEREO, SAMPLE_RATE, AudioFormat.ENCODING_PCM_16BIT);
+            channel.write(ByteBuffer.wrap(pcm), AudioProcessingTools.WAV_HEADER_SIZE);
+            // The last checkpoint, a second before the process was killed halfway through writing a frame.
+            AudioProcessingTools.writeWavSizes(channel, ByteBuffer.allocate(8), pcm.length / 2);
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}), AudioProcessingTools.WAV_HEADER_SIZE + pcm.length);
+
+            assertTrue(AudioProcessingTools.repairWav(channel));
+            assertRepaired(channel, pcm);
+            assertFalse(AudioProcessingTools.repairWav(channel));
+        }
+    }
+
+    @Test
+    public void repairKeepsSilenceAtEndOfRecording() throws IOException {
+        byte[] pcm = new byte[3 * SAMPLE_RATE * FRAME_SIZE];
+        System.arraycopy(sine(SAMPLE_RATE), 0, pcm, 0, SAMPLE_RATE * FRAME_SIZE);
+        try(RandomAccessFile file = new RandomAccessFile(new File(directory, "silence.wav"), "rw")){
+            FileChannel channel = file.getChannel();
+            AudioProcessingTools.writeWavHeader(channel, AudioFormat.CHANNEL_IN_STEREO, SAMPLE_RATE, AudioFormat.ENCODING_PCM_16BIT);
+            channel.write(ByteBuffer.wrap(pcm), AudioProcessingTools.WAV_HEADER_SIZE);
+
+            assertTrue(AudioProcessingTools.repairWav(channel));
+            assertRepaired(channel, pcm);
+        }
+    }
+
+    @Test
+    public void repairCutsPreallocatedExtentOfMappedRecording() throws IOException {
+        byte[] pcm = sine(SAMPLE_RATE);
+        try(RandomAccessFile file = new RandomAccessFile(new File(directory, "mapped.wav"), "rw")){
+            FileChannel channel = file.getChannel();
+            AudioProcessingTools.writeWavHeader(channel, AudioFormat.CHANNEL_IN_STEREO, SAMPLE_RATE, AudioFormat.ENCODING_PCM_16BIT);
+            // As MappedWavFileSink leaves it, extended by a whole extent that the data only partly filled.
+            file.setLength(MappedWavFileSink.EXTENT_SIZE);
+            channel.write(ByteBuffer.wrap(pcm), AudioProcessingTools.WAV_HEADER_SIZE);
+
+            assertTrue(AudioProcessingTools.repairWav(channel));
+            assertRepaired(channel, pcm);
+        }
+    }
+
+    @Test
+    public void sizesPast4GbTurnHeaderIntoRf64() throws IOException {
+        long dataSize = 5L * 1024 * 1024 * 1024 + FRAME_SIZE;
+        try(RandomAccessFile file = new RandomAccessFile(new File(directory, "rf64.wav"), "rw")){
+            FileChannel channel = file.getChannel();
+            AudioProcessingTools.writeWavHeader(channel, AudioFormat.CHANNEL_IN_STEREO, SAMPLE_RATE, AudioFormat.ENCODING_PCM_16BIT);
+            AudioProcessingTools.writeWavSizes(channel, ByteBuffer.allocate(8), dataSize);
+
+            ByteBuffer header = readHeader(channel);
+            assertEquals(0x34364652, header.getInt(0)); // "RF64"
+            assertEquals(0xFFFFFFFF, header.getInt(4));
+            assertEquals(0x34367364, header.getInt(12)); // "ds64"
+            assertEquals(28, header.getInt(16));
+            assertEquals(AudioProcessingTools.WAV_HEADER_SIZE - 8 + dataSize, header.getLong(20));
+            assertEquals(dataSize, header.getLong(28));
+            assertEquals(0xFFFFFFFF, header.getInt(76));
+            assertEquals(dataSize, AudioProcessingTools.readWavHeader(channel).declaredDataSize);
+        }
+    }
+
+    @Test
+    public void sizesUpTo4GbKeepRiffHeader() throws IOException {
+        // The largest data chunk whose RIFF size, always even with the pad byte, still fits 32 bits.
+        long dataSize = 0xFFFFFFFEL - (AudioProcessingTools.WAV_HEADER_SIZE - 8);
+        try(RandomAccessFile file = new RandomAccessFile(new File(directory, "riff.wav"), "rw")){
+            FileChannel channel = file.getChannel();
+            AudioProcessingTools.writeWavHeader(channel, AudioFormat.CHANNEL_IN_STEREO, SAMPLE_RATE, AudioFormat.ENCODING_PCM_16BIT);
+            AudioProcessingTools.writeWavSizes(channel, ByteBuffer.allocate(8), dataSize);
+
+            ByteBuffer header = readHeader(channel);
+            assertEquals(0x46464952, header.getInt(0)); // "RIFF"
+            assertEquals(0xFFFFFFFE, header.getInt(4));
+            assertEquals(0x4B4E554A, header.getInt(12)); // "JUNK"
+            assertEquals((int) dataSize, header.getInt(76));
+            assertEquals(dataSize, AudioProcessingTools.readWavHeader(channel).declaredDataSize);
+        }
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(AudioProcessingTools.WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while(header.hasRemaining()){
+            if(channel.read(header, header.position()) == -1) throw new IOException("Unexpected end of WAV file");
+        }
+        return header;
+    }
+
+    private static void assertRepaired(FileChannel channel, byte[] pcm) throws IOException {
+        AudioProcessingTools.WavInfo info = AudioProcessingTools.readWavHeader(channel);
+        assertEquals(pcm.length, info.declaredDataSize);
+        assertEquals(AudioProcessingTools.WAV_HEADER_SIZE + pcm.length, channel.size());
+        ByteBuffer data = ByteBuffer.allocate(pcm.length);
+        while(data.hasRemaining()){
+            channel.read(data, AudioProcessingTools.WAV_HEADER_SIZE + data.position());
+        }
+        assertArrayEquals(pcm, data.array());
+    }
+
+    /**
+     * @return frames of 16-bit stereo sine, none of them silent
+     */
+    private static byte[] sine(int frames){
+        ByteBuffer pcm = ByteBuffer.allocate(frames * FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for(int i = 0; i < frames; i++){
+            short sample = (short) (Math.sin(2 * Math.PI * 441 * i / SAMPLE_RATE + 0.25) * 16000);
+            pcm.putShort(sample).putShort(sample);
+        }
+        return pcm.array();
+    }
+}
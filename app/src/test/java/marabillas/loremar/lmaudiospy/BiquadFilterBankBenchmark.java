@@ -0,0 +1,81 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Timing harness printing samples per second of {@link BiquadFilterBank} with every filter on, the DC blocker, an
+ * 80 Hz high-pass and 50 Hz hum notches, in mono and stereo at each sample rate the app records at. Blocks hold
+ * as many samples as AudioRecord delivers at 44.1 kHz stereo 16-bit. The best of several rounds after a warm-up
+ * is reported, along with how many times faster than real time that is on one core.
+ */
+
+public class BiquadFilterBankBenchmark {
+    private static final int[] SAMPLE_RATES = {8000, 16000, 44100, 48000};
+    private static final int BLOCK_SAMPLES = 1792;
+    private static final int ROUNDS = 5;
+    private static final long ROUND_NANOS = 200000000L;
+
+    @Test
+    public void mono() {
+        for(int sampleRate : SAMPLE_RATES) measure(sampleRate, 1);
+    }
+
+    @Test
+    public void stereo() {
+        for(int sampleRate : SAMPLE_RATES) measure(sampleRate, 2);
+    }
+
+    private void measure(int sampleRate, int channelCount){
+        final BiquadFilterBank filters = new BiquadFilterBank(sampleRate, channelCount, true, 80, 50);
+        final float[] source = noise();
+        final float[] block = new float[BLOCK_SAMPLES];
+        final int frames = BLOCK_SAMPLES / channelCount;
+        double best = 0;
+        // The first round warms up the JIT and isn't counted.
+        for(int round = 0; round <= ROUNDS; round++){
+            long runs = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do{
+                for(int i = 0; i < 100; i++){
+                    // Fresh noise every run, so repeated filtering doesn't wear the block down to denormals.
+                    System.arraycopy(source, 0, block, 0, BLOCK_SAMPLES);
+                    filters.process(block, frames);
+                }
+                runs += 100;
+                elapsed = System.nanoTime() - start;
+            }while(elapsed < ROUND_NANOS);
+            if(round > 0) best = Math.max(best, runs * BLOCK_SAMPLES * 1e9 / elapsed);
+        }
+        System.out.println(String.format("%5d Hz %-6s %8.1f M samples/s, %6.0fx real time", sampleRate,
+                channelCount == 1 ? "mono" : "stereo", best / 1e6, best / ((double) sampleRate * channelCount)));
+    }
+
+    private static float[] noise(){
+        float[] samples = new float[BLOCK_SAMPLES];
+        Random random = new Random(1);
+        for(int i = 0; i < samples.length; i++) samples[i] = (float) (random.nextGaussian() * 0.1);
+        return samples;
+    }
+}
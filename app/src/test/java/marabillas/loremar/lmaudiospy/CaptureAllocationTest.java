@@ -0,0 +1,82 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.AudioFormat;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the capture path of {@link RecordingSession} over an hour of synthetic audio, claiming each block from a
+ * ring of {@link RecordingSession#RING_CAPACITY} slots, reading it with gain applied, publishing it and releasing
+ * it again as the writer does, and checks that nothing is allocated once the JIT has settled.
+ */
+
+public class CaptureAllocationTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNEL_COUNT = 2;
+    private static final int BLOCK_SIZE = 3584;
+
+    @Test
+    public void sixteenBitCaptureAllocatesNothing() {
+        assertEquals("bytes allocated", 0, allocatedOverAnHour(AudioFormat.ENCODING_PCM_16BIT));
+    }
+
+    @Test
+    public void floatCaptureAllocatesNothing() {
+        assertEquals("bytes allocated", 0, allocatedOverAnHour(AudioFormat.ENCODING_PCM_FLOAT));
+    }
+
+    private static long allocatedOverAnHour(int encoding){
+        SyntheticPcmSource source = new SyntheticPcmSource(SyntheticPcmSource.Waveform.NOISE, 0, 0.5, SAMPLE_RATE,
+                CHANNEL_COUNT, encoding, false);
+        PcmRingBuffer ring = new PcmRingBuffer(RecordingSession.RING_CAPACITY, BLOCK_SIZE, encoding);
+        GainKernel gainKernel = GainKernel.create(encoding, CHANNEL_COUNT, 2, BLOCK_SIZE, new PcmProcessor[0]);
+        LevelMeter meter = new LevelMeter();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        source.startRecording();
+        // Lets the JIT settle first.
+        captureBlocks(10000, source, ring, gainKernel, meter);
+
+        int blocks = (int) (3600L * SAMPLE_RATE * CHANNEL_COUNT * AudioProcessingTools.bytesPerSample(encoding) / BLOCK_SIZE);
+        long before = threads.getThreadAllocatedBytes(thread);
+        captureBlocks(blocks, source, ring, gainKernel, meter);
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    private static void captureBlocks(int count, PcmSource source, PcmRingBuffer ring, GainKernel gainKernel,
+                                      LevelMeter meter){
+        for(int i = 0; i < count; i++){
+            ByteBuffer block = ring.claim();
+            int read = AudioProcessingTools.readAudioApplyGain(block, ring.claimedView(), source, BLOCK_SIZE, gainKernel, meter);
+            ring.publish();
+            assertEquals(BLOCK_SIZE, read);
+            // As the writer does.
+            assertEquals(BLOCK_SIZE, ring.peek().limit());
+            ring.release();
+        }
+    }
+}
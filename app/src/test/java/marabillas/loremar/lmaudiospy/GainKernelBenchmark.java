@@ -0,0 +1,183 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.AudioFormat;
+
+import org.junit.Test;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+/**
+ * Timing harness printing samples per second of each {@link GainKernel} next to the per-sample switch they
+ * replaced, on blocks of noise the size AudioRecord delivers at 44.1 kHz stereo. The switch only applies gain
+ * while the kernels also measure the levels of every block. The best of several rounds after a warm-up is
+ * reported. Like the other benchmarks it is left out of the unit tests unless Gradle is given -Pbenchmarks.
+ */
+
+public class GainKernelBenchmark {
+    private static final int BLOCK_SIZE = 3584;
+    private static final int GAIN = 2;
+    private static final int ROUNDS = 5;
+    private static final long ROUND_NANOS = 200000000L;
+
+    @Test
+    public void pcm8() {
+        compare("8-bit", AudioFormat.ENCODING_PCM_8BIT);
+    }
+
+    @Test
+    public void pcm16() {
+        compare("16-bit", AudioFormat.ENCODING_PCM_16BIT);
+    }
+
+    @Test
+    public void pcmFloat() {
+        compare("float", AudioFormat.ENCODING_PCM_FLOAT);
+    }
+
+    private void compare(String name, final int encoding){
+        final ByteBuffer source = noise(encoding);
+        final ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final Buffer view = GainKernel.createView(encoding, block);
+        final GainKernel kernel = GainKernel.create(encoding, 2, GAIN, BLOCK_SIZE, new PcmProcessor[0]);
+        final LevelMeter meter = new LevelMeter();
+        int samples = BLOCK_SIZE / AudioProcessingTools.bytesPerSample(encoding);
+        Runnable kernelRun = new Runnable() {
+            @Override
+            public void run() {
+                reset(block, source);
+                kernel.apply(block, view, meter);
+            }
+        };
+        final int[] maxAmplitude = new int[1];
+        Runnable legacyRun = new Runnable() {
+            @Override
+            public void run() {
+                reset(block, source);
+                legacyApplyGain(block, encoding, GAIN, maxAmplitude);
+            }
+        };
+        double kernelRate = 0;
+        double legacyRate = 0;
+        // Rounds alternate so both sides see the same load on the machine. The first round of each warms up the
+        // JIT and isn't counted.
+        for(int round = 0; round <= ROUNDS; round++){
+            double kernelRoundRate = samplesPerSecond(samples, kernelRun);
+            double legacyRoundRate = samplesPerSecond(samples, legacyRun);
+            if(round > 0){
+                kernelRate = Math.max(kernelRate, kernelRoundRate);
+                legacyRate = Math.max(legacyRate, legacyRoundRate);
+            }
+        }
+        System.out.println(String.format("%-6s kernel %8.1f M samples/s, per-sample switch %8.1f M samples/s (%.1fx)",
+                name, kernelRate / 1e6, legacyRate / 1e6, kernelRate / legacyRate));
+    }
+
+    private static double samplesPerSecond(int samplesPerRun, Runnable run){
+        long runs = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do{
+            for(int i = 0; i < 100; i++) run.run();
+            runs += 100;
+            elapsed = System.nanoTime() - start;
+        }while(elapsed < ROUND_NANOS);
+        return runs * samplesPerRun * 1e9 / elapsed;
+    }
+
+    /**
+     * Copies the noise back in before every run, so repeated gain doesn't leave only clipped samples.
+     */
+    private static void reset(ByteBuffer block, ByteBuffer source){
+        block.clear();
+        source.clear();
+        block.put(source);
+        block.flip();
+    }
+
+    private static ByteBuffer noise(int encoding){
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        Random random = new Random(1);
+        // Quiet enough that gain doesn't clip most samples.
+        while(block.hasRemaining()){
+            double sample = random.nextGaussian() * 0.1;
+            switch(encoding){
+                case AudioFormat.ENCODING_PCM_8BIT:
+                    block.put((byte) (Math.round(sample * 127) + 128));
+                    break;
+                case AudioFormat.ENCODING_PCM_FLOAT:
+                    block.putFloat((float) sample);
+                    break;
+                default:
+                    block.putShort((short) Math.round(sample * 32767));
+                    break;
+            }
+        }
+        block.flip();
+        return block;
+    }
+
+    /**
+     * The gain pass of AudioProcessingTools.readAudioApplyGain before the kernels, without the read.
+     */
+    private static void legacyApplyGain(ByteBuffer buffer, int encoding, int gain, int[] maxAmplitude){
+        int read = buffer.limit();
+        switch(encoding) {
+            case AudioFormat.ENCODING_PCM_8BIT:
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer.get(i);
+                    if(b > maxAmplitude[0]){
+                        maxAmplitude[0] = b;
+                    }
+                    b = (byte) Math.min(Math.max(b * gain, Byte.MIN_VALUE), Byte.MAX_VALUE);
+                    buffer.put(i, b);
+                }
+                break;
+            case AudioFormat.ENCODING_PCM_16BIT:
+                ShortBuffer audioBufferShort = buffer.asShortBuffer();
+                for (int i = 0; i < (read / 2); i++) {
+                    short s = audioBufferShort.get(i);
+                    if(s > maxAmplitude[0]){
+                        maxAmplitude[0] = s;
+                    }
+                    s = (short) Math.min(Math.max(s * gain, Short.MIN_VALUE), Short.MAX_VALUE);
+                    audioBufferShort.put(i, s);
+                }
+                break;
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                FloatBuffer audioBufferFloat = buffer.asFloatBuffer();
+                for(int i = 0; i < read / 4; i++){
+                    float f = audioBufferFloat.get(i);
+                    if(f > maxAmplitude[0]){
+                        maxAmplitude[0] = (int) f;
+                    }
+                    f = (short) Math.min(Math.max(f * gain, Float.MIN_VALUE), Float.MAX_VALUE);
+                    audioBufferFloat.put(i, f);
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.AudioFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Timing harness writing the same recording through {@link WavFileSink} and {@link MappedWavFileSink}, in blocks
+ * the size AudioRecord delivers at 44.1 kHz stereo, and printing throughput and write latencies of each. The
+ * recording spans several extents, and on Linux the mappings of the file are counted while it's written to check
+ * that windows are unmapped as the sink moves on.
+ */
+
+public class MappedWavFileSinkBenchmark {
+    private static final int BLOCK_SIZE = 3584;
+    private static final long RECORDING_SIZE = 3 * MappedWavFileSink.EXTENT_SIZE + 12345;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("wav", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for(File file : directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void compareSinks() throws IOException {
+        File streamed = new File(directory, "streamed.wav");
+        File mapped = new File(directory, "mapped.wav");
+        // The first run of each warms up the JIT and isn't reported.
+        write(new WavFileSink(streamed, AudioFormat.CHANNEL_IN_STEREO, WriteBehindWriter.Durability.NONE), null);
+        write(new MappedWavFileSink(mapped, AudioFormat.CHANNEL_IN_STEREO, WriteBehindWriter.Durability.NONE), null);
+        report("stream", write(new WavFileSink(streamed, AudioFormat.CHANNEL_IN_STEREO, WriteBehindWriter.Durability.NONE), null));
+        report("mapped", write(new MappedWavFileSink(mapped, AudioFormat.CHANNEL_IN_STEREO, WriteBehindWriter.Durability.NONE), mapped));
+
+        assertEquals(streamed.length(), mapped.length());
+        try(InputStream a = new FileInputStream(streamed); InputStream b = new FileInputStream(mapped)){
+            byte[] bufferA = new byte[64 * 1024];
+            byte[] bufferB = new byte[64 * 1024];
+            int read;
+            while((read = a.read(bufferA)) > 0){
+                int readB = 0;
+                while(readB < read) readB += b.read(bufferB, readB, read - readB);
+                assertArrayEquals(Arrays.copyOf(bufferA, read), Arrays.copyOf(bufferB, read));
+            }
+        }
+    }
+
+    /**
+     * @param mappedFile file to count the mappings of while writing, or null
+     * @return total time in nanoseconds followed by the latency of every write
+     */
+    private static long[] write(PcmSink sink, File mappedFile) throws IOException {
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for(int i = 0; block.hasRemaining(); i++) block.putShort((short) (Math.sin(i * 0.0627) * 8000));
+        int blocks = (int) (RECORDING_SIZE / BLOCK_SIZE);
+        long[] nanos = new long[blocks + 1];
+        int maxMappings = 0;
+        long start = System.nanoTime();
+        sink.open(new PcmFormat(44100, 2, AudioFormat.ENCODING_PCM_16BIT, BLOCK_SIZE));
+        for(int i = 0; i < blocks; i++){
+            block.clear();
+            long writeStart = System.nanoTime();
+            sink.write(block);
+            nanos[i + 1] = System.nanoTime() - writeStart;
+            if(mappedFile != null && i % 1024 == 0) maxMappings = Math.max(maxMappings, countMappings(mappedFile));
+        }
+        sink.close();
+        nanos[0] = System.nanoTime() - start;
+        assertTrue("Mappings of the file piled up: " + maxMappings, maxMappings <= 1);
+        return nanos;
+    }
+
+    /**
+     * @return number of mappings of file by this process, or 0 where /proc/self/maps can't be read
+     */
+    private static int countMappings(File file) throws IOException {
+        File maps = new File("/proc/self/maps");
+        if(!maps.canRead()) return 0;
+        String path = file.getCanonicalPath();
+        int count = 0;
+        try(BufferedReader reader = new BufferedReader(new FileReader(maps))){
+            String line;
+            while((line = reader.readLine()) != null){
+                if(line.endsWith(path)) count++;
+            }
+        }
+        return count;
+    }
+
+    private static void report(String name, long[] nanos){
+        long total = nanos[0];
+        long[] latencies = Arrays.copyOfRange(nanos, 1, nanos.length);
+        Arrays.sort(latencies);
+        System.out.println(String.format("%s: %.0f MB/s, write latency median %.1f us, p99 %.1f us, max %.1f us",
+                name, RECORDING_SIZE / (total / 1e9) / 1e6,
+                latencies[latencies.length / 2] / 1e3,
+                latencies[latencies.length * 99 / 100] / 1e3,
+                latencies[latencies.length - 1] / 1e3));
+    }
+}
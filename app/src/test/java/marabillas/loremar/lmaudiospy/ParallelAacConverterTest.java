@@ -0,0 +1,182 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.AudioFormat;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes synthetic audio with {@link SyntheticAacCodec}, whose access units depend only on the input, so a
+ * conversion split into segments must give exactly the access units of the same conversion done in one piece.
+ */
+
+public class ParallelAacConverterTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNEL_COUNT = 2;
+    /** Not a whole number of access units, like the priming of real encoders. */
+    private static final int DELAY_FRAMES = 2112;
+
+    private File directory;
+    private File workDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("conversion", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        workDirectory = new File(directory, "work");
+        assertTrue(workDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for(File file : workDirectory.listFiles()) file.delete();
+        workDirectory.delete();
+        for(File file : directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void segmentsStitchWithoutGapsOrRepeats() throws IOException {
+        // Enough for every one of the encoders to get a segment, with a partial access unit at the end.
+        long frames = (long) ParallelAacConverter.MAX_THREADS * ParallelAacConverter.MIN_SEGMENT_ACCESS_UNITS
+                * AacEncoder.FRAMES_PER_ACCESS_UNIT + 777;
+        File pcm = writePcm(frames, AudioFormat.ENCODING_PCM_16BIT);
+
+        RecordedTrack whole = convert(pcm, 1, AudioFormat.ENCODING_PCM_16BIT);
+        RecordedTrack stitched = convert(pcm, ParallelAacConverter.MAX_THREADS, AudioFormat.ENCODING_PCM_16BIT);
+
+        long units = (frames + DELAY_FRAMES + AacEncoder.FRAMES_PER_ACCESS_UNIT - 1) / AacEncoder.FRAMES_PER_ACCESS_UNIT;
+        assertEquals("access units of the whole conversion", units, whole.accessUnits.size());
+        assertEquals("access units of the stitched conversion", units, stitched.accessUnits.size());
+        assertEquals("tracks started", 1, stitched.starts);
+        for(int g = 0; g < units; g++){
+            // Consecutive timestamps, so no access unit is missing or repeated where segments join.
+            assertEquals("timestamp of access unit " + g, g * AacEncoder.FRAMES_PER_ACCESS_UNIT * 1000000L / SAMPLE_RATE,
+                    (long) stitched.presentationTimesUs.get(g));
+            assertArrayEquals("access unit " + g, whole.accessUnits.get(g), stitched.accessUnits.get(g));
+        }
+        assertEquals("segments left in the work directory", 0, workDirectory.listFiles().length);
+    }
+
+    @Test
+    public void floatInputEncodesLikeSixteenBit() throws IOException {
+        long frames = 2L * ParallelAacConverter.MIN_SEGMENT_ACCESS_UNITS * AacEncoder.FRAMES_PER_ACCESS_UNIT;
+        RecordedTrack pcm16 = convert(writePcm(frames, AudioFormat.ENCODING_PCM_16BIT), 2, AudioFormat.ENCODING_PCM_16BIT);
+        RecordedTrack pcmFloat = convert(writeFloatFromPcm16(frames), 2, AudioFormat.ENCODING_PCM_FLOAT);
+
+        assertEquals(pcm16.accessUnits.size(), pcmFloat.accessUnits.size());
+        for(int g = 0; g < pcm16.accessUnits.size(); g++){
+            assertArrayEquals("access unit " + g, pcm16.accessUnits.get(g), pcmFloat.accessUnits.get(g));
+        }
+    }
+
+    private RecordedTrack convert(File pcm, int threads, int encoding) throws IOException {
+        RecordedTrack track = new RecordedTrack();
+        new ParallelAacConverter(SyntheticAacCodec.factory(DELAY_FRAMES), threads).convert(pcm, 0, pcm.length(),
+                SAMPLE_RATE, CHANNEL_COUNT, encoding, 128000, workDirectory, track, new ParallelAacConverter.ProgressListener() {
+                    @Override
+                    public void onProgress(long encodedFrames, long totalFrames) {}
+                });
+        return track;
+    }
+
+    private File writePcm(long frames, int encoding) throws IOException {
+        SyntheticPcmSource source = new SyntheticPcmSource(SyntheticPcmSource.Waveform.NOISE, 0, 0.5, SAMPLE_RATE,
+                CHANNEL_COUNT, encoding, false);
+        File file = new File(directory, "audio" + encoding + ".pcm");
+        int frameSize = AudioProcessingTools.bytesPerSample(encoding) * CHANNEL_COUNT;
+        ByteBuffer block = ByteBuffer.allocateDirect(1000 * frameSize).order(ByteOrder.LITTLE_ENDIAN);
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try {
+            source.startRecording();
+            for(long written = 0; written < frames; written += block.limit() / frameSize){
+                block.clear();
+                int read = source.read(block, (int) Math.min(block.capacity(), (frames - written) * frameSize));
+                block.limit(read);
+                while(block.hasRemaining()) channel.write(block);
+            }
+        }finally {
+            channel.close();
+        }
+        return file;
+    }
+
+    /**
+     * @return the 16-bit audio of {@link #writePcm(long, int)} as floats, which convert back to the same samples
+     */
+    private File writeFloatFromPcm16(long frames) throws IOException {
+        File pcm16 = writePcm(frames, AudioFormat.ENCODING_PCM_16BIT);
+        ByteBuffer samples = ByteBuffer.allocate((int) pcm16.length()).order(ByteOrder.LITTLE_ENDIAN);
+        FileChannel in = new java.io.FileInputStream(pcm16).getChannel();
+        try {
+            while(samples.hasRemaining() && in.read(samples) != -1);
+        }finally {
+            in.close();
+        }
+        samples.flip();
+        ByteBuffer floats = ByteBuffer.allocate(samples.remaining() * 2).order(ByteOrder.LITTLE_ENDIAN);
+        while(samples.hasRemaining()) floats.putFloat(samples.getShort() / (float) Short.MAX_VALUE);
+        floats.flip();
+        File file = new File(directory, "audio.float");
+        FileChannel out = new FileOutputStream(file).getChannel();
+        try {
+            while(floats.hasRemaining()) out.write(floats);
+        }finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static final class RecordedTrack implements ParallelAacConverter.Track{
+        final List<byte[]> accessUnits = new ArrayList<>();
+        final List<Long> presentationTimesUs = new ArrayList<>();
+        int starts;
+
+        @Override
+        public void start(MediaFormat format) {
+            starts++;
+        }
+
+        @Override
+        public void writeAccessUnit(ByteBuffer accessUnit, long presentationTimeUs) {
+            byte[] bytes = new byte[accessUnit.remaining()];
+            accessUnit.get(bytes);
+            accessUnits.add(bytes);
+            presentationTimesUs.add(presentationTimeUs);
+        }
+    }
+}
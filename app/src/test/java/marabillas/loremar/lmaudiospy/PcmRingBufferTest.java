@@ -0,0 +1,67 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.AudioFormat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the bookkeeping of {@link PcmRingBuffer} with the producer and consumer taking turns on one thread.
+ */
+
+public class PcmRingBufferTest {
+    private static final int CAPACITY = 8;
+    private static final int BLOCK_SIZE = 64;
+
+    @Test
+    public void highWaterMarkCountsBlocksWaitingAtOnce() {
+        PcmRingBuffer ring = new PcmRingBuffer(CAPACITY, BLOCK_SIZE, AudioFormat.ENCODING_PCM_16BIT);
+        // A consumer keeping up never has more than one block waiting, however far the producer has got.
+        for(int i = 0; i < 10 * CAPACITY; i++){
+            ring.claim();
+            ring.publish();
+            ring.peek();
+            ring.release();
+        }
+        assertEquals(1, ring.getHighWaterMark());
+
+        for(int i = 0; i < 3; i++){
+            ring.claim();
+            ring.publish();
+        }
+        assertEquals(3, ring.getHighWaterMark());
+    }
+
+    @Test
+    public void fullRingCountsOverrun() {
+        PcmRingBuffer ring = new PcmRingBuffer(CAPACITY, BLOCK_SIZE, AudioFormat.ENCODING_PCM_16BIT);
+        for(int i = 0; i < CAPACITY; i++){
+            ring.claim();
+            ring.publish();
+        }
+        assertNull(ring.claim());
+        assertEquals(1, ring.getOverruns());
+        assertEquals(CAPACITY, ring.getHighWaterMark());
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.AudioFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the recording pipeline on the JVM with {@link PcmSource} fakes in place of AudioRecord. Logging goes to
+ * the stubbed android.jar, which the unit test options of the build let return defaults.
+ */
+
+public class RecordingSessionTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK_SIZE = 3584;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("recording", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for(File file : directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+    @Test(timeout = 30000)
+    public void replayedWavIsRecordedUnchanged() throws Exception {
+        File input = new File(directory, "input.wav");
+        byte[] pcm = writeSineWav(input, SAMPLE_RATE);
+
+        File output = new File(directory, "output.wav");
+        // Paced like a device, since a source read faster than the sinks can write overruns the ring.
+        RecordingSession session = new RecordingSession(new WavFilePcmSource(input, true, false), BLOCK_SIZE, 1);
+        session.addSink(new WavFileSink(output, AudioFormat.CHANNEL_IN_STEREO, WriteBehindWriter.Durability.ON_CLOSE));
+        final Exception[] failure = new Exception[1];
+        session.setOnSessionFinishedListener(new RecordingSession.OnSessionFinishedListener() {
+            @Override
+            public void onSessionFinished() {}
+
+            @Override
+            public void onSessionFailed(Exception e) {
+                failure[0] = e;
+            }
+        });
+        // The session stops by itself at the end of the replayed file.
+        session.start();
+        session.join();
+
+        assertNull("failure", failure[0]);
+        assertTrue("time to first sample measured", session.getTimeToFirstSampleMillis() >= 0);
+        assertArrayEquals(pcm, readWavData(output));
+    }
+
+    @Test(timeout = 30000)
+    public void droppedBlocksAreRecorded() throws Exception {
+        File input = new File(directory, "input.wav");
+        byte[] pcm = writeSineWav(input, SAMPLE_RATE * 2);
+
+        // Read as fast as possible into a sink slower than that, so the ring fills up.
+        RecordingSession session = new RecordingSession(new WavFilePcmSource(input, false, false), BLOCK_SIZE, 1);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        session.addSink(new PcmSink() {
+            @Override
+            public void open(PcmFormat format) {}
+
+            @Override
+            public void write(ByteBuffer block) throws IOException {
+                byte[] data = new byte[block.remaining()];
+                block.get(data);
+                written.write(data);
+                try {
+                    Thread.sleep(1);
+                }catch(InterruptedException e){
+                    throw new InterruptedIOException();
+                }
+            }
+
+            @Override
+            public void close() {}
+        });
+        File sidecar = new File(directory, "input.dropped.txt");
+        session.setOverrunSidecar(sidecar);
+        session.start();
+        session.join();
+
+        assertTrue("overruns", session.getRingBuffer().getOverruns() > 0);
+        // What was written is the input with the recorded ranges cut out.
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        BufferedReader reader = new BufferedReader(new FileReader(sidecar));
+        try {
+            assertEquals("# sample_rate " + SAMPLE_RATE, reader.readLine());
+            assertEquals("# frames " + pcm.length / 4, reader.readLine());
+            int kept = 0;
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] range = line.split(" ");
+                int start = Integer.parseInt(range[0]) * 4;
+                expected.write(pcm, kept, start - kept);
+                kept = Integer.parseInt(range[1]) * 4;
+            }
+            expected.write(pcm, kept, pcm.length - kept);
+        }finally {
+            reader.close();
+        }
+        assertArrayEquals(expected.toByteArray(), written.toByteArray());
+    }
+
+    @Test
+    public void syntheticSourcePacesToRealTime() {
+        int blocks = 10;
+        int frames = BLOCK_SIZE / 4 * blocks;
+        long fast = timeReads(new SyntheticPcmSource(SyntheticPcmSource.Waveform.SILENCE, 0, 0, SAMPLE_RATE, 2,
+                AudioFormat.ENCODING_PCM_16BIT, false), blocks);
+        long paced = timeReads(new SyntheticPcmSource(SyntheticPcmSource.Waveform.SILENCE, 0, 0, SAMPLE_RATE, 2,
+                AudioFormat.ENCODING_PCM_16BIT, true), blocks);
+        long duration = TimeUnit.SECONDS.toNanos(frames) / SAMPLE_RATE;
+        assertTrue("paced reads took " + paced + " ns for " + duration + " ns of audio", paced >= duration);
+        assertTrue("unpaced reads took " + fast + " ns for " + duration + " ns of audio", fast < duration / 2);
+    }
+
+    @Test
+    public void sineLevelsAreMeasured() {
+        SyntheticPcmSource source = new SyntheticPcmSource(SyntheticPcmSource.Waveform.SINE, 1000, 0.5, SAMPLE_RATE, 2,
+                AudioFormat.ENCODING_PCM_16BIT, false);
+        GainKernel kernel = GainKernel.create(AudioFormat.ENCODING_PCM_16BIT, 2, 1, BLOCK_SIZE, new PcmProcessor[0]);
+        LevelMeter meter = new LevelMeter();
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        Buffer view = GainKernel.createView(AudioFormat.ENCODING_PCM_16BIT, block);
+        source.startRecording();
+        for(int i = 0; i < 20; i++){
+            block.clear();
+            AudioProcessingTools.readAudioApplyGain(block, view, source, BLOCK_SIZE, kernel, meter);
+        }
+        LevelMeter.Levels levels = new LevelMeter.Levels();
+        meter.read(levels);
+        assertEquals("peak", 0.5, levels.peak, 0.01);
+        assertEquals("rms", 0.5 / Math.sqrt(2), levels.rms, 0.01);
+        assertEquals("dc offset", 0, levels.dcOffset, 0.01);
+    }
+
+    private static long timeReads(PcmSource source, int blocks){
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        long start = System.nanoTime();
+        source.startRecording();
+        for(int i = 0; i < blocks; i++){
+            block.clear();
+            assertEquals(BLOCK_SIZE, source.read(block, BLOCK_SIZE));
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return the sample data written
+     */
+    private static byte[] writeSineWav(File file, int frames) throws IOException {
+        SyntheticPcmSource source = new SyntheticPcmSource(SyntheticPcmSource.Waveform.SINE, 440, 0.25, SAMPLE_RATE, 2,
+                AudioFormat.ENCODING_PCM_16BIT, false);
+        ByteBuffer data = ByteBuffer.allocate(frames * 4);
+        source.startRecording();
+        source.read(data, data.capacity());
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            AudioProcessingTools.writeWavHeader(channel, AudioFormat.CHANNEL_IN_STEREO, SAMPLE_RATE, AudioFormat.ENCODING_PCM_16BIT);
+            data.clear();
+            while(data.hasRemaining()) channel.write(data, AudioProcessingTools.WAV_HEADER_SIZE + data.position());
+            AudioProcessingTools.writeWavSizes(channel, ByteBuffer.allocate(8), data.capacity());
+        }finally {
+            out.close();
+        }
+        return data.array();
+    }
+
+    private static byte[] readWavData(File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            AudioProcessingTools.WavInfo info = AudioProcessingTools.readWavHeader(channel);
+            ByteBuffer data = ByteBuffer.allocate((int) info.dataSize);
+            while(data.hasRemaining() && channel.read(data, info.dataOffset + data.position()) != -1);
+            return data.array();
+        }finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Timing harness printing the real-time factor {@link SpectralNoiseSuppressor} reports for itself, time spent
+ * processing over the duration of the audio on one core, in mono and stereo at each sample rate the app records
+ * at. The audio is synthetic noisy speech: a second of noise for the suppressor to learn from, then voiced
+ * syllables four times a second over the same noise. Each suppressor is measured after another one has warmed up
+ * the JIT on a few runs of the same audio.
+ */
+
+public class SpectralNoiseSuppressorBenchmark {
+    private static final int[] SAMPLE_RATES = {8000, 16000, 44100, 48000};
+    private static final int BLOCK_SAMPLES = 1792;
+    private static final int SECONDS = 30;
+    private static final int WARM_UP_RUNS = 3;
+
+    @Test
+    public void mono() {
+        for(int sampleRate : SAMPLE_RATES) measure(sampleRate, 1);
+    }
+
+    @Test
+    public void stereo() {
+        for(int sampleRate : SAMPLE_RATES) measure(sampleRate, 2);
+    }
+
+    private void measure(int sampleRate, int channelCount){
+        float[] audio = noisySpeech(sampleRate, channelCount);
+        SpectralNoiseSuppressor warmUp = new SpectralNoiseSuppressor(sampleRate, channelCount);
+        for(int i = 0; i < WARM_UP_RUNS; i++) run(warmUp, audio, channelCount);
+        SpectralNoiseSuppressor suppressor = new SpectralNoiseSuppressor(sampleRate, channelCount);
+        run(suppressor, audio, channelCount);
+        float factor = suppressor.getRealTimeFactor();
+        System.out.println(String.format("%5d Hz %-6s real-time factor %.4f (%.0fx real time)", sampleRate,
+                channelCount == 1 ? "mono" : "stereo", factor, 1 / factor));
+        assertTrue("Noise suppression doesn't keep up with recording", factor > 0 && factor < 1);
+    }
+
+    private static void run(SpectralNoiseSuppressor suppressor, float[] audio, int channelCount){
+        float[] block = new float[BLOCK_SAMPLES];
+        int samplesPerBlock = BLOCK_SAMPLES / channelCount * channelCount;
+        for(int position = 0; position + samplesPerBlock <= audio.length; position += samplesPerBlock){
+            System.arraycopy(audio, position, block, 0, samplesPerBlock);
+            suppressor.process(block, samplesPerBlock / channelCount);
+        }
+    }
+
+    /**
+     * @return interleaved samples of noise alone for the learning period of the suppressor, then of harmonic
+     *         syllables around 140 Hz over the same noise, the same on every channel
+     */
+    private static float[] noisySpeech(int sampleRate, int channelCount){
+        int frames = SECONDS * sampleRate;
+        int quiet = Math.round(SpectralNoiseSuppressor.LEARN_SECONDS * sampleRate);
+        float[] audio = new float[frames * channelCount];
+        Random random = new Random(1);
+        double phase = 0;
+        for(int n = 0; n < frames; n++){
+            double t = (double) n / sampleRate;
+            double sample = random.nextGaussian() * 0.02;
+            if(n >= quiet){
+                double syllable = Math.max(0, Math.sin(2 * Math.PI * 4 * t));
+                double pitch = 140 * (1 + 0.05 * Math.sin(2 * Math.PI * 0.5 * t));
+                phase += 2 * Math.PI * pitch / sampleRate;
+                double voice = 0;
+                for(int harmonic = 1; harmonic * pitch < Math.min(3400, sampleRate / 2); harmonic++){
+                    voice += Math.sin(harmonic * phase) / harmonic;
+                }
+                sample += 0.2 * syllable * syllable * voice;
+            }
+            for(int c = 0; c < channelCount; c++) audio[n * channelCount + c] = (float) sample;
+        }
+        return audio;
+    }
+}
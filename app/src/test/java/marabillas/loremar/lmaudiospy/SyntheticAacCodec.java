@@ -0,0 +1,237 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for the platform's AAC encoder in asynchronous mode, used to run {@link AsyncAacEncoder} and
+ * {@link ParallelAacConverter} on a plain JVM. It makes its callbacks one at a time on a thread of its own and
+ * behaves like the platform encoder where the driver has to cope with it: a few input buffers that don't hold a
+ * whole number of access units, codec specific data first, output lagging input by its delay, and the end of
+ * stream on an empty buffer that has another flag set too.
+ *
+ * Each access unit depends on an overlapping window of two access units of input, which it transforms with an
+ * FFT. Its access units are the quantized spectrum of that window, so they are a deterministic function of the
+ * input: a stitched conversion must produce exactly the access units of a conversion done in one piece.
+ */
+
+final class SyntheticAacCodec implements AsyncAacEncoder.Codec {
+    private static final int WINDOW = 2 * AacEncoder.FRAMES_PER_ACCESS_UNIT;
+    private static final int BINS = 128;
+    private static final int INPUT_BUFFERS = 4;
+    private static final int INPUT_BUFFER_FRAMES = 1500;
+    private static final float[] SINE_WINDOW = new float[WINDOW];
+    static {
+        for(int i = 0; i < WINDOW; i++) SINE_WINDOW[i] = (float) Math.sin(Math.PI * (i + 0.5) / WINDOW);
+    }
+
+    private final int delayFrames;
+    private final ExecutorService callbackThread = Executors.newSingleThreadExecutor();
+    private final RealFft fft = new RealFft(WINDOW);
+    private final float[] window = new float[WINDOW];
+    private final float[] windowed = new float[WINDOW];
+    private final float[] re = new float[WINDOW / 2 + 1];
+    private final float[] im = new float[WINDOW / 2 + 1];
+    private final ByteBuffer[] inputBuffers = new ByteBuffer[INPUT_BUFFERS];
+    private final List<ByteBuffer> outputBuffers = new ArrayList<>();
+    private final ArrayDeque<Integer> freeOutputBuffers = new ArrayDeque<>();
+    private Callback callback;
+    private int sampleRate;
+    private int channelCount;
+    private int filled;
+    private int leadingZeros;
+    private long inputFrames;
+    private long outputUnits;
+
+    /**
+     * @param delayFrames frames the output lags behind the input
+     */
+    SyntheticAacCodec(int delayFrames){
+        this.delayFrames = delayFrames;
+    }
+
+    static AacEncoder.Factory factory(final int delayFrames){
+        return new AacEncoder.Factory() {
+            @Override
+            public AacEncoder create() {
+                return new AsyncAacEncoder(new SyntheticAacCodec(delayFrames));
+            }
+        };
+    }
+
+    @Override
+    public int configure(int sampleRate, int channelCount, int bitRate, int encoding, Callback callback) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.callback = callback;
+        for(int i = 0; i < INPUT_BUFFERS; i++){
+            inputBuffers[i] = ByteBuffer.allocateDirect(INPUT_BUFFER_FRAMES * channelCount * 2).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        // The first window starts one access unit before the first delayed frame.
+        filled = 0;
+        leadingZeros = delayFrames + AacEncoder.FRAMES_PER_ACCESS_UNIT;
+        return AudioFormat.ENCODING_PCM_16BIT;
+    }
+
+    @Override
+    public int getDelayFrames() {
+        return delayFrames;
+    }
+
+    @Override
+    public void start() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onOutputFormatChanged(getOutputFormat());
+            }
+        });
+        ByteBuffer codecSpecificData = ByteBuffer.allocate(2);
+        codecSpecificData.put((byte) 0x12).put((byte) 0x10).flip();
+        postOutput(codecSpecificData, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        for(int i = 0; i < INPUT_BUFFERS; i++) postInput(i);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        inputBuffers[index].clear();
+        return inputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+        ByteBuffer pcm = inputBuffers[index];
+        pcm.position(0).limit(size);
+        for(; leadingZeros > 0; leadingZeros--) push(0);
+        while(pcm.remaining() >= channelCount * 2){
+            float sum = 0;
+            for(int c = 0; c < channelCount; c++) sum += pcm.getShort() / 32768f;
+            push(sum / channelCount);
+            inputFrames++;
+        }
+        if((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0){
+            postInput(index);
+            return;
+        }
+        long units = (inputFrames + delayFrames + AacEncoder.FRAMES_PER_ACCESS_UNIT - 1) / AacEncoder.FRAMES_PER_ACCESS_UNIT;
+        while(outputUnits < units) push(0);
+        postOutput(ByteBuffer.allocate(0), presentationTimeUs,
+                MediaCodec.BUFFER_FLAG_END_OF_STREAM | MediaCodec.BUFFER_FLAG_KEY_FRAME);
+    }
+
+    private void push(float sample){
+        window[filled++] = sample;
+        if(filled < WINDOW) return;
+        emit();
+        System.arraycopy(window, AacEncoder.FRAMES_PER_ACCESS_UNIT, window, 0, WINDOW - AacEncoder.FRAMES_PER_ACCESS_UNIT);
+        filled -= AacEncoder.FRAMES_PER_ACCESS_UNIT;
+    }
+
+    private void emit(){
+        for(int i = 0; i < WINDOW; i++) windowed[i] = window[i] * SINE_WINDOW[i];
+        fft.forward(windowed, re, im);
+        ByteBuffer accessUnit = ByteBuffer.allocate(BINS);
+        for(int k = 0; k < BINS; k++){
+            double magnitude = Math.sqrt(re[k] * re[k] + im[k] * im[k]);
+            accessUnit.put((byte) Math.max(-128, Math.min(127, Math.round(8 * Math.log(magnitude + 1e-6)))));
+        }
+        accessUnit.flip();
+        postOutput(accessUnit, outputUnits * AacEncoder.FRAMES_PER_ACCESS_UNIT * 1000000 / sampleRate, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        outputUnits++;
+    }
+
+    private void postInput(final int index){
+        post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onInputBufferAvailable(index);
+            }
+        });
+    }
+
+    private synchronized void postOutput(ByteBuffer data, long presentationTimeUs, int flags){
+        Integer free = freeOutputBuffers.poll();
+        final int index = free != null ? free : outputBuffers.size();
+        if(free != null) outputBuffers.set(index, data);
+        else outputBuffers.add(data);
+        // Set field by field, so the info is also filled in against the stubbed android.jar of unit tests.
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = 0;
+        info.size = data.remaining();
+        info.presentationTimeUs = presentationTimeUs;
+        info.flags = flags;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onOutputBufferAvailable(index, info);
+            }
+        });
+    }
+
+    private void post(Runnable runnable){
+        try {
+            callbackThread.execute(runnable);
+        }catch(RejectedExecutionException e){
+            // Released.
+        }
+    }
+
+    @Override
+    public synchronized ByteBuffer getOutputBuffer(int index) {
+        return outputBuffers.get(index);
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index) {
+        outputBuffers.set(index, null);
+        freeOutputBuffers.push(index);
+    }
+
+    private MediaFormat getOutputFormat() {
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, MediaFormat.MIMETYPE_AUDIO_AAC);
+        format.setInteger(MediaFormat.KEY_SAMPLE_RATE, sampleRate);
+        format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, channelCount);
+        return format;
+    }
+
+    @Override
+    public void release() {
+        callbackThread.shutdownNow();
+        try {
+            callbackThread.awaitTermination(1, TimeUnit.SECONDS);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *     LM AudioSpy is an audio recording app for Android version 5.1
+ *     Copyright (C) 2017-2018 Loremar Marabillas
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package marabillas.loremar.lmaudiospy;
+
+import android.media.AudioFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the reduction ratios of silence elision on synthetic audio: bursts of a tone standing in for speech,
+ * in the middle of stretches of quiet background noise. Each burst lasts {@link #BURST_SECONDS} out of every
+ * {@link #PERIOD_SECONDS}, and the hangover is kept after every burst and at the very start, before there was
+ * enough background to elide. With blocks of about 20 ms the ratio should come close to
+ * PERIODS * PERIOD_SECONDS / (PERIODS * (BURST_SECONDS + hangover) + hangover).
+ */
+
+public class VoiceActivityDetectorTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK_SIZE = 3584;
+    private static final int PERIOD_SECONDS = 10;
+    private static final int BURST_SECONDS = 2;
+    private static final int PERIODS = 6;
+    /** Blocks are kept or elided whole, so each burst and hangover may be off by up to a block. */
+    private static final double BLOCK_SECONDS = BLOCK_SIZE / 4.0 / SAMPLE_RATE;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("vad", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for(File file : directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void dropModeKeepsBurstsAndShortHangover() throws IOException {
+        assertRatio("drop", VoiceActivityDetector.DROP_HANGOVER_SECONDS);
+    }
+
+    @Test
+    public void compressModeKeepsBurstsAndLongerHangover() throws IOException {
+        assertRatio("compress", VoiceActivityDetector.COMPRESS_HANGOVER_SECONDS);
+    }
+
+    private void assertRatio(String mode, float hangoverSeconds) throws IOException {
+        File sidecar = new File(directory, mode + ".elided.txt");
+        VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, hangoverSeconds, sidecar);
+        SyntheticPcmSource burst = new SyntheticPcmSource(SyntheticPcmSource.Waveform.SINE, 300, 0.3, SAMPLE_RATE, 2,
+                AudioFormat.ENCODING_PCM_16BIT, false);
+        SyntheticPcmSource background = new SyntheticPcmSource(SyntheticPcmSource.Waveform.NOISE, 0, 0.003, SAMPLE_RATE, 2,
+                AudioFormat.ENCODING_PCM_16BIT, false);
+        run(detector, burst, background);
+        detector.finish();
+
+        double ratio = (double) detector.getInputFrames() / detector.getKeptFrames();
+        double seconds = (double) detector.getInputFrames() / SAMPLE_RATE;
+        double kept = PERIODS * (BURST_SECONDS + hangoverSeconds) + hangoverSeconds;
+        double slack = (2 * PERIODS + 1) * BLOCK_SECONDS;
+        double best = seconds / (kept - slack);
+        double worst = seconds / (kept + slack);
+        System.out.println(String.format("%s: kept %d of %d frames, reduction ratio %.2f (expected %.2f-%.2f)",
+                mode, detector.getKeptFrames(), detector.getInputFrames(), ratio, worst, best));
+        assertTrue(mode + " reduction ratio " + ratio, ratio >= worst && ratio <= best);
+        assertEquals("elided frames in sidecar", detector.getInputFrames() - detector.getKeptFrames(),
+                elidedFrames(sidecar, detector.getInputFrames()));
+    }
+
+    /**
+     * Feeds the detector {@link #PERIODS} periods, each a burst in the middle of background. Every period starts
+     * with background, as the detector takes its noise floor from the first block.
+     */
+    private static void run(VoiceActivityDetector detector, PcmSource burst, PcmSource background){
+        GainKernel kernel = GainKernel.create(AudioFormat.ENCODING_PCM_16BIT, 2, 1, BLOCK_SIZE, new PcmProcessor[0]);
+        LevelMeter meter = new LevelMeter();
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        Buffer view = GainKernel.createView(AudioFormat.ENCODING_PCM_16BIT, block);
+        burst.startRecording();
+        background.startRecording();
+        long frames = 0;
+        int burstStart = (PERIOD_SECONDS - BURST_SECONDS) / 2 * SAMPLE_RATE;
+        while(frames < (long) PERIODS * PERIOD_SECONDS * SAMPLE_RATE){
+            long offset = frames % (PERIOD_SECONDS * SAMPLE_RATE);
+            boolean inBurst = offset >= burstStart && offset < burstStart + BURST_SECONDS * SAMPLE_RATE;
+            block.clear();
+            int read = AudioProcessingTools.readAudioApplyGain(block, view, inBurst ? burst : background, BLOCK_SIZE, kernel, meter);
+            detector.keep(kernel);
+            frames += read / 4;
+        }
+    }
+
+    private static long elidedFrames(File sidecar, long frames) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(sidecar));
+        try {
+            assertEquals("# sample_rate " + SAMPLE_RATE, reader.readLine());
+            assertEquals("# frames " + frames, reader.readLine());
+            long elided = 0;
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] range = line.split(" ");
+                elided += Long.parseLong(range[1]) - Long.parseLong(range[0]);
+            }
+            return elided;
+        }finally {
+            reader.close();
+        }
+    }
+}